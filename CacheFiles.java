@@ -0,0 +1,57 @@
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.JobContext;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+
+
+/**
+ * Distributed cache helpers.
+ */
+public class CacheFiles {
+
+    /**
+     * Sends the file (any Hadoop path, e.g. on S3) to every task of the job, linked as linkName.
+     */
+    public static void addToJob(Job job, String file, String linkName) throws IOException {
+        Path path = new Path(file);
+        URI uri = path.getFileSystem(job.getConfiguration()).makeQualified(path).toUri();
+        try {
+            job.addCacheFile(new URI(uri.getScheme(), uri.getAuthority(), uri.getPath(), null, linkName));
+        } catch (URISyntaxException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * @return the file added by addToJob with this link name, or null if there is none
+     */
+    public static Path find(JobContext context, String linkName) throws IOException {
+        URI[] cacheFiles = context.getCacheFiles();
+        if (cacheFiles != null) {
+            for (URI uri : cacheFiles) {
+                if (linkName.equals(uri.getFragment())) {
+                    return localOrRemote(uri);
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * A cached file added as uri#name is linked into the working directory of the task under that name.
+     * When it isn't (e.g. when a mapper is run outside of a task) the file is read from where it came from.
+     */
+    public static Path localOrRemote(URI uri) {
+        if (uri.getFragment() != null) {
+            File link = new File(uri.getFragment());
+            if (link.isFile()) {
+                return new Path(link.toURI());
+            }
+        }
+        return new Path(uri.getScheme(), uri.getAuthority(), uri.getPath());
+    }
+}
@@ -0,0 +1,346 @@
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.WritableUtils;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Analytical reads over a columnar copy of the final probabilities (or of the trigram counts), written by ColumnarWriter.
+ * The rows are stored in row groups, column by column, and every group keeps the min and max of its w1 and w2, so a
+ * query on w1 and / or w2 (a word or a word prefix) skips the groups that can't match without reading them - and of
+ * the groups it reads, only the columns it needs: counting rows reads w1 and w2 only.
+ * The words are dictionary encoded: a word is its index in the vocabulary, which is sorted by the UTF-8 bytes, so
+ * the words with a prefix are a range of ids and the groups of the Step4 output (sorted by w1 and w2 in byte order)
+ * cover narrow ranges. Only absolute reads are used on the file, so one table can be shared by any number of threads.
+ * <p>
+ * File layout (big endian):
+ * header - magic, version, kind (PROBABILITIES or COUNTS), vocabulary size (int), rows (long), row groups,
+ * rows per group (int), start of every section (long): vocabulary offsets, vocabulary bytes, row groups, index
+ * vocabulary offsets / bytes - as in ProbabilityStore
+ * row groups - per group, its column chunks one after the other:
+ * w1, w2 - run length encoded, <id vint, run vint> pairs (long runs, the rows are sorted by w1 and w2)
+ * w3 - id vint per row
+ * value - 8 bytes per row: the probability as a double, or the count as a long
+ * index - per group: rows, min w1, max w1, min w2, max w2 (int), and <start long, length int> of every column chunk
+ */
+public class ColumnarTable implements Closeable {
+    static final int MAGIC = 0x54474354; // "TGCT"
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 64;
+    static final int GROUP_INDEX_SIZE = 5 * 4 + 4 * 12;
+    static final int PROBABILITIES = 0;
+    static final int COUNTS = 1;
+    static final int W1 = 0;
+    static final int W2 = 1;
+    static final int W3 = 2;
+    static final int VALUE = 3;
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final int kind;
+    private final int vocabularySize;
+    private final long rows;
+    private final long size;
+    private final ByteBuffer vocabularyOffsets;
+    private final ByteBuffer vocabularyBytes;
+    private final ByteBuffer index;
+    private final int groups;
+    private final AtomicLong bytesRead = new AtomicLong();
+    private final AtomicLong groupsRead = new AtomicLong();
+    private final AtomicLong groupsSkipped = new AtomicLong();
+
+    public ColumnarTable(File path) throws IOException {
+        file = new RandomAccessFile(path, "r");
+        try {
+            channel = file.getChannel();
+            size = channel.size();
+            ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+            if (header.getInt(0) != MAGIC || header.getInt(4) != VERSION) {
+                throw new IOException(path + " is not a columnar table (version " + VERSION + ")");
+            }
+            kind = header.getInt(8);
+            vocabularySize = header.getInt(12);
+            rows = header.getLong(16);
+            groups = header.getInt(24);
+            long vocabularyOffsetsStart = header.getLong(32);
+            long vocabularyBytesStart = header.getLong(40);
+            long groupsStart = header.getLong(48);
+            long indexStart = header.getLong(56);
+            vocabularyOffsets = channel.map(FileChannel.MapMode.READ_ONLY, vocabularyOffsetsStart, vocabularyBytesStart - vocabularyOffsetsStart);
+            vocabularyBytes = channel.map(FileChannel.MapMode.READ_ONLY, vocabularyBytesStart, groupsStart - vocabularyBytesStart);
+            index = channel.map(FileChannel.MapMode.READ_ONLY, indexStart, (long) groups * GROUP_INDEX_SIZE);
+        } catch (IOException | RuntimeException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Called for every row that matches a scan. A column that was not asked for is -1 (w3) or 0 (value).
+     */
+    public interface RowVisitor {
+        void visit(int w1, int w2, int w3, long value);
+    }
+
+    /**
+     * Visits the rows with w1 in [w1From, w1To) and w2 in [w2From, w2To), in the order they were written.
+     * @param withW3 whether to read the w3 column
+     * @param withValue whether to read the value column
+     */
+    public void scan(int w1From, int w1To, int w2From, int w2To, boolean withW3, boolean withValue, RowVisitor visitor) throws IOException {
+        int[] w1 = new int[0], w2 = new int[0], w3 = new int[0];
+        long[] values = new long[0];
+        DataInputBuffer in = new DataInputBuffer();
+        for (int group = 0; group < groups; group++) {
+            int base = group * GROUP_INDEX_SIZE;
+            int count = index.getInt(base);
+            if (index.getInt(base + 8) < w1From || index.getInt(base + 4) >= w1To
+                    || index.getInt(base + 16) < w2From || index.getInt(base + 12) >= w2To) {
+                groupsSkipped.incrementAndGet();
+                continue;
+            }
+            groupsRead.incrementAndGet();
+            if (w1.length < count) {
+                w1 = new int[count];
+                w2 = new int[count];
+                w3 = new int[count];
+                values = new long[count];
+            }
+            readRuns(group, W1, w1, count, in);
+            readRuns(group, W2, w2, count, in);
+            if (withW3) {
+                in.reset(readChunk(group, W3), chunkLength(group, W3));
+                for (int i = 0; i < count; i++) {
+                    w3[i] = WritableUtils.readVInt(in);
+                }
+            }
+            if (withValue) {
+                ByteBuffer chunk = ByteBuffer.wrap(readChunk(group, VALUE));
+                for (int i = 0; i < count; i++) {
+                    values[i] = chunk.getLong(i * 8);
+                }
+            }
+            for (int i = 0; i < count; i++) {
+                if (w1[i] >= w1From && w1[i] < w1To && w2[i] >= w2From && w2[i] < w2To) {
+                    visitor.visit(w1[i], w2[i], withW3 ? w3[i] : -1, withValue ? values[i] : 0);
+                }
+            }
+        }
+    }
+
+    private void readRuns(int group, int column, int[] ids, int count, DataInputBuffer in) throws IOException {
+        in.reset(readChunk(group, column), chunkLength(group, column));
+        for (int row = 0; row < count; ) {
+            int id = WritableUtils.readVInt(in);
+            int run = WritableUtils.readVInt(in);
+            for (int end = row + run; row < end; row++) {
+                ids[row] = id;
+            }
+        }
+    }
+
+    private int chunkLength(int group, int column) {
+        return index.getInt(group * GROUP_INDEX_SIZE + 20 + column * 12 + 8);
+    }
+
+    private byte[] readChunk(int group, int column) throws IOException {
+        long start = index.getLong(group * GROUP_INDEX_SIZE + 20 + column * 12);
+        byte[] bytes = new byte[chunkLength(group, column)];
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, start + buffer.position()) < 0) {
+                throw new IOException("Column chunk past the end of the file");
+            }
+        }
+        bytesRead.addAndGet(bytes.length);
+        return bytes;
+    }
+
+    /**
+     * @return the k rows of (w1, w2) with the highest values, highest first (none if a word is unknown)
+     */
+    public List<Row> top(String w1, String w2, int k) throws IOException {
+        final List<Row> result = new ArrayList<>();
+        final int id1 = id(w1);
+        final int id2 = id(w2);
+        if (id1 < 0 || id2 < 0) {
+            return result;
+        }
+        scan(id1, id1 + 1, id2, id2 + 1, true, true, new RowVisitor() {
+            @Override
+            public void visit(int w1, int w2, int w3, long value) {
+                result.add(new Row(word(w1), word(w2), word(w3), value(value)));
+            }
+        });
+        Collections.sort(result, new Comparator<Row>() {
+            @Override
+            public int compare(Row a, Row b) {
+                return Double.compare(b.value, a.value);
+            }
+        });
+        return result.size() > k ? new ArrayList<>(result.subList(0, k)) : result;
+    }
+
+    /**
+     * @return the number of rows and the sum of their values, of the rows whose w1 and w2 start with the prefixes
+     */
+    public double[] sum(String w1Prefix, String w2Prefix) throws IOException {
+        int[] w1Range = prefixRange(w1Prefix);
+        int[] w2Range = prefixRange(w2Prefix);
+        final double[] sum = new double[2];
+        scan(w1Range[0], w1Range[1], w2Range[0], w2Range[1], false, true, new RowVisitor() {
+            @Override
+            public void visit(int w1, int w2, int w3, long value) {
+                sum[0]++;
+                sum[1] += value(value);
+            }
+        });
+        return sum;
+    }
+
+    private double value(long value) {
+        return kind == COUNTS ? value : Double.longBitsToDouble(value);
+    }
+
+    /**
+     * @return [from, to) - the ids of the words that start with prefix (all of them for the empty prefix)
+     */
+    public int[] prefixRange(String prefix) {
+        byte[] bytes = prefix.getBytes(StandardCharsets.UTF_8);
+        return new int[]{lowerBound(bytes, false), lowerBound(bytes, true)};
+    }
+
+    // the first id whose word is >= bytes, or - if afterPrefix - whose word is > every word starting with bytes
+    private int lowerBound(byte[] bytes, boolean afterPrefix) {
+        int low = 0;
+        int high = vocabularySize;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            int compareResult = compareWord(middle, bytes, afterPrefix);
+            if (compareResult < 0 || afterPrefix && compareResult == 0) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * @return the id of the word, -1 if it is not in the vocabulary
+     */
+    public int id(String word) {
+        byte[] bytes = word.getBytes(StandardCharsets.UTF_8);
+        int id = lowerBound(bytes, false);
+        return id < vocabularySize && compareWord(id, bytes, false) == 0 ? id : -1;
+    }
+
+    // as ProbabilityStore.compareWord, with a word that starts with bytes counted as equal when prefix is true
+    private int compareWord(int id, byte[] bytes, boolean prefix) {
+        int start = vocabularyOffsets.getInt(id * 4);
+        int length = vocabularyOffsets.getInt(id * 4 + 4) - start;
+        for (int i = 0; i < length && i < bytes.length; i++) {
+            int compareResult = (vocabularyBytes.get(start + i) & 0xFF) - (bytes[i] & 0xFF);
+            if (compareResult != 0) {
+                return compareResult;
+            }
+        }
+        return prefix && length >= bytes.length ? 0 : length - bytes.length;
+    }
+
+    public String word(int id) {
+        int start = vocabularyOffsets.getInt(id * 4);
+        byte[] bytes = new byte[vocabularyOffsets.getInt(id * 4 + 4) - start];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = vocabularyBytes.get(start + i);
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    public boolean isCounts() {
+        return kind == COUNTS;
+    }
+
+    public long getRows() {
+        return rows;
+    }
+
+    public int getRowGroups() {
+        return groups;
+    }
+
+    public long getBytesRead() {
+        return bytesRead.get();
+    }
+
+    public long getGroupsRead() {
+        return groupsRead.get();
+    }
+
+    public long getGroupsSkipped() {
+        return groupsSkipped.get();
+    }
+
+    @Override
+    public void close() throws IOException {
+        file.close();
+    }
+
+    public static class Row {
+        private final String w1;
+        private final String w2;
+        private final String w3;
+        private final double value;
+
+        public Row(String w1, String w2, String w3, double value) {
+            this.w1 = w1;
+            this.w2 = w2;
+            this.w3 = w3;
+            this.value = value;
+        }
+
+        public double getValue() {
+            return value;
+        }
+
+        @Override
+        public String toString() {
+            return w1 + " " + w2 + " " + w3 + "\t" + value;
+        }
+    }
+
+    /**
+     * Usage: ColumnarTable <file> top <w1> <w2> [k] - the k (default 5) most probable w3 after w1 w2
+     * ColumnarTable <file> sum <w1 prefix> [w2 prefix] - rows and sum of the values of the matching rows
+     * Prints the bytes and row groups read after the result.
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 3 || !(args[1].equals("top") && args.length >= 4 || args[1].equals("sum"))) {
+            System.err.println("Usage: ColumnarTable <file> top <w1> <w2> [k] | ColumnarTable <file> sum <w1 prefix> [w2 prefix]");
+            System.exit(2);
+        }
+        try (ColumnarTable table = new ColumnarTable(new File(args[0]))) {
+            if (args[1].equals("top")) {
+                for (Row row : table.top(args[2], args[3], args.length > 4 ? Integer.parseInt(args[4]) : 5)) {
+                    System.out.println(row);
+                }
+            } else {
+                double[] sum = table.sum(args[2], args.length > 3 ? args[3] : "");
+                System.out.println((long) sum[0] + " rows, sum " + sum[1]);
+            }
+            System.out.println("Read " + table.getBytesRead() + " of " + table.size + " bytes, " + table.getGroupsRead()
+                    + " of " + table.getRowGroups() + " row groups");
+        }
+    }
+}
@@ -0,0 +1,240 @@
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.WritableUtils;
+import org.apache.hadoop.util.GenericOptionsParser;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+
+
+/**
+ * Exports the final probabilities (the Step4 output, in any Step4.OUTPUT_FORMAT) or the trigram counts (the trigrams
+ * files of Step2, dictionary encoded) into a ColumnarTable file, for analytical queries that read only the row
+ * groups and the columns they need. See ColumnarTable for the layout.
+ * The Step4 output is sorted by w1 and w2 in byte order, which is the order of the vocabulary ids, so its row groups
+ * cover narrow w1 ranges and a query on a word skips nearly all of them. The counts are written in the order of the
+ * Step2 files (by Dictionary id, not by byte order), so their w1 / w2 ranges are wide and mostly only the column
+ * projection helps.
+ * Row groups are columnar.row.group rows (default 65536), a group is encoded in memory and written as a whole.
+ */
+public class ColumnarWriter {
+    static final String ROW_GROUP = "columnar.row.group";
+
+    private final int rowGroup;
+    private final int[] w1;
+    private final int[] w2;
+    private final int[] w3;
+    private final long[] values;
+    private int rows = 0;
+    private long totalRows = 0;
+    private DataOutputStream out;
+    private long position;
+    private long groupsStart;
+    private final DataOutputBuffer chunk = new DataOutputBuffer();
+    private final DataOutputBuffer index = new DataOutputBuffer();
+    private int groups = 0;
+
+    public ColumnarWriter(Configuration conf) {
+        rowGroup = conf.getInt(ROW_GROUP, 65536);
+        if (rowGroup <= 0) {
+            throw new IllegalArgumentException(ROW_GROUP + " must be positive: " + rowGroup);
+        }
+        w1 = new int[rowGroup];
+        w2 = new int[rowGroup];
+        w3 = new int[rowGroup];
+        values = new long[rowGroup];
+    }
+
+    /**
+     * Two passes over the Step4 output: the first one collects the vocabulary, the second one writes the rows.
+     */
+    public void writeProbabilities(Path step4Output, File file, Configuration conf) throws IOException {
+        Path[] parts = Step4Records.parts(step4Output, conf);
+        byte[][] vocabulary = Step4Records.vocabulary(parts, conf);
+        HashMap<String, Integer> ids = new HashMap<>();
+        for (int id = 0; id < vocabulary.length; id++) {
+            ids.put(new String(vocabulary[id], StandardCharsets.UTF_8), id);
+        }
+        begin(file, vocabulary);
+        for (Path part : parts) {
+            try (Step4Records records = new Step4Records(part, conf)) {
+                while (records.next()) {
+                    String[] trigram = records.trigram.split(" ");
+                    add(ids.get(trigram[0]), ids.get(trigram[1]), ids.get(trigram[2]), Double.doubleToLongBits(records.probability));
+                }
+            }
+        }
+        finish(file, ColumnarTable.PROBABILITIES, vocabulary.length);
+    }
+
+    /**
+     * The <TrigramKey, total occurrences> records of the Step2 trigrams files, with the Dictionary ids
+     * of the vocabulary file mapped to their byte ranks.
+     */
+    public void writeCounts(Path step2Output, Path vocabularyFile, File file, Configuration conf) throws IOException {
+        Dictionary dictionary = Dictionary.load(vocabularyFile, conf);
+        byte[][] vocabulary = new byte[dictionary.size()][];
+        for (int rank = 0; rank < vocabulary.length; rank++) {
+            vocabulary[rank] = dictionary.getWord(dictionary.idOfRank(rank)).getBytes(StandardCharsets.UTF_8);
+        }
+        FileStatus[] statuses = step2Output.getFileSystem(conf).globStatus(new Path(step2Output, Step2.TRIGRAMS + "-*"));
+        if (statuses == null || statuses.length == 0) {
+            throw new IOException("No " + Step2.TRIGRAMS + " files in " + step2Output);
+        }
+        begin(file, vocabulary);
+        TrigramKey key = new TrigramKey();
+        LongWritable value = new LongWritable();
+        for (FileStatus status : statuses) {
+            try (SequenceFile.Reader reader = new SequenceFile.Reader(conf, SequenceFile.Reader.file(status.getPath()))) {
+                while (reader.next(key, value)) {
+                    add(dictionary.rank(key.getW1()), dictionary.rank(key.getW2()), dictionary.rank(key.getW3()), value.get());
+                }
+            }
+        }
+        finish(file, ColumnarTable.COUNTS, vocabulary.length);
+    }
+
+    private void begin(File file, byte[][] vocabulary) throws IOException {
+        out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+        out.write(new byte[ColumnarTable.HEADER_SIZE]); // written at the end
+        int offset = 0;
+        for (byte[] word : vocabulary) {
+            out.writeInt(offset);
+            offset += word.length;
+        }
+        out.writeInt(offset);
+        for (byte[] word : vocabulary) {
+            out.write(word);
+        }
+        position = ColumnarTable.HEADER_SIZE + 4L * (vocabulary.length + 1) + offset;
+        groupsStart = position;
+    }
+
+    private void add(int w1, int w2, int w3, long value) throws IOException {
+        this.w1[rows] = w1;
+        this.w2[rows] = w2;
+        this.w3[rows] = w3;
+        values[rows] = value;
+        if (++rows == rowGroup) {
+            writeGroup();
+        }
+    }
+
+    private void writeGroup() throws IOException {
+        index.writeInt(rows);
+        writeRange(w1);
+        writeRange(w2);
+
+        chunk.reset();
+        writeRuns(w1);
+        writeChunk();
+        chunk.reset();
+        writeRuns(w2);
+        writeChunk();
+        chunk.reset();
+        for (int i = 0; i < rows; i++) {
+            WritableUtils.writeVInt(chunk, w3[i]);
+        }
+        writeChunk();
+        chunk.reset();
+        for (int i = 0; i < rows; i++) {
+            chunk.writeLong(values[i]);
+        }
+        writeChunk();
+
+        totalRows += rows;
+        groups++;
+        rows = 0;
+    }
+
+    private void writeRange(int[] ids) throws IOException {
+        int min = Integer.MAX_VALUE, max = Integer.MIN_VALUE;
+        for (int i = 0; i < rows; i++) {
+            min = Math.min(min, ids[i]);
+            max = Math.max(max, ids[i]);
+        }
+        index.writeInt(min);
+        index.writeInt(max);
+    }
+
+    // <id, run> pairs
+    private void writeRuns(int[] ids) throws IOException {
+        for (int i = 0; i < rows; ) {
+            int run = 1;
+            while (i + run < rows && ids[i + run] == ids[i]) {
+                run++;
+            }
+            WritableUtils.writeVInt(chunk, ids[i]);
+            WritableUtils.writeVInt(chunk, run);
+            i += run;
+        }
+    }
+
+    private void writeChunk() throws IOException {
+        index.writeLong(position);
+        index.writeInt(chunk.getLength());
+        out.write(chunk.getData(), 0, chunk.getLength());
+        position += chunk.getLength();
+    }
+
+    private void finish(File file, int kind, int vocabularySize) throws IOException {
+        long vocabularyBytesStart = ColumnarTable.HEADER_SIZE + 4L * (vocabularySize + 1);
+        try {
+            if (rows > 0) {
+                writeGroup();
+            }
+            out.write(index.getData(), 0, index.getLength());
+        } finally {
+            out.close();
+        }
+
+        try (RandomAccessFile header = new RandomAccessFile(file, "rw")) {
+            header.writeInt(ColumnarTable.MAGIC);
+            header.writeInt(ColumnarTable.VERSION);
+            header.writeInt(kind);
+            header.writeInt(vocabularySize);
+            header.writeLong(totalRows);
+            header.writeInt(groups);
+            header.writeInt(rowGroup);
+            header.writeLong(ColumnarTable.HEADER_SIZE);
+            header.writeLong(vocabularyBytesStart);
+            header.writeLong(groupsStart);
+            header.writeLong(position);
+        }
+    }
+
+    /**
+     * Usage: ColumnarWriter [-D key=value ...] probabilities <Step4 output dir> <file>
+     * ColumnarWriter [-D key=value ...] counts <Step2 output dir> <vocabulary file> <file>
+     * The inputs can be on any Hadoop file system, the file is local.
+     */
+    public static void main(String[] args) throws IOException {
+        Configuration conf = new Configuration();
+        args = new GenericOptionsParser(conf, args).getRemainingArgs();
+        boolean probabilities = args.length == 3 && args[0].equals("probabilities");
+        if (!probabilities && !(args.length == 4 && args[0].equals("counts"))) {
+            System.err.println("Usage: ColumnarWriter [-D key=value ...] probabilities <Step4 output dir> <file> | "
+                    + "ColumnarWriter [-D key=value ...] counts <Step2 output dir> <vocabulary file> <file>");
+            System.exit(2);
+        }
+        File file = new File(args[args.length - 1]);
+        if (probabilities) {
+            new ColumnarWriter(conf).writeProbabilities(new Path(args[1]), file, conf);
+        } else {
+            new ColumnarWriter(conf).writeCounts(new Path(args[1]), new Path(args[2]), file, conf);
+        }
+        try (ColumnarTable table = new ColumnarTable(file)) {
+            System.out.println(table.getRows() + " rows in " + table.getRowGroups() + " row groups, " + file.length() + " bytes");
+        }
+    }
+}
@@ -0,0 +1,112 @@
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.compress.CodecPool;
+import org.apache.hadoop.io.compress.CompressionCodec;
+import org.apache.hadoop.io.compress.CompressionCodecFactory;
+import org.apache.hadoop.io.compress.Compressor;
+import org.apache.hadoop.io.compress.GzipCodec;
+import org.apache.hadoop.io.compress.zlib.ZlibFactory;
+import org.apache.hadoop.mapreduce.Counters;
+import org.apache.hadoop.mapreduce.FileSystemCounter;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.MRJobConfig;
+import org.apache.hadoop.mapreduce.TaskCounter;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.apache.hadoop.mapreduce.lib.output.SequenceFileOutputFormat;
+import org.apache.hadoop.util.VersionInfo;
+
+import java.io.IOException;
+
+
+/**
+ * Settings for compressing the map output (the spills and the shuffle) and the files a step writes for the next one.
+ * The value of a key is a codec name known to CompressionCodecFactory (snappy, lz4, deflate, gzip, bzip2,
+ * zstd on Hadoop 2.9+) or none. stepN.compress.map / stepN.compress.output (e.g. step3.compress.output) set
+ * one step and override compress.map / compress.output, which set all of them. Nothing is compressed by default.
+ * The SequenceFile outputs are block compressed: the records of a block are compressed together.
+ */
+public class Compression {
+    public static final String MAP = "compress.map";
+    public static final String OUTPUT = "compress.output";
+    public static final String NONE = "none";
+
+    /**
+     * Sets the compression of job from the keys of step (vocabulary, step1, ... step4) in its configuration.
+     */
+    static void configure(Job job, String step) {
+        Configuration conf = job.getConfiguration();
+        CompressionCodec mapCodec = codec(conf, step, MAP);
+        if (mapCodec != null) {
+            conf.setBoolean(MRJobConfig.MAP_OUTPUT_COMPRESS, true);
+            conf.setClass(MRJobConfig.MAP_OUTPUT_COMPRESS_CODEC, mapCodec.getClass(), CompressionCodec.class);
+        }
+        CompressionCodec outputCodec = codec(conf, step, OUTPUT);
+        if (outputCodec != null) {
+            if (outputCodec instanceof GzipCodec && !ZlibFactory.isNativeZlibLoaded(conf)
+                    && SequenceFileOutputFormat.class.isAssignableFrom(conf.getClass(MRJobConfig.OUTPUT_FORMAT_CLASS_ATTR, Object.class))) {
+                throw new IllegalArgumentException(step + "." + OUTPUT + ": a SequenceFile can only be gzip compressed with the native Hadoop library, use deflate");
+            }
+            FileOutputFormat.setCompressOutput(job, true);
+            FileOutputFormat.setOutputCompressorClass(job, outputCodec.getClass());
+            SequenceFileOutputFormat.setOutputCompressionType(job, SequenceFile.CompressionType.BLOCK);
+        }
+    }
+
+    /**
+     * The codecs the mains use on EMR: Snappy for the map output, which is written and read once and
+     * needs to be fast, and deflate for the files between the steps, which go through S3.
+     * zstd would be the better choice for those, but it needs Hadoop 2.9 and EMR 5.11 runs 2.7.3.
+     * The final output of Step4 stays plain text. Keys already set in conf are kept.
+     */
+    static void useClusterDefaults(Configuration conf) {
+        conf.set(MAP, conf.get(MAP, "snappy"));
+        conf.set(OUTPUT, conf.get(OUTPUT, "deflate"));
+        conf.set("step4." + OUTPUT, conf.get("step4." + OUTPUT, NONE));
+    }
+
+    /**
+     * @return the codec of step for key, null for none
+     */
+    private static CompressionCodec codec(Configuration conf, String step, String key) {
+        String name = conf.get(step + "." + key, conf.get(key, NONE));
+        if (name.equals(NONE)) {
+            return null;
+        }
+        CompressionCodec codec = new CompressionCodecFactory(conf).getCodecByName(name.equals("zstd") ? "zstandard" : name);
+        if (codec == null) {
+            throw new IllegalArgumentException(step + "." + key + ": no codec " + name + " in Hadoop " + VersionInfo.getVersion());
+        }
+        // snappy and lz4 need the native Hadoop library - better to find out here than in every task
+        try {
+            Compressor compressor = CodecPool.getCompressor(codec, conf);
+            CodecPool.returnCompressor(compressor);
+        } catch (RuntimeException | UnsatisfiedLinkError e) {
+            throw new IllegalArgumentException(step + "." + key + ": codec " + name + " can't be used here: " + e.getMessage(), e);
+        }
+        return codec;
+    }
+
+    /**
+     * Prints what the compression of a finished job saved and cost, from its counters: the map output as written by
+     * the mappers and as spilled and shuffled (after the combiner and the codec), the bytes written to the file system
+     * of the output (with the local spills when that is the local file system), and the CPU time of the tasks
+     * (compressing and decompressing is part of it). Comparing the lines of two runs gives the trade-off of a codec.
+     */
+    static void report(Job job, String step) throws IOException, InterruptedException {
+        Counters counters = job.getCounters();
+        if (counters == null) {
+            return;
+        }
+        long mapOutput = counters.findCounter(TaskCounter.MAP_OUTPUT_BYTES).getValue();
+        long materialized = counters.findCounter(TaskCounter.MAP_OUTPUT_MATERIALIZED_BYTES).getValue();
+        Path output = FileOutputFormat.getOutputPath(job);
+        String scheme = output.getFileSystem(job.getConfiguration()).getUri().getScheme();
+        long written = counters.findCounter(scheme, FileSystemCounter.BYTES_WRITTEN).getValue();
+        long cpuMillis = counters.findCounter(TaskCounter.CPU_MILLISECONDS).getValue();
+        Configuration conf = job.getConfiguration();
+        System.out.printf("%s compression: map output %d bytes, %d shuffled (%s, after the combiner); output %s, %d bytes written to %s; %d ms CPU%n",
+                step, mapOutput, materialized, conf.get(step + "." + MAP, conf.get(MAP, NONE)),
+                conf.get(step + "." + OUTPUT, conf.get(OUTPUT, NONE)), written, scheme, cpuMillis);
+    }
+}
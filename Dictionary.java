@@ -0,0 +1,184 @@
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.WritableComparator;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.JobContext;
+import org.apache.hadoop.util.IndexedSortable;
+import org.apache.hadoop.util.QuickSort;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * The vocabulary built by the Vocabulary job: every word kept by the pipeline and its dense int id
+ * (0 = the most frequent word, so the frequent words get the shortest vints).
+ * Step1 turns the words into ids, Steps 1-4 only move ids around, and Step4.Reduce turns them back into words.
+ * <p>
+ * The file is UTF-8 text with one word per line, the id of a word is its line number.
+ * The words are kept in one byte array and looked up with an open addressing hash table over their bytes,
+ * so a word is found straight from the input line without creating a String or a Text.
+ * rank(id) is the position of the word in byte order (the order of Text), so Step4 can sort by ranks.
+ */
+public class Dictionary {
+    static final String LINK_NAME = "vocabulary.txt";
+
+    private final byte[] bytes;
+    private final int[] offsets; // word id starts at offsets[id], the last entry is the end of the last word
+    private final int[] table; // id + 1, 0 for an empty slot
+    private int[] ranks; // id -> rank, built on first use
+    private int[] byRank; // rank -> id
+
+    public Dictionary(List<byte[]> words) {
+        offsets = new int[words.size() + 1];
+        int length = 0;
+        for (int id = 0; id < words.size(); id++) {
+            offsets[id] = length;
+            length += words.get(id).length;
+        }
+        offsets[words.size()] = length;
+        bytes = new byte[length];
+        for (int id = 0; id < words.size(); id++) {
+            System.arraycopy(words.get(id), 0, bytes, offsets[id], words.get(id).length);
+        }
+
+        table = new int[Integer.highestOneBit(Math.max(words.size(), 8) * 2 - 1) * 2];
+        for (int id = 0; id < words.size(); id++) {
+            int slot = hash(bytes, offsets[id], offsets[id + 1]) & (table.length - 1);
+            while (table[slot] != 0) {
+                slot = (slot + 1) & (table.length - 1);
+            }
+            table[slot] = id + 1;
+        }
+    }
+
+    public int size() {
+        return offsets.length - 1;
+    }
+
+    /**
+     * @return the id of the word in bytes[start, end), or -1 if it is not in the vocabulary
+     */
+    public int id(byte[] word, int start, int end) {
+        int slot = hash(word, start, end) & (table.length - 1);
+        while (table[slot] != 0) {
+            int id = table[slot] - 1;
+            if (WritableComparator.compareBytes(bytes, offsets[id], offsets[id + 1] - offsets[id], word, start, end - start) == 0) {
+                return id;
+            }
+            slot = (slot + 1) & (table.length - 1);
+        }
+        return -1;
+    }
+
+    /**
+     * Appends the bytes of the word to text.
+     */
+    public void appendWord(int id, Text text) {
+        text.append(bytes, offsets[id], offsets[id + 1] - offsets[id]);
+    }
+
+    public String getWord(int id) {
+        return new String(bytes, offsets[id], offsets[id + 1] - offsets[id], StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return the position of the word in byte order
+     */
+    public int rank(int id) {
+        sortByBytes();
+        return ranks[id];
+    }
+
+    /**
+     * @return the id of the word at this position in byte order
+     */
+    public int idOfRank(int rank) {
+        sortByBytes();
+        return byRank[rank];
+    }
+
+    private void sortByBytes() {
+        if (ranks != null) {
+            return;
+        }
+        final int[] order = new int[size()];
+        for (int id = 0; id < order.length; id++) {
+            order[id] = id;
+        }
+        new QuickSort().sort(new IndexedSortable() {
+            @Override
+            public int compare(int i, int j) {
+                int a = order[i], b = order[j];
+                return WritableComparator.compareBytes(bytes, offsets[a], offsets[a + 1] - offsets[a],
+                        bytes, offsets[b], offsets[b + 1] - offsets[b]);
+            }
+
+            @Override
+            public void swap(int i, int j) {
+                int tmp = order[i];
+                order[i] = order[j];
+                order[j] = tmp;
+            }
+        }, 0, order.length);
+        ranks = new int[order.length];
+        for (int rank = 0; rank < order.length; rank++) {
+            ranks[order[rank]] = rank;
+        }
+        byRank = order;
+    }
+
+    private static int hash(byte[] bytes, int start, int end) {
+        int hash = WritableComparator.hashBytes(bytes, start, end - start);
+        return hash ^ (hash >>> 16);
+    }
+
+    /**
+     * Sends the vocabulary file (any Hadoop path, e.g. on S3) to every task of the job.
+     */
+    public static void addToJob(Job job, String file) throws IOException {
+        CacheFiles.addToJob(job, file, LINK_NAME);
+    }
+
+    /**
+     * Loads the vocabulary added by addToJob.
+     */
+    public static Dictionary fromCache(JobContext context) throws IOException {
+        Path path = CacheFiles.find(context, LINK_NAME);
+        if (path == null) {
+            throw new IOException("No vocabulary in the distributed cache - run the Vocabulary job and add its file with Dictionary.addToJob");
+        }
+        return load(path, context.getConfiguration());
+    }
+
+    public static Dictionary load(Path path, Configuration conf) throws IOException {
+        List<byte[]> words = new ArrayList<>();
+        FileSystem fs = path.getFileSystem(conf);
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(fs.open(path), StandardCharsets.UTF_8), 1 << 16)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                words.add(line.getBytes(StandardCharsets.UTF_8));
+            }
+        }
+        return new Dictionary(words);
+    }
+
+    /**
+     * Writes the words, in id order, as a vocabulary file.
+     */
+    public static void write(List<byte[]> words, Path path, Configuration conf) throws IOException {
+        try (FSDataOutputStream out = path.getFileSystem(conf).create(path, true)) {
+            for (byte[] word : words) {
+                out.write(word);
+                out.write('\n');
+            }
+        }
+    }
+}
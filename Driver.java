@@ -0,0 +1,199 @@
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.MRConfig;
+import org.apache.hadoop.mapreduce.lib.input.SequenceFileInputFormat;
+import org.apache.hadoop.util.GenericOptionsParser;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+
+/**
+ * Runs the whole pipeline from one jar as a single EMR step (see Main): Vocabulary, Step1 (fused with Step2 unless
+ * step1.fused=false), Step3 and Step4 of every language, with the input, output, languages and reducers given on
+ * the command line instead of the paths written into the main of every step.
+ * <p>
+ * The steps of one language are a chain - every job reads the output of the one before it, and Step1 and Step4 also
+ * need the vocabulary file written by the driver in between - but the chains of the languages don't depend on each
+ * other. Every chain runs on its own thread and submits its next job as soon as its previous one is done, so the jobs
+ * of the languages overlap: while one language is in the tail of a job (the last reducers, writing the vocabulary
+ * file) the other one has the cluster, instead of the whole cluster waiting at the end of every EMR step.
+ * With mapreduce.framework.name=local the chains run one after the other.
+ * <p>
+ * Usage: Driver [-D key=value ...]
+ * pipeline.languages - comma separated, each one a chain (default english,hebrew)
+ * pipeline.LANGUAGE.input - the 3-gram input of LANGUAGE (default: its Google Books dataset for english and hebrew)
+ * pipeline.LANGUAGE.stopwords - its stop words file (default s3://bucketurevich2/stopwords/LANGUAGE.txt), none for none
+ * pipeline.input.format - sequence for the datasets (SequenceFile of line number -> 3-gram line) or text (default sequence)
+ * pipeline.output - StepN of LANGUAGE is written to OUTPUT/LANGUAGE/StepN (default s3://bucketurevich2/output)
+ * pipeline.reducers - reduce tasks of every job with reducers (default: chosen by Planner)
+ * planner.enabled - size every job from a sample of its input with Planner (default true), see Planner for its keys
+ * and the keys of the steps: step1.fused, step1.min.count, step3.broadcast, step4.top.k, compress.*, ...
+ * The PipelineReport of every language is written to OUTPUT/LANGUAGE/report.json.
+ */
+public class Driver {
+    static final String LANGUAGES = "pipeline.languages";
+    static final String INPUT_FORMAT = "pipeline.input.format";
+    static final String OUTPUT = "pipeline.output";
+    static final String REDUCERS = "pipeline.reducers";
+
+    private static final String DATASETS = "s3n://datasets.elasticmapreduce/ngrams/books/20090715/";
+
+    public static void main(String[] args) throws Exception {
+        final Configuration conf = new JobConf(); // with mapred-site.xml, for mapreduce.framework.name
+        new GenericOptionsParser(conf, args);
+        boolean local = MRConfig.LOCAL_FRAMEWORK_NAME.equals(conf.get(MRConfig.FRAMEWORK_NAME, MRConfig.LOCAL_FRAMEWORK_NAME));
+        if (!local) {
+            Compression.useClusterDefaults(conf);
+        }
+        conf.setBoolean(Step1.FUSED, conf.getBoolean(Step1.FUSED, true));
+        conf.setBoolean(Step3.BROADCAST, conf.getBoolean(Step3.BROADCAST, true));
+        conf.setBoolean(InMapperAggregation.ENABLED, conf.getBoolean(InMapperAggregation.ENABLED, true));
+        conf.setBoolean(Planner.ENABLED, conf.getBoolean(Planner.ENABLED, true));
+
+        String[] languages = conf.getTrimmedStrings(LANGUAGES, "english", "hebrew");
+        // local tasks all run in the working directory of this process, where the cache files of two jobs
+        // (vocabulary.txt) would be linked under the same name - so locally the chains run one after the other
+        ExecutorService executor = Executors.newFixedThreadPool(local ? 1 : languages.length);
+        List<Future<Boolean>> chains = new ArrayList<>();
+        for (final String language : languages) {
+            chains.add(executor.submit(new Callable<Boolean>() {
+                @Override
+                public Boolean call() throws Exception {
+                    return run(new Configuration(conf), language);
+                }
+            }));
+        }
+        executor.shutdown();
+        boolean success = true;
+        for (int i = 0; i < languages.length; i++) {
+            try {
+                success &= chains.get(i).get();
+            } catch (ExecutionException e) {
+                System.err.println(languages[i] + " failed:");
+                e.getCause().printStackTrace();
+                success = false;
+            }
+        }
+        System.exit(success ? 0 : 1);
+    }
+
+    /**
+     * Runs the chain of one language.
+     * @return true if all of its jobs succeeded
+     */
+    static boolean run(Configuration conf, String language) throws Exception {
+        Path input = new Path(conf.get("pipeline." + language + ".input", defaultInput(language)));
+        String stopWords = conf.get("pipeline." + language + ".stopwords", "s3://bucketurevich2/stopwords/" + language + ".txt");
+        boolean sequenceInput = conf.get(INPUT_FORMAT, "sequence").equals("sequence");
+        boolean fused = conf.getBoolean(Step1.FUSED, true);
+        Path output = new Path(conf.get(OUTPUT, "s3://bucketurevich2/output"), language);
+        Path step2Output = new Path(output, "Step2");
+        Path dictionary = new Path(output, Dictionary.LINK_NAME);
+        Chain chain = new Chain(language, conf.getInt(REDUCERS, 0), conf.getBoolean(Planner.ENABLED, true), new Path(output, "report.json"));
+
+        Job vocabulary = Vocabulary.createJob(conf, input, new Path(output, "Vocabulary"));
+        if (!stopWords.equals("none")) {
+            StopWords.addToJob(vocabulary, stopWords);
+        }
+        if (sequenceInput) {
+            vocabulary.setInputFormatClass(SequenceFileInputFormat.class);
+        }
+        if (!chain.run(vocabulary, "vocabulary")) {
+            return false;
+        }
+        Vocabulary.writeDictionary(new Path(output, "Vocabulary"), dictionary, conf);
+
+        Path sketch = new Path(output, TrigramSketch.LINK_NAME);
+        if (conf.getLong(Step1.MIN_COUNT, 0) > 1) {
+            Job sketchJob = TrigramSketch.createJob(conf, input, new Path(output, "Sketch"));
+            Dictionary.addToJob(sketchJob, dictionary.toString());
+            if (sequenceInput) {
+                sketchJob.setInputFormatClass(SequenceFileInputFormat.class);
+            }
+            if (!chain.run(sketchJob, "sketch")) {
+                return false;
+            }
+            TrigramSketch.write(new Path(output, "Sketch"), sketch, conf);
+        }
+
+        Job step1 = Step1.createJob(conf, input, fused ? step2Output : new Path(output, "Step1"));
+        Dictionary.addToJob(step1, dictionary.toString());
+        if (conf.getLong(Step1.MIN_COUNT, 0) > 1) {
+            TrigramSketch.addToJob(step1, sketch.toString());
+        }
+        if (sequenceInput) {
+            step1.setInputFormatClass(SequenceFileInputFormat.class);
+        }
+        if (!chain.run(step1, "step1")) {
+            return false;
+        }
+        conf.setLong(Step3.N, step1.getCounters().findCounter(Step1.Counter.OCCURRENCES).getValue());
+        if (!fused && !chain.run(Step2.createJob(conf, new Path(output, "Step1"), step2Output), "step2")) {
+            return false;
+        }
+        // created only now: with step3.broadcast the job lists the N/T files of Step2
+        if (!chain.run(Step3.createJob(conf, step2Output, new Path(output, "Step3")), "step3")) {
+            return false;
+        }
+        Job step4 = Step4.createJob(conf, new Path(output, "Step3"), new Path(output, "Step4"));
+        Dictionary.addToJob(step4, dictionary.toString());
+        return chain.run(step4, "step4");
+    }
+
+    private static String defaultInput(String language) {
+        switch (language) {
+            case "english":
+                return DATASETS + "eng-all/3gram/data";
+            case "hebrew":
+                return DATASETS + "heb-all/3gram/data";
+            default:
+                throw new IllegalArgumentException("pipeline." + language + ".input is not set");
+        }
+    }
+
+    /**
+     * The jobs of one language, one after the other, and their report.
+     */
+    private static class Chain {
+        private final String language;
+        private final int reducers;
+        private final boolean plan;
+        private final Path reportPath;
+        private final PipelineReport report = new PipelineReport();
+
+        Chain(String language, int reducers, boolean plan, Path reportPath) {
+            this.language = language;
+            this.reducers = reducers;
+            this.plan = plan;
+            this.reportPath = reportPath;
+        }
+
+        /**
+         * Runs the job, quietly - the progress of the languages would be interleaved - and writes the report so far.
+         * @return true if the job succeeded
+         */
+        boolean run(Job job, String step) throws Exception {
+            if (plan) {
+                System.out.print(language + ": ");
+                Planner.plan(job, step, reducers);
+            } else if (reducers > 0 && job.getNumReduceTasks() > 0) {
+                job.setNumReduceTasks(reducers);
+            }
+            job.setJobName(language + " " + step);
+            System.out.println(language + ": " + step + " started");
+            boolean success = report.run(job, step, false);
+            System.out.println(language + ": " + step + (success ? " done, " : " failed, ") + job.getTrackingURL());
+            Compression.report(job, step);
+            report.write(reportPath, job.getConfiguration());
+            return success;
+        }
+    }
+}
@@ -0,0 +1,47 @@
+import org.apache.hadoop.conf.Configuration;
+
+
+/**
+ * Settings for the bounded in-mapper aggregation used by Step1.Map and Step2.Map
+ * (and by the top-K heaps of Step4.Map, where the size is the number of records in the heaps).
+ * When enabled, a mapper sums its output in a hash map and only writes it when the map holds
+ * MAX_ENTRIES keys, when the heap is more than MAX_HEAP_FRACTION full, or when the task ends.
+ */
+public class InMapperAggregation {
+    public static final String ENABLED = "inmapper.aggregation";
+    public static final String MAX_ENTRIES = "inmapper.aggregation.max.entries";
+    public static final String MAX_HEAP_FRACTION = "inmapper.aggregation.max.heap.fraction";
+
+    // checking the heap on every record is wasteful, the map grows slowly enough
+    private static final int MEMORY_CHECK_INTERVAL = 1024;
+
+    private final int maxEntries;
+    private final float maxHeapFraction;
+    private int sinceMemoryCheck = 0;
+
+    public InMapperAggregation(Configuration conf) {
+        maxEntries = conf.getInt(MAX_ENTRIES, 100000);
+        maxHeapFraction = conf.getFloat(MAX_HEAP_FRACTION, 0.6f);
+    }
+
+    public static boolean isEnabled(Configuration conf) {
+        return conf.getBoolean(ENABLED, false);
+    }
+
+    /**
+     * @param size the number of keys currently held by the mapper
+     * @return true if the mapper should write out and clear its map
+     */
+    public boolean shouldFlush(int size) {
+        if (size >= maxEntries) {
+            return true;
+        }
+        if (++sinceMemoryCheck < MEMORY_CHECK_INTERVAL) {
+            return false;
+        }
+        sinceMemoryCheck = 0;
+        Runtime runtime = Runtime.getRuntime();
+        long used = runtime.totalMemory() - runtime.freeMemory();
+        return used > runtime.maxMemory() * maxHeapFraction;
+    }
+}
@@ -0,0 +1,485 @@
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.GenericWritable;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.Mapper;
+import org.apache.hadoop.mapreduce.Partitioner;
+import org.apache.hadoop.mapreduce.Reducer;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+import org.apache.hadoop.mapreduce.lib.input.MultipleInputs;
+import org.apache.hadoop.mapreduce.lib.input.SequenceFileInputFormat;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.apache.hadoop.mapreduce.lib.output.LazyOutputFormat;
+import org.apache.hadoop.mapreduce.lib.output.MultipleOutputs;
+import org.apache.hadoop.mapreduce.lib.output.SequenceFileOutputFormat;
+import org.apache.hadoop.util.GenericOptionsParser;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+
+/**
+ * Incremental mode: keeps the per-trigram counts of Step1 and the N_r/T_r table of Step2 as versioned state,
+ * and when new input files arrive (new years, a new corpus) only those files go through Vocabulary and Step1.
+ * Merge adds their counts to the stored ones and turns every changed trigram into N/T deltas: its old
+ * <part0, part1> is taken out of its old r-buckets and the new one is added to the new r-buckets.
+ * The deltas are added to the stored table, and Step3 (broadcast) and Step4 then run over the new state.
+ * <p>
+ * State layout, one directory per version (v0001, v0002, ...) and CURRENT holding the name of the latest one:
+ * vocabulary.txt - the Dictionary file. New words are appended, so the ids in counts stay valid.
+ * counts/ - TrigramKey -> PartCounts of all the input so far (what Step1 writes)
+ * part-r-00000 - StatKey -> N_r^part / T_r^part (what Step2.Reduce writes)
+ * trigrams-r-* - TrigramKey -> total occurrences (the "trigrams" output of Step2), the input of Step3
+ * deltas/ - StatKey -> the change made by this version
+ * inputs.txt - the input files read so far. Files are never read again, so they are expected not to change.
+ * Step3/, Step4/ - the probabilities and the final output of this version
+ * report.json - the PipelineReport of the jobs that built this version (in the .work directory while they run)
+ * A version only becomes CURRENT when all of it is written, so a failed run is simply done again.
+ * N is the occurrences of all the input so far - Step3.createJob sums it from the N_r records of the version - so it
+ * grows with every version and the probabilities of all the trigrams change with it, not only of those whose r-bucket
+ * changed. Step3 writes all of them anyway: with the table broadcast, computing a probability costs no more than
+ * copying the old one, and Step4 has to sort all the trigrams again anyway.
+ * <p>
+ * Usage: Incremental [-D key=value ...] <3-gram input file, dir or glob> <state dir> [stop words file]
+ * The first run (no CURRENT yet) builds version 1 from all the input.
+ */
+public class Incremental {
+    static final String CURRENT = "CURRENT";
+    static final String COUNTS = "counts";
+    static final String DELTAS = "deltas";
+    static final String INPUTS = "inputs.txt";
+    static final String REPORT = "report.json";
+
+    public enum Counter {
+        TRIGRAMS_ADDED,
+        TRIGRAMS_CHANGED,
+        TRIGRAMS_UNCHANGED,
+        R_BUCKETS_CHANGED
+    }
+
+    /**
+     * Counts of the new input files - PartCounts, tagged so Merge can tell them from the stored counts.
+     */
+    public static class DeltaCounts extends PartCounts {
+    }
+
+    /**
+     * Merge map output value: the stored PartCounts of a trigram or the DeltaCounts of the new files.
+     */
+    public static class Value extends GenericWritable {
+        @SuppressWarnings({"unchecked", "rawtypes"}) // no generic array creation
+        private static final Class<? extends Writable>[] TYPES = new Class[]{PartCounts.class, DeltaCounts.class};
+
+        @Override
+        protected Class<? extends Writable>[] getTypes() {
+            return TYPES;
+        }
+    }
+
+    /**
+     * Input: the counts of the current version, TrigramKey -> PartCounts
+     * Output: TrigramKey -> Value(PartCounts)
+     */
+    private static class PreviousMap extends Mapper<TrigramKey, PartCounts, TrigramKey, Value> {
+        private final Value outValue = new Value();
+        private final StageMetrics metrics = new StageMetrics(PreviousMap.class);
+
+        @Override
+        public void map(TrigramKey key, PartCounts value, Context context) throws IOException, InterruptedException {
+            outValue.set(value);
+            context.write(key, outValue);
+            metrics.in();
+            metrics.out();
+        }
+
+        @Override
+        protected void cleanup(Context context) {
+            metrics.report(context);
+        }
+    }
+
+    /**
+     * Input: the Step1 output of the new files, TrigramKey -> PartCounts
+     * Output: TrigramKey -> Value(DeltaCounts)
+     */
+    private static class DeltaMap extends Mapper<TrigramKey, PartCounts, TrigramKey, Value> {
+        private final DeltaCounts delta = new DeltaCounts();
+        private final Value outValue = new Value();
+        private final StageMetrics metrics = new StageMetrics(DeltaMap.class);
+
+        @Override
+        public void map(TrigramKey key, PartCounts value, Context context) throws IOException, InterruptedException {
+            delta.set(value.getPart0(), value.getPart1());
+            outValue.set(delta);
+            context.write(key, outValue);
+            metrics.in();
+            metrics.out();
+        }
+
+        @Override
+        protected void cleanup(Context context) {
+            metrics.report(context);
+        }
+    }
+
+    /**
+     * Input:
+     * key - TrigramKey <w1, w2, w3>
+     * value - its stored PartCounts (if it was seen before) and its DeltaCounts (if it is in the new files)
+     * <p>
+     * Output:
+     * 1. the new counts of every trigram (the "counts" named output, under counts/)
+     * key - TrigramKey <w1, w2, w3>
+     * value - PartCounts [part0, part1]
+     * 2. the new total of every trigram (the "trigrams" named output, same as Step2)
+     * key - TrigramKey <w1, w2, w3>
+     * value - <total occurrences>
+     * 3. the change of N_r^part and T_r^part, summed over the trigrams of this reducer (the "deltas" named output,
+     * under deltas/, written at cleanup like Step1.FusedReduce)
+     * key - StatKey <N OR T, r, part>
+     * value - <delta>
+     */
+    public static class MergeReduce extends Reducer<TrigramKey, Value, StatKey, LongWritable> {
+        private final HashMap<StatKey, LongWritable> deltas = new HashMap<>();
+        private final StatKey statKey = new StatKey();
+        private final PartCounts counts = new PartCounts();
+        private final LongWritable total = new LongWritable();
+        private MultipleOutputs<StatKey, LongWritable> multipleOutputs;
+        private final StageMetrics metrics = new StageMetrics(MergeReduce.class);
+
+        @Override
+        protected void setup(Context context) {
+            multipleOutputs = new MultipleOutputs<>(context);
+        }
+
+        @Override
+        protected void reduce(TrigramKey key, Iterable<Value> values, Context context) throws IOException, InterruptedException {
+            boolean seen = false;
+            long old0 = 0, old1 = 0, delta0 = 0, delta1 = 0;
+            for (Value value : values) {
+                metrics.in();
+                PartCounts partCounts = (PartCounts) value.get();
+                if (partCounts instanceof DeltaCounts) {
+                    delta0 += partCounts.getPart0();
+                    delta1 += partCounts.getPart1();
+                } else {
+                    seen = true;
+                    old0 = partCounts.getPart0();
+                    old1 = partCounts.getPart1();
+                }
+            }
+            long part0 = old0 + delta0;
+            long part1 = old1 + delta1;
+
+            if (!seen) {
+                addStats(part0, part1, 1);
+                context.getCounter(Counter.TRIGRAMS_ADDED).increment(1);
+            } else if (delta0 != 0 || delta1 != 0) {
+                addStats(old0, old1, -1); // out of its old r-buckets
+                addStats(part0, part1, 1);
+                context.getCounter(Counter.TRIGRAMS_CHANGED).increment(1);
+            } else {
+                context.getCounter(Counter.TRIGRAMS_UNCHANGED).increment(1);
+            }
+
+            counts.set(part0, part1);
+            multipleOutputs.write(COUNTS, key, counts, COUNTS + "/part");
+            total.set(part0 + part1);
+            multipleOutputs.write(Step2.TRIGRAMS, key, total);
+            metrics.out(2);
+        }
+
+        // what Step2.Map emits for a trigram, times sign
+        private void addStats(long part0, long part1, int sign) {
+            addStat(StatKey.N, part0, 0, sign);
+            addStat(StatKey.N, part1, 1, sign);
+            addStat(StatKey.T, part0, 0, sign * part1);
+            addStat(StatKey.T, part1, 1, sign * part0);
+        }
+
+        private void addStat(byte kind, long r, int part, long count) {
+            statKey.set(kind, r, part);
+            LongWritable sum = deltas.get(statKey);
+            if (sum == null) {
+                deltas.put(new StatKey(kind, r, part), new LongWritable(count));
+            } else {
+                sum.set(sum.get() + count);
+            }
+        }
+
+        @Override
+        protected void cleanup(Context context) throws IOException, InterruptedException {
+            for (java.util.Map.Entry<StatKey, LongWritable> entry : deltas.entrySet()) {
+                if (entry.getValue().get() != 0) {
+                    multipleOutputs.write(DELTAS, entry.getKey(), entry.getValue(), DELTAS + "/part");
+                    metrics.out();
+                }
+            }
+            metrics.report(context);
+            multipleOutputs.close();
+        }
+    }
+
+    /**
+     * Partitions on the trigram, like Step1.Partition.
+     */
+    public static class Partition extends Partitioner<TrigramKey, Value> {
+
+        @Override
+        public int getPartition(TrigramKey key, Value value, int numPartitions) {
+            return Math.abs(key.hashCode() % numPartitions);
+        }
+    }
+
+    /**
+     * Merge job from the counts of the previous version (null for the first one) and the Step1 output of the new
+     * files to the counts, trigrams and deltas of the new version in output.
+     */
+    static Job createMergeJob(Configuration conf, Path previousCounts, Path delta, Path output) throws IOException {
+        Job job = Job.getInstance(conf);
+        job.setJarByClass(Incremental.class);
+        if (previousCounts != null) {
+            MultipleInputs.addInputPath(job, previousCounts, SequenceFileInputFormat.class, PreviousMap.class);
+        }
+        MultipleInputs.addInputPath(job, delta, SequenceFileInputFormat.class, DeltaMap.class);
+        job.setReducerClass(MergeReduce.class);
+        job.setPartitionerClass(Partition.class);
+        job.setMapOutputKeyClass(TrigramKey.class);
+        job.setMapOutputValueClass(Value.class);
+        job.setOutputKeyClass(StatKey.class);
+        job.setOutputValueClass(LongWritable.class);
+        // everything goes to the named outputs
+        LazyOutputFormat.setOutputFormatClass(job, SequenceFileOutputFormat.class);
+        MultipleOutputs.addNamedOutput(job, COUNTS, SequenceFileOutputFormat.class, TrigramKey.class, PartCounts.class);
+        MultipleOutputs.addNamedOutput(job, Step2.TRIGRAMS, SequenceFileOutputFormat.class, TrigramKey.class, LongWritable.class);
+        MultipleOutputs.addNamedOutput(job, DELTAS, SequenceFileOutputFormat.class, StatKey.class, LongWritable.class);
+        MultipleOutputs.setCountersEnabled(job, true); // records per named output, in the report
+        FileOutputFormat.setOutputPath(job, output);
+        Compression.configure(job, "merge");
+        return job;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Configuration conf = new Configuration();
+        String[] paths = new GenericOptionsParser(conf, args).getRemainingArgs();
+        if (paths.length < 2) {
+            System.err.println("Usage: Incremental [-D key=value ...] <3-gram input file, dir or glob> <state dir> [stop words file]");
+            System.exit(2);
+        }
+        // a trigram that is rare in the new files can be frequent over all the versions, so nothing is pruned
+        conf.setLong(Step1.MIN_COUNT, 0);
+        Path state = new Path(paths[1]);
+        FileSystem fs = state.getFileSystem(conf);
+
+        Path previous = currentVersion(fs, state);
+        Set<String> inputs = previous == null ? new LinkedHashSet<String>() : readLines(fs, new Path(previous, INPUTS));
+        List<Path> newFiles = new ArrayList<>();
+        for (Path file : listFiles(new Path(paths[0]), conf)) {
+            if (inputs.add(file.toString())) {
+                newFiles.add(file);
+            }
+        }
+        if (newFiles.isEmpty()) {
+            System.out.println("No new input files, " + (previous == null ? "no version yet" : previous + " is up to date"));
+            return;
+        }
+
+        int number = previous == null ? 1 : Integer.parseInt(previous.getName().substring(1)) + 1;
+        Path version = new Path(state, String.format("v%04d", number));
+        Path work = new Path(state, version.getName() + ".work");
+        fs.delete(version, true); // left by a failed run
+        fs.delete(work, true);
+        System.out.println(newFiles.size() + " new input files -> " + version);
+        PipelineReport report = new PipelineReport();
+        Path reportPath = new Path(work, REPORT);
+
+        // the vocabulary and the counts of the new files only
+        Path dictionary = new Path(work, Dictionary.LINK_NAME);
+        Job vocabulary = Vocabulary.createJob(conf, newFiles.get(0), new Path(work, "Vocabulary"));
+        FileInputFormat.setInputPaths(vocabulary, newFiles.toArray(new Path[0]));
+        if (paths.length > 2) {
+            StopWords.addToJob(vocabulary, paths[2]);
+        }
+        run(vocabulary, "vocabulary", report, reportPath);
+        Vocabulary.writeDictionary(new Path(work, "Vocabulary"),
+                previous == null ? null : new Path(previous, Dictionary.LINK_NAME), dictionary, conf);
+
+        Configuration step1Conf = new Configuration(conf);
+        step1Conf.setBoolean(Step1.FUSED, false); // Merge needs the counts
+        Job step1 = Step1.createJob(step1Conf, newFiles.get(0), new Path(work, "Step1"));
+        FileInputFormat.setInputPaths(step1, newFiles.toArray(new Path[0]));
+        Dictionary.addToJob(step1, dictionary.toString());
+        run(step1, "step1", report, reportPath);
+
+        Job merge = createMergeJob(conf, previous == null ? null : new Path(previous, COUNTS), new Path(work, "Step1"), version);
+        run(merge, "merge", report, reportPath);
+        fs.rename(dictionary, new Path(version, Dictionary.LINK_NAME));
+        dictionary = new Path(version, Dictionary.LINK_NAME);
+        long changedBuckets = writeStats(previous, version, conf);
+        System.out.println(merge.getCounters().findCounter(Counter.TRIGRAMS_ADDED).getValue() + " trigrams added, "
+                + merge.getCounters().findCounter(Counter.TRIGRAMS_CHANGED).getValue() + " changed, "
+                + merge.getCounters().findCounter(Counter.TRIGRAMS_UNCHANGED).getValue() + " unchanged, "
+                + changedBuckets + " r-buckets changed");
+
+        Configuration step3Conf = new Configuration(conf);
+        step3Conf.setBoolean(Step3.BROADCAST, true); // the version holds more than the Step2 files
+        run(Step3.createJob(step3Conf, version, new Path(version, "Step3")), "step3", report, reportPath);
+        Job step4 = Step4.createJob(conf, new Path(version, "Step3"), new Path(version, "Step4"));
+        Dictionary.addToJob(step4, dictionary.toString());
+        run(step4, "step4", report, reportPath);
+        fs.rename(reportPath, new Path(version, REPORT));
+
+        try (FSDataOutputStream out = fs.create(new Path(version, INPUTS), true)) {
+            for (String input : inputs) {
+                out.write((input + "\n").getBytes(StandardCharsets.UTF_8));
+            }
+        }
+        try (FSDataOutputStream out = fs.create(new Path(state, CURRENT), true)) {
+            out.write((version.getName() + "\n").getBytes(StandardCharsets.UTF_8));
+        }
+        fs.delete(work, true);
+        System.out.println("Current version: " + version + ", output in " + new Path(version, "Step4"));
+    }
+
+    /**
+     * @return the directory of the current version, null if there is none yet
+     */
+    static Path currentVersion(FileSystem fs, Path state) throws IOException {
+        Path current = new Path(state, CURRENT);
+        if (!fs.exists(current)) {
+            return null;
+        }
+        return new Path(state, readLines(fs, current).iterator().next());
+    }
+
+    /**
+     * Adds the deltas of the version to the N/T table of the previous one and writes the table of the version.
+     * @return the number of r-buckets whose N_r^01 or T_r^01 changed - the probabilities that changed
+     */
+    private static long writeStats(Path previous, Path version, Configuration conf) throws IOException {
+        HashMap<StatKey, Long> stats = new HashMap<>();
+        StatTable before = new StatTable();
+        if (previous != null) {
+            for (Path part : glob(new Path(previous, "part-r-*"), conf)) {
+                before.load(part, conf);
+                add(stats, part, conf);
+            }
+        }
+        Set<Long> touched = new LinkedHashSet<>();
+        for (Path part : glob(new Path(version, DELTAS + "/part-r-*"), conf)) {
+            for (java.util.Map.Entry<StatKey, Long> delta : add(stats, part, conf).entrySet()) {
+                touched.add(delta.getKey().getR());
+            }
+        }
+
+        StatTable after = new StatTable();
+        try (SequenceFile.Writer writer = SequenceFile.createWriter(conf, SequenceFile.Writer.file(new Path(version, "part-r-00000")),
+                SequenceFile.Writer.keyClass(StatKey.class), SequenceFile.Writer.valueClass(LongWritable.class))) {
+            LongWritable value = new LongWritable();
+            for (java.util.Map.Entry<StatKey, Long> entry : stats.entrySet()) {
+                if (entry.getValue() != 0) { // a bucket that lost all its trigrams
+                    value.set(entry.getValue());
+                    writer.append(entry.getKey(), value);
+                    after.add(entry.getKey(), entry.getValue());
+                }
+            }
+        }
+        long changed = 0;
+        for (long r : touched) {
+            if (before.getN(r) != after.getN(r) || before.getT(r) != after.getT(r)) {
+                changed++;
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * Adds the records of a StatKey -> LongWritable file to stats.
+     * @return the records of the file
+     */
+    private static HashMap<StatKey, Long> add(HashMap<StatKey, Long> stats, Path file, Configuration conf) throws IOException {
+        HashMap<StatKey, Long> records = new HashMap<>();
+        StatKey key = new StatKey();
+        LongWritable value = new LongWritable();
+        try (SequenceFile.Reader reader = new SequenceFile.Reader(conf, SequenceFile.Reader.file(file))) {
+            while (reader.next(key, value)) {
+                StatKey copy = new StatKey(key.getKind(), key.getR(), key.getPart());
+                Long sum = stats.get(copy);
+                stats.put(copy, sum == null ? value.get() : sum + value.get());
+                records.put(copy, value.get());
+            }
+        }
+        return records;
+    }
+
+    /**
+     * @return the files of the input: the file itself, the files of a directory or the files matching a glob
+     */
+    private static List<Path> listFiles(Path input, Configuration conf) throws IOException {
+        FileSystem fs = input.getFileSystem(conf);
+        List<Path> files = new ArrayList<>();
+        FileStatus[] statuses = fs.globStatus(input);
+        if (statuses == null) {
+            return files;
+        }
+        for (FileStatus status : statuses) {
+            if (status.isDirectory()) {
+                for (FileStatus child : fs.listStatus(status.getPath())) {
+                    String name = child.getPath().getName();
+                    if (child.isFile() && !name.startsWith("_") && !name.startsWith(".")) {
+                        files.add(child.getPath());
+                    }
+                }
+            } else {
+                files.add(status.getPath());
+            }
+        }
+        return files;
+    }
+
+    private static List<Path> glob(Path pattern, Configuration conf) throws IOException {
+        List<Path> files = new ArrayList<>();
+        FileStatus[] statuses = pattern.getFileSystem(conf).globStatus(pattern);
+        if (statuses != null) {
+            for (FileStatus status : statuses) {
+                files.add(status.getPath());
+            }
+        }
+        return files;
+    }
+
+    static Set<String> readLines(FileSystem fs, Path file) throws IOException {
+        Set<String> lines = new LinkedHashSet<>();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(fs.open(file), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!line.isEmpty()) {
+                    lines.add(line);
+                }
+            }
+        }
+        return lines;
+    }
+
+    private static void run(Job job, String step, PipelineReport report, Path reportPath) throws Exception {
+        boolean success = report.run(job, step);
+        Compression.report(job, step);
+        report.write(reportPath, job.getConfiguration()); // after every job, so a failed run has one too
+        if (!success) {
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,104 @@
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapred.LocalJobRunner;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.MRConfig;
+import org.apache.hadoop.util.GenericOptionsParser;
+
+
+/**
+ * Runs the whole pipeline on this machine - no cluster, no HDFS and no S3 - with the same Map, Reduce, Partition
+ * and Comparison classes as on EMR: Vocabulary, Step1 (fused with Step2 unless step1.fused=false), Step3 and Step4.
+ * The jobs run in Hadoop's local job runner: the map tasks of a job run on a pool of threads, each one sorts its
+ * output in the sort buffer and spills it to local disk, and the reduce tasks merge the spills (external merge sort).
+ * <p>
+ * Usage: LocalRunner [-D key=value ...] <3-gram text input> <output dir> [stop words file]
+ * The output of StepN goes to <output dir>/StepN, the final text output is in <output dir>/Step4,
+ * the word counts to <output dir>/Vocabulary and the vocabulary file to <output dir>/vocabulary.txt.
+ * Useful keys:
+ * local.threads - map tasks and reduce tasks that run at once, and reduce tasks per job (default: the number of cores)
+ * mapreduce.cluster.local.dir - where the map output is spilled and merged (default: under hadoop.tmp.dir)
+ * mapreduce.task.io.sort.mb, mapreduce.task.io.sort.factor - the sort buffer of every map task and the merge width
+ * mapreduce.input.fileinputformat.split.maxsize - bytes of input per map task
+ * planner.enabled - size the jobs with Planner instead of running local.threads reducers (default false)
+ * step4.top.k - write only the K most probable w3 of every (w1, w2) (default 0: all of them)
+ * step1.min.count - drop the trigrams with fewer occurrences, first by a sketch of the counts (the TrigramSketch
+ * job, to <output dir>/Sketch and <output dir>/sketch.bin) and then exactly by the reducers of Step1 (default 0: none)
+ * step1.lower.orders - also write the bigram and unigram counts Scorer needs, to <output dir>/Step2/lower-r-*
+ * compress.map, compress.output, stepN.compress.map, stepN.compress.output - codecs, see Compression
+ * The counters, timings and reducer skew of every job are written to <output dir>/report.json, see PipelineReport.
+ */
+public class LocalRunner {
+    static final String THREADS = "local.threads";
+    private static final PipelineReport report = new PipelineReport();
+    private static Path reportPath;
+
+    public static void main(String[] args) throws Exception {
+        Configuration conf = new Configuration();
+        String[] paths = new GenericOptionsParser(conf, args).getRemainingArgs();
+        if (paths.length < 2) {
+            System.err.println("Usage: LocalRunner [-D key=value ...] <3-gram text input> <output dir> [stop words file]");
+            System.exit(2);
+        }
+        int threads = conf.getInt(THREADS, Runtime.getRuntime().availableProcessors());
+        conf.set(MRConfig.FRAMEWORK_NAME, MRConfig.LOCAL_FRAMEWORK_NAME);
+        conf.set("fs.defaultFS", "file:///");
+        conf.setInt(LocalJobRunner.LOCAL_MAX_MAPS, threads);
+        conf.setInt(LocalJobRunner.LOCAL_MAX_REDUCES, threads);
+        conf.setBoolean(Step1.FUSED, conf.getBoolean(Step1.FUSED, true));
+        conf.setBoolean(Step3.BROADCAST, conf.getBoolean(Step3.BROADCAST, true));
+        conf.setBoolean(InMapperAggregation.ENABLED, conf.getBoolean(InMapperAggregation.ENABLED, true));
+        boolean fused = conf.getBoolean(Step1.FUSED, true);
+
+        Path input = new Path(paths[0]);
+        Path output = new Path(paths[1]);
+        Path step2Output = new Path(output, "Step2");
+        reportPath = new Path(output, "report.json");
+
+        Path dictionary = new Path(output, Dictionary.LINK_NAME);
+
+        Job vocabulary = Vocabulary.createJob(conf, input, new Path(output, "Vocabulary"));
+        if (paths.length > 2) {
+            StopWords.addToJob(vocabulary, paths[2]);
+        }
+        run(vocabulary, "vocabulary", threads);
+        Vocabulary.writeDictionary(new Path(output, "Vocabulary"), dictionary, conf);
+
+        Path sketch = new Path(output, TrigramSketch.LINK_NAME);
+        if (conf.getLong(Step1.MIN_COUNT, 0) > 1) {
+            Job sketchJob = TrigramSketch.createJob(conf, input, new Path(output, "Sketch"));
+            Dictionary.addToJob(sketchJob, dictionary.toString());
+            run(sketchJob, "sketch", threads);
+            TrigramSketch.write(new Path(output, "Sketch"), sketch, conf);
+        }
+
+        Job step1 = Step1.createJob(conf, input, fused ? step2Output : new Path(output, "Step1"));
+        Dictionary.addToJob(step1, dictionary.toString());
+        if (conf.getLong(Step1.MIN_COUNT, 0) > 1) {
+            TrigramSketch.addToJob(step1, sketch.toString());
+        }
+        run(step1, "step1", threads);
+        conf.setLong(Step3.N, step1.getCounters().findCounter(Step1.Counter.OCCURRENCES).getValue());
+        if (!fused) {
+            run(Step2.createJob(conf, new Path(output, "Step1"), step2Output), "step2", threads);
+        }
+        run(Step3.createJob(conf, step2Output, new Path(output, "Step3")), "step3", threads);
+        Job step4 = Step4.createJob(conf, new Path(output, "Step3"), new Path(output, "Step4"));
+        Dictionary.addToJob(step4, dictionary.toString());
+        run(step4, "step4", threads);
+    }
+
+    private static void run(Job job, String step, int threads) throws Exception {
+        if (job.getConfiguration().getBoolean(Planner.ENABLED, false)) {
+            Planner.plan(job, step, 0);
+        } else if (job.getNumReduceTasks() > 0) {
+            job.setNumReduceTasks(threads);
+        }
+        boolean success = report.run(job, step);
+        Compression.report(job, step);
+        report.write(reportPath, job.getConfiguration()); // after every job, so a failed run has one too
+        if (!success) {
+            System.exit(1);
+        }
+    }
+}
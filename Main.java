@@ -11,10 +11,24 @@ public class Main {
     public static final EmrClient emrClient = EmrClient.builder().region(region).build();
 
     public static void main(String[]args){
+        boolean singleJar = true; // one step running Driver, which chains all the jobs of both languages itself
+        boolean fused = true; // Step1 also writes the output of Step2 (see Step1.FusedReduce)
         LinkedList<StepConfig> stepsConfigs = new LinkedList<>();
-        for(int i = 1; i <= 4; i++){
-            stepsConfigs.add(configureStep("s3://bucketurevich2/Step" + i + ".jar", "step" + i));
-         }
+        if(singleJar){
+            // the jar of the pipeline module, output in s3://bucketurevich2/output/<language>/
+            stepsConfigs.add(configureStep("s3://bucketurevich2/Pipeline.jar", "pipeline", "Driver",
+                    "-D", Driver.LANGUAGES + "=english,hebrew", "-D", Step1.FUSED + "=" + fused));
+        }
+        else{
+            // writes s3://bucketurevich2/vocabulary.txt, the word ids used by Step1 and Step4
+            stepsConfigs.add(configureStep("s3://bucketurevich2/Vocabulary.jar", "vocabulary"));
+            for(int i = 1; i <= 4; i++){
+                if(fused && i == 2){
+                    continue;
+                }
+                stepsConfigs.add(configureStep("s3://bucketurevich2/Step" + i + ".jar", "step" + i));
+             }
+        }
         JobFlowInstancesConfig instances = JobFlowInstancesConfig.builder()
                 .instanceCount(9)
                 .masterInstanceType(InstanceType.M4_LARGE.toString())
@@ -28,7 +42,7 @@ public class Main {
         RunJobFlowRequest request = RunJobFlowRequest.builder()
                 .name("3gram")
                 .instances(instances)
-                .steps(stepsConfigs.get(0),stepsConfigs.get(1),stepsConfigs.get(2),stepsConfigs.get(3))
+                .steps(stepsConfigs)
                 .logUri("s3n://bucketurevich2/")
                 .serviceRole("EMR_DefaultRole")
                 .jobFlowRole("EMR_EC2_DefaultRole")
@@ -40,9 +54,15 @@ public class Main {
         System.out.println("Ran job flow with id: " + id);
     }
     private static StepConfig configureStep(String pathInBucket, String stepName) {
+        return configureStep(pathInBucket, stepName, null);
+    }
+
+    private static StepConfig configureStep(String pathInBucket, String stepName, String mainClass, String... args) {
 
         HadoopJarStepConfig step = HadoopJarStepConfig.builder()
                 .jar(pathInBucket)
+                .mainClass(mainClass)
+                .args(args)
                 .build();
 
         StepConfig stepConfig = StepConfig.builder()
@@ -0,0 +1,171 @@
+import org.apache.hadoop.io.Text;
+
+
+/**
+ * One line of the Google 3-gram dataset, scanned as UTF-8 bytes without creating a String:
+ * 3-gram \t year \t occurrences \t pages \t books
+ * The words are separated by single spaces, words after the third one are ignored.
+ * One instance is reused for all the lines of a mapper.
+ */
+public class NgramLine {
+    private byte[] bytes;
+    private final int[] starts = new int[3];
+    private final int[] ends = new int[3];
+    private long occurrences;
+
+    /**
+     * @return false if the line doesn't have 5 fields, 3 words and a number of occurrences
+     */
+    public boolean parse(Text line) {
+        bytes = line.getBytes();
+        int length = line.getLength();
+
+        int tab1 = indexOf(bytes, 0, length, '\t');
+        if (tab1 < 0)
+            return false;
+        int tab2 = indexOf(bytes, tab1 + 1, length, '\t');
+        if (tab2 < 0)
+            return false;
+        int tab3 = indexOf(bytes, tab2 + 1, length, '\t');
+        if (tab3 < 0 || indexOf(bytes, tab3 + 1, length, '\t') < 0)
+            return false;
+
+        int space1 = indexOf(bytes, 0, tab1, ' ');
+        if (space1 < 0)
+            return false;
+        int space2 = indexOf(bytes, space1 + 1, tab1, ' ');
+        if (space2 < 0)
+            return false;
+        int space3 = indexOf(bytes, space2 + 1, tab1, ' ');
+        starts[0] = 0;
+        ends[0] = space1;
+        starts[1] = space1 + 1;
+        ends[1] = space2;
+        starts[2] = space2 + 1;
+        ends[2] = space3 < 0 ? tab1 : space3;
+
+        occurrences = parseLong(bytes, tab2 + 1, tab3);
+        return occurrences >= 0;
+    }
+
+    public byte[] getBytes() {
+        return bytes;
+    }
+
+    /**
+     * @param word 0, 1 or 2
+     */
+    public int getStart(int word) {
+        return starts[word];
+    }
+
+    public int getEnd(int word) {
+        return ends[word];
+    }
+
+    public long getOccurrences() {
+        return occurrences;
+    }
+
+    /**
+     * @return true if one of the 3 words is empty or has a char that is not a letter
+     */
+    public boolean hasNonLetterWord() {
+        for (int i = 0; i < 3; i++) {
+            if (isntLetter(bytes, starts[i], ends[i])) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return true if one of the 3 words is a stop word
+     */
+    public boolean hasStopWord(StopWords stopWords) {
+        for (int i = 0; i < 3; i++) {
+            if (stopWords.contains(bytes, starts[i], ends[i])) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the index of b in bytes[from, to), or -1
+     */
+    static int indexOf(byte[] bytes, int from, int to, char b) {
+        for (int i = from; i < to; i++) {
+            if (bytes[i] == b) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Same as checking Character.isLetter on every char of the decoded word.
+     * 4 byte sequences decode to surrogate pairs, which are never letters, and invalid UTF-8 decodes to U+FFFD.
+     */
+    static boolean isntLetter(byte[] bytes, int start, int end) {
+        if (start >= end) {
+            return true;
+        }
+        int i = start;
+        while (i < end) {
+            int b = bytes[i] & 0xFF;
+            if (b < 0x80) {
+                if ((b | 0x20) < 'a' || (b | 0x20) > 'z') {
+                    return true;
+                }
+                i++;
+                continue;
+            }
+            int size, codePoint, min;
+            if ((b & 0xE0) == 0xC0) {
+                size = 2;
+                codePoint = b & 0x1F;
+                min = 0x80;
+            } else if ((b & 0xF0) == 0xE0) {
+                size = 3;
+                codePoint = b & 0x0F;
+                min = 0x800;
+            } else {
+                return true;
+            }
+            if (i + size > end) {
+                return true;
+            }
+            for (int j = 1; j < size; j++) {
+                int c = bytes[i + j] & 0xFF;
+                if ((c & 0xC0) != 0x80) {
+                    return true;
+                }
+                codePoint = (codePoint << 6) | (c & 0x3F);
+            }
+            if (codePoint < min || !Character.isLetter(codePoint)) {
+                return true;
+            }
+            i += size;
+        }
+        return false;
+    }
+
+    /**
+     * @return the non-negative decimal number in bytes[start, end), or -1 if it isn't one
+     */
+    static long parseLong(byte[] bytes, int start, int end) {
+        if (start >= end || end - start > 18) {
+            return -1;
+        }
+        long result = 0;
+        for (int i = start; i < end; i++) {
+            int digit = bytes[i] - '0';
+            if (digit < 0 || digit > 9) {
+                return -1;
+            }
+            result = result * 10 + digit;
+        }
+        return result;
+    }
+}
@@ -0,0 +1,116 @@
+import org.apache.hadoop.io.WritableComparable;
+import org.apache.hadoop.io.WritableComparator;
+import org.apache.hadoop.io.WritableUtils;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+
+/**
+ * Occurrences of a trigram in each half of the corpus: <part0, part1>.
+ * Serialized as two vlongs.
+ */
+public class PartCounts implements WritableComparable<PartCounts> {
+    private long part0;
+    private long part1;
+
+    public PartCounts() {
+    }
+
+    public PartCounts(long part0, long part1) {
+        set(part0, part1);
+    }
+
+    public void set(long part0, long part1) {
+        this.part0 = part0;
+        this.part1 = part1;
+    }
+
+    public long getPart0() {
+        return part0;
+    }
+
+    public long getPart1() {
+        return part1;
+    }
+
+    public long getTotal() {
+        return part0 + part1;
+    }
+
+    /**
+     * @return the number of bytes written by write()
+     */
+    public int getSerializedSize() {
+        return WritableUtils.getVIntSize(part0) + WritableUtils.getVIntSize(part1);
+    }
+
+    @Override
+    public void write(DataOutput out) throws IOException {
+        WritableUtils.writeVLong(out, part0);
+        WritableUtils.writeVLong(out, part1);
+    }
+
+    @Override
+    public void readFields(DataInput in) throws IOException {
+        part0 = WritableUtils.readVLong(in);
+        part1 = WritableUtils.readVLong(in);
+    }
+
+    @Override
+    public int compareTo(PartCounts other) {
+        int compareResult = Long.compare(part0, other.part0);
+        if (compareResult != 0) {
+            return compareResult;
+        }
+        return Long.compare(part1, other.part1);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof PartCounts)) {
+            return false;
+        }
+        PartCounts other = (PartCounts) o;
+        return part0 == other.part0 && part1 == other.part1;
+    }
+
+    @Override
+    public int hashCode() {
+        return Long.hashCode(part0) * 31 + Long.hashCode(part1);
+    }
+
+    @Override
+    public String toString() {
+        return part0 + "," + part1;
+    }
+
+    /**
+     * Compares the serialized vlongs without deserializing the object.
+     */
+    public static class Comparator extends WritableComparator {
+        public Comparator() {
+            super(PartCounts.class);
+        }
+
+        @Override
+        public int compare(byte[] b1, int s1, int l1, byte[] b2, int s2, int l2) {
+            try {
+                int compareResult = Long.compare(readVLong(b1, s1), readVLong(b2, s2));
+                if (compareResult != 0) {
+                    return compareResult;
+                }
+                s1 += WritableUtils.decodeVIntSize(b1[s1]);
+                s2 += WritableUtils.decodeVIntSize(b2[s2]);
+                return Long.compare(readVLong(b1, s1), readVLong(b2, s2));
+            } catch (IOException e) {
+                throw new IllegalArgumentException(e);
+            }
+        }
+    }
+
+    static {
+        WritableComparator.define(PartCounts.class, new Comparator());
+    }
+}
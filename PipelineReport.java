@@ -0,0 +1,213 @@
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapreduce.Counter;
+import org.apache.hadoop.mapreduce.CounterGroup;
+import org.apache.hadoop.mapreduce.Counters;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.TaskCounter;
+import org.apache.hadoop.mapreduce.TaskReport;
+import org.apache.hadoop.mapreduce.TaskType;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+
+/**
+ * One machine-readable (JSON) report per run of the pipeline, collected by the driver from the jobs it runs:
+ * {"steps": [...], "wallMillis": <whole run>}, and for every step:
+ * step, job id, success, wallMillis (measured around waitForCompletion),
+ * summary - records in and out of the map and reduce phases, map output bytes per record, shuffle bytes,
+ * spilled records (more than the map output records means the spills were merged in more than one pass),
+ * CPU and GC time,
+ * reducers - skew of the reduce tasks: count and min / mean / max of their input records, shuffle bytes and
+ * milliseconds, with max / mean. Built from the task reports, which the local job runner doesn't keep,
+ * so it is null for LocalRunner runs.
+ * counters - every counter of the job by group, including the StageMetrics groups of every Map/Combine/Reduce class,
+ * RecordCounters and ShuffleCounters.
+ */
+public class PipelineReport {
+    private final long start = System.currentTimeMillis();
+    private final StringBuilder steps = new StringBuilder();
+
+    /**
+     * Runs the job and adds it to the report.
+     * @return true if the job succeeded
+     */
+    public boolean run(Job job, String step) throws IOException, InterruptedException, ClassNotFoundException {
+        return run(job, step, true);
+    }
+
+    /**
+     * Same, printing the progress of the job only if verbose.
+     */
+    public boolean run(Job job, String step, boolean verbose) throws IOException, InterruptedException, ClassNotFoundException {
+        long jobStart = System.currentTimeMillis();
+        boolean success = job.waitForCompletion(verbose);
+        add(job, step, success, System.currentTimeMillis() - jobStart);
+        return success;
+    }
+
+    public void add(Job job, String step, boolean success, long wallMillis) throws IOException, InterruptedException {
+        Counters counters = job.getCounters();
+        Json json = new Json();
+        json.begin().field("step", step).field("job", job.getJobID() == null ? null : job.getJobID().toString())
+                .field("success", success).field("wallMillis", wallMillis);
+        if (counters != null) {
+            long mapOutputRecords = value(counters, TaskCounter.MAP_OUTPUT_RECORDS);
+            json.key("summary").begin()
+                    .field("mapInputRecords", value(counters, TaskCounter.MAP_INPUT_RECORDS))
+                    .field("mapOutputRecords", mapOutputRecords)
+                    .field("mapOutputBytesPerRecord", mapOutputRecords == 0 ? 0 : (double) value(counters, TaskCounter.MAP_OUTPUT_BYTES) / mapOutputRecords)
+                    .field("combineInputRecords", value(counters, TaskCounter.COMBINE_INPUT_RECORDS))
+                    .field("combineOutputRecords", value(counters, TaskCounter.COMBINE_OUTPUT_RECORDS))
+                    .field("spilledRecords", value(counters, TaskCounter.SPILLED_RECORDS))
+                    .field("shuffleBytes", value(counters, TaskCounter.REDUCE_SHUFFLE_BYTES))
+                    .field("reduceInputGroups", value(counters, TaskCounter.REDUCE_INPUT_GROUPS))
+                    .field("reduceInputRecords", value(counters, TaskCounter.REDUCE_INPUT_RECORDS))
+                    .field("reduceOutputRecords", value(counters, TaskCounter.REDUCE_OUTPUT_RECORDS))
+                    .field("cpuMillis", value(counters, TaskCounter.CPU_MILLISECONDS))
+                    .field("gcMillis", value(counters, TaskCounter.GC_TIME_MILLIS))
+                    .end();
+        }
+        json.key("reducers");
+        reducers(job, json);
+        json.key("counters");
+        if (counters == null) {
+            json.value(null);
+        } else {
+            json.begin();
+            for (CounterGroup group : counters) {
+                json.key(group.getName()).begin();
+                for (Counter counter : group) {
+                    json.field(counter.getName(), counter.getValue());
+                }
+                json.end();
+            }
+            json.end();
+        }
+        json.end();
+        if (steps.length() > 0) {
+            steps.append(",\n");
+        }
+        steps.append("    ").append(json);
+    }
+
+    private static void reducers(Job job, Json json) throws IOException, InterruptedException {
+        TaskReport[] reports = job.getNumReduceTasks() == 0 ? new TaskReport[0] : job.getTaskReports(TaskType.REDUCE);
+        if (reports.length == 0) {
+            json.value(null);
+            return;
+        }
+        long[] records = new long[reports.length];
+        long[] shuffleBytes = new long[reports.length];
+        long[] millis = new long[reports.length];
+        for (int i = 0; i < reports.length; i++) {
+            records[i] = value(reports[i].getTaskCounters(), TaskCounter.REDUCE_INPUT_RECORDS);
+            shuffleBytes[i] = value(reports[i].getTaskCounters(), TaskCounter.REDUCE_SHUFFLE_BYTES);
+            millis[i] = Math.max(0, reports[i].getFinishTime() - reports[i].getStartTime());
+        }
+        json.begin().field("count", reports.length);
+        skew(json, "inputRecords", records);
+        skew(json, "shuffleBytes", shuffleBytes);
+        skew(json, "millis", millis);
+        json.end();
+    }
+
+    private static void skew(Json json, String name, long[] values) {
+        long min = Long.MAX_VALUE, max = 0, sum = 0;
+        for (long value : values) {
+            min = Math.min(min, value);
+            max = Math.max(max, value);
+            sum += value;
+        }
+        double mean = (double) sum / values.length;
+        json.key(name).begin().field("min", min).field("mean", mean).field("max", max)
+                .field("maxOverMean", mean == 0 ? 0 : max / mean).end();
+    }
+
+    private static long value(Counters counters, TaskCounter counter) {
+        return counters == null ? 0 : counters.findCounter(counter).getValue();
+    }
+
+    public String toJson() {
+        return "{\n  \"steps\": [\n" + steps + "\n  ],\n  \"wallMillis\": " + (System.currentTimeMillis() - start) + "\n}\n";
+    }
+
+    /**
+     * Writes the report to any Hadoop path (e.g. on S3).
+     */
+    public void write(Path path, Configuration conf) throws IOException {
+        try (FSDataOutputStream out = path.getFileSystem(conf).create(path, true)) {
+            out.write(toJson().getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    /**
+     * Just enough of a JSON writer for the report: objects, strings, numbers and booleans on one line.
+     */
+    private static class Json {
+        private final StringBuilder out = new StringBuilder();
+        private boolean first = true;
+
+        Json begin() {
+            out.append('{');
+            first = true;
+            return this;
+        }
+
+        Json end() {
+            out.append('}');
+            first = false;
+            return this;
+        }
+
+        Json key(String key) {
+            if (!first) {
+                out.append(", ");
+            }
+            string(key);
+            out.append(": ");
+            first = true; // the value follows without a comma
+            return this;
+        }
+
+        Json value(Object value) {
+            if (value == null) {
+                out.append("null");
+            } else if (value instanceof String) {
+                string((String) value);
+            } else if (value instanceof Double && (((Double) value).isNaN() || ((Double) value).isInfinite())) {
+                out.append("null");
+            } else {
+                out.append(value);
+            }
+            first = false;
+            return this;
+        }
+
+        Json field(String key, Object value) {
+            return key(key).value(value);
+        }
+
+        private void string(String s) {
+            out.append('"');
+            for (int i = 0; i < s.length(); i++) {
+                char c = s.charAt(i);
+                if (c == '"' || c == '\\') {
+                    out.append('\\').append(c);
+                } else if (c < 0x20) {
+                    out.append(String.format("\\u%04x", (int) c));
+                } else {
+                    out.append(c);
+                }
+            }
+            out.append('"');
+        }
+
+        @Override
+        public String toString() {
+            return out.toString();
+        }
+    }
+}
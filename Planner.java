@@ -0,0 +1,459 @@
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.WritableComparable;
+import org.apache.hadoop.io.WritableUtils;
+import org.apache.hadoop.mapred.LocalJobRunner;
+import org.apache.hadoop.mapreduce.Cluster;
+import org.apache.hadoop.mapreduce.ClusterMetrics;
+import org.apache.hadoop.mapreduce.InputFormat;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.MRConfig;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.TaskAttemptID;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.apache.hadoop.mapreduce.lib.partition.TotalOrderPartitioner;
+import org.apache.hadoop.mapreduce.task.TaskAttemptContextImpl;
+import org.apache.hadoop.util.ReflectionUtils;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+
+/**
+ * Sizes a job from a sample of its input just before it is submitted, instead of leaving Hadoop's defaults:
+ * the split size (how many map tasks), the number of reducers and, for the sort-heavy Step4 and Step3 (when it
+ * shuffles, step3.broadcast=false), a TotalOrderPartitioner range file that gives every reducer about as many records.
+ * <p>
+ * The sample is the first records of up to planner.sample.splits splits spread over the input - like
+ * InputSampler.SplitSampler, but with the values, which hold the 3-gram line of the datasets and the r of Step3.
+ * Every sampled record is turned into what the mapper of the step would write: its reduce group (a word, a trigram,
+ * an r bucket, a (w1, w2) pair) and its map output bytes, 0 if the mapper drops it. From that:
+ * records - the input bytes over the bytes on disk of the sampled records (so compressed input is counted right),
+ * map output - records times the map output bytes per sampled record,
+ * groups - the distinct reduce groups, estimated with GEE: sqrt(records / sampled) * groups seen once + the others,
+ * shuffle - the map output, or with a combiner at most the groups of every map task,
+ * skew - the largest share of the sample in one group.
+ * Reducers: shuffle / planner.bytes.per.reducer, rounded up to whole waves of reduce slots.
+ * Map tasks: whole waves of map slots, with splits of at least planner.split.min bytes.
+ * The range file cuts the sorted sample into equal parts, at group boundaries, so no group is split between reducers;
+ * Step3 also splits every r holding more than half a reducer's share (step3.skew.hot.r) before it is cut.
+ * <p>
+ * Keys: planner.enabled (Driver turns it on), planner.map.slots and planner.reduce.slots (default: the capacity the
+ * cluster reports - YARN reports 10 map and 2 reduce slots per node), planner.bytes.per.reducer (default 512 MB),
+ * planner.split.min (default 128 MB), planner.samples (default 20000), planner.sample.splits (default 20).
+ * Every decision is printed, one line per job.
+ */
+public class Planner {
+    public static final String ENABLED = "planner.enabled";
+    static final String MAP_SLOTS = "planner.map.slots";
+    static final String REDUCE_SLOTS = "planner.reduce.slots";
+    static final String BYTES_PER_REDUCER = "planner.bytes.per.reducer";
+    static final String SPLIT_MIN = "planner.split.min";
+    static final String SAMPLES = "planner.samples";
+    static final String SAMPLE_SPLITS = "planner.sample.splits";
+
+    /**
+     * Plans the job of step (vocabulary, sketch, step1, step2, step3, step4) and sets it up.
+     * @param reducers the number of reducers to use, or 0 to choose it
+     */
+    static void plan(Job job, String step, int reducers) throws IOException, InterruptedException, ClassNotFoundException {
+        Configuration conf = job.getConfiguration();
+        int mapSlots = conf.getInt(MAP_SLOTS, 0);
+        int reduceSlots = conf.getInt(REDUCE_SLOTS, 0);
+        if (mapSlots <= 0 || reduceSlots <= 0) {
+            int[] capacity = capacity(conf);
+            mapSlots = mapSlots > 0 ? mapSlots : capacity[0];
+            reduceSlots = reduceSlots > 0 ? reduceSlots : capacity[1];
+        }
+
+        Sample sample = sample(job, probe(job, step));
+        long inputBytes = inputBytes(job);
+        double records = sample.consumedBytes == 0 ? sample.records : (double) inputBytes * sample.records / sample.consumedBytes;
+        double scale = sample.records == 0 ? 0 : records / sample.records;
+        double mapOutputBytes = sample.outputBytes * scale;
+        double groups = sample.groups(scale);
+
+        long splitMin = conf.getLong(SPLIT_MIN, 128L << 20);
+        long waves = Math.max(1, (inputBytes + mapSlots * splitMin - 1) / (mapSlots * splitMin));
+        long splitSize = Math.max(splitMin, (inputBytes + waves * mapSlots - 1) / (waves * mapSlots));
+        FileInputFormat.setMinInputSplitSize(job, splitSize);
+        FileInputFormat.setMaxInputSplitSize(job, splitSize);
+        long maps = Math.max(1, (inputBytes + splitSize - 1) / splitSize);
+
+        double shuffleBytes = mapOutputBytes;
+        if (job.getCombinerClass() != null && sample.groupCount > 0) {
+            shuffleBytes = Math.min(shuffleBytes, maps * groups * sample.outputBytes / sample.groupCount);
+        }
+        StringBuilder decisions = new StringBuilder(String.format(
+                "%s plan: %d input bytes, ~%.0f records, ~%.0f map output bytes, ~%.0f groups (largest %.1f%% of the sample), ~%.0f shuffle bytes; %d map tasks of %d bytes",
+                step, inputBytes, records, mapOutputBytes, groups, 100 * sample.largestShare(), shuffleBytes, maps, splitSize));
+
+        if (job.getNumReduceTasks() > 0) {
+            if (reducers <= 0) {
+                reducers = (int) Math.max(1, Math.ceil(shuffleBytes / conf.getLong(BYTES_PER_REDUCER, 512L << 20)));
+                if (reducers > reduceSlots) {
+                    reducers = (reducers + reduceSlots - 1) / reduceSlots * reduceSlots;
+                }
+            }
+            if (step.equals("step3") && reducers > 1) {
+                long hotR = sample.hotR(reducers);
+                conf.setLong(Step3.SKEW_HOT_R, hotR);
+                conf.setInt(Step3.SKEW_SPLITS, reducers);
+                decisions.append(", r <= ").append(hotR).append(" split over ").append(reducers).append(" sub-buckets");
+                sample.splitHotR(hotR, Math.min(reducers, Byte.MAX_VALUE));
+            }
+            if ((step.equals("step3") || step.equals("step4")) && reducers > 1) {
+                long[] cuts = sample.cuts(reducers);
+                reducers = cuts.length + 1;
+                if (reducers > 1) {
+                    Path file = writeRanges(job, step, cuts);
+                    decisions.append(", total order over ").append(file);
+                }
+            }
+            job.setNumReduceTasks(reducers);
+            decisions.append(", ").append(reducers).append(" reducers");
+        }
+        System.out.println(decisions);
+    }
+
+    /**
+     * @return {map slots, reduce slots} of the cluster (of the local job runner in local mode)
+     */
+    private static int[] capacity(Configuration conf) {
+        if (MRConfig.LOCAL_FRAMEWORK_NAME.equals(conf.get(MRConfig.FRAMEWORK_NAME, MRConfig.LOCAL_FRAMEWORK_NAME))) {
+            return new int[]{conf.getInt(LocalJobRunner.LOCAL_MAX_MAPS, 1), conf.getInt(LocalJobRunner.LOCAL_MAX_REDUCES, 1)};
+        }
+        try {
+            Cluster cluster = new Cluster(conf);
+            try {
+                ClusterMetrics metrics = cluster.getClusterStatus();
+                return new int[]{Math.max(1, metrics.getMapSlotCapacity()), Math.max(1, metrics.getReduceSlotCapacity())};
+            } finally {
+                cluster.close();
+            }
+        } catch (IOException | InterruptedException e) {
+            System.err.println("No cluster metrics (" + e + "), planning for 1 slot - set " + MAP_SLOTS + " and " + REDUCE_SLOTS);
+            return new int[]{1, 1};
+        }
+    }
+
+    private static long inputBytes(Job job) throws IOException {
+        long bytes = 0;
+        for (Path path : FileInputFormat.getInputPaths(job)) {
+            FileSystem fs = path.getFileSystem(job.getConfiguration());
+            FileStatus[] matches = fs.globStatus(path);
+            if (matches == null) {
+                continue;
+            }
+            for (FileStatus match : matches) {
+                bytes += fs.getContentSummary(match.getPath()).getLength();
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Reads the first records of splits spread evenly over the input of the job.
+     */
+    @SuppressWarnings("unchecked")
+    private static Sample sample(Job job, Probe probe) throws IOException, InterruptedException, ClassNotFoundException {
+        Configuration conf = job.getConfiguration();
+        Sample sample = new Sample();
+        InputFormat<Object, Object> inputFormat = (InputFormat<Object, Object>) ReflectionUtils.newInstance(job.getInputFormatClass(), conf);
+        List<InputSplit> splits = inputFormat.getSplits(job);
+        int sampleSplits = Math.min(splits.size(), conf.getInt(SAMPLE_SPLITS, 20));
+        if (sampleSplits == 0) {
+            return sample;
+        }
+        int perSplit = Math.max(1, conf.getInt(SAMPLES, 20000) / sampleSplits);
+        for (int i = 0; i < sampleSplits; i++) {
+            InputSplit split = splits.get((int) ((long) i * splits.size() / sampleSplits));
+            TaskAttemptContext context = new TaskAttemptContextImpl(conf, new TaskAttemptID());
+            try (RecordReader<Object, Object> reader = inputFormat.createRecordReader(split, context)) {
+                reader.initialize(split, context);
+                int read = 0;
+                while (read < perSplit && reader.nextKeyValue()) {
+                    probe.probe(reader.getCurrentKey(), reader.getCurrentValue(), sample);
+                    read++;
+                }
+                sample.records += read;
+                sample.consumedBytes += (long) (reader.getProgress() * split.getLength());
+            }
+        }
+        return sample;
+    }
+
+    /**
+     * Writes the cut points as keys of the step at the first key of their group,
+     * next to the output of the job (e.g. Step4.partitions for Step4).
+     */
+    private static Path writeRanges(Job job, String step, long[] cuts) throws IOException {
+        Path output = FileOutputFormat.getOutputPath(job);
+        Configuration conf = job.getConfiguration();
+        Path file = output.getFileSystem(conf).makeQualified(new Path(output.getParent(), output.getName() + ".partitions"));
+        WritableComparable<?> key;
+        if (step.equals("step3")) {
+            key = new StatKey();
+        } else {
+            key = new ProbabilityKey();
+        }
+        try (SequenceFile.Writer writer = SequenceFile.createWriter(conf, SequenceFile.Writer.file(file),
+                SequenceFile.Writer.keyClass(key.getClass()), SequenceFile.Writer.valueClass(NullWritable.class))) {
+            for (long cut : cuts) {
+                if (key instanceof StatKey) {
+                    ((StatKey) key).set(StatKey.N, cut >>> 8, (int) (cut & 0xFF)); // N comes first in a bucket
+                } else {
+                    ((ProbabilityKey) key).set((int) (cut >>> 32), (int) cut, Double.POSITIVE_INFINITY); // sorted first
+                }
+                writer.append(key, NullWritable.get());
+            }
+        }
+        TotalOrderPartitioner.setPartitionFile(conf, file);
+        job.setPartitionerClass(TotalOrderPartitioner.class);
+        return file;
+    }
+
+    /**
+     * What the mapper of the step would write for one input record.
+     */
+    private interface Probe {
+        void probe(Object key, Object value, Sample sample);
+    }
+
+    private static Probe probe(Job job, String step) throws IOException {
+        switch (step) {
+            case "vocabulary":
+                return new NgramProbe(null, StopWords.fromCache(job));
+            case "sketch": // the same input and filter as step1
+            case "step1":
+                return new NgramProbe(Dictionary.fromCache(job), null);
+            case "step2":
+                return new Probe() {
+                    @Override
+                    public void probe(Object key, Object value, Sample sample) {
+                        PartCounts counts = (PartCounts) value;
+                        // <N, r, part> -> 1 for both parts, the T records are about as many
+                        sample.add(counts.getPart0() << 1, 2 * (2 + WritableUtils.getVIntSize(counts.getPart0()) + 8));
+                        sample.add(counts.getPart1() << 1 | 1, 2 * (2 + WritableUtils.getVIntSize(counts.getPart1()) + 8));
+                    }
+                };
+            case "step3":
+                return new Probe() {
+                    @Override
+                    public void probe(Object key, Object value, Sample sample) {
+                        if (key instanceof TrigramKey) {
+                            long r = ((LongWritable) value).get();
+                            TrigramKey trigram = (TrigramKey) key;
+                            sample.add(r << 8, 2 + WritableUtils.getVIntSize(r) + 1 + trigram.getSerializedSize());
+                            sample.hashes.add(trigram.hashCode());
+                        }
+                    }
+                };
+            case "step4":
+                final Dictionary dictionary = Dictionary.fromCache(job);
+                return new Probe() {
+                    @Override
+                    public void probe(Object key, Object value, Sample sample) {
+                        TrigramKey trigram = (TrigramKey) key;
+                        int w1 = dictionary.rank(trigram.getW1());
+                        int w2 = dictionary.rank(trigram.getW2());
+                        sample.add((long) w1 << 32 | w2, WritableUtils.getVIntSize(w1) + WritableUtils.getVIntSize(w2) + 8
+                                + WritableUtils.getVIntSize(trigram.getW3()));
+                    }
+                };
+            default:
+                throw new IllegalArgumentException("No plan for " + step);
+        }
+    }
+
+    /**
+     * The 3-gram lines: the words of the lines Vocabulary.Map keeps (dictionary null),
+     * or the trigrams Step1.Map writes (stopWords null).
+     */
+    private static class NgramProbe implements Probe {
+        private final Dictionary dictionary;
+        private final StopWords stopWords;
+        private final NgramLine line = new NgramLine();
+        private final TrigramKey trigram = new TrigramKey();
+        private final PartCounts counts = new PartCounts();
+
+        NgramProbe(Dictionary dictionary, StopWords stopWords) {
+            this.dictionary = dictionary;
+            this.stopWords = stopWords;
+        }
+
+        @Override
+        public void probe(Object key, Object value, Sample sample) {
+            if (!line.parse((Text) value)) {
+                return;
+            }
+            byte[] bytes = line.getBytes();
+            if (dictionary == null) {
+                if (line.hasNonLetterWord() || line.hasStopWord(stopWords)) {
+                    return;
+                }
+                for (int i = 0; i < 3; i++) {
+                    int length = line.getEnd(i) - line.getStart(i);
+                    sample.add(hash(bytes, line.getStart(i), line.getEnd(i)), 1 + length + 8);
+                }
+                return;
+            }
+            int[] ids = new int[3];
+            for (int i = 0; i < 3; i++) {
+                ids[i] = dictionary.id(bytes, line.getStart(i), line.getEnd(i));
+                if (ids[i] < 0) {
+                    return;
+                }
+            }
+            trigram.set(ids[0], ids[1], ids[2]);
+            counts.set(line.getOccurrences(), 0);
+            sample.add(((ids[0] * 0x9E3779B97F4A7C15L) + ids[1]) * 0x9E3779B97F4A7C15L + ids[2],
+                    trigram.getSerializedSize() + counts.getSerializedSize());
+        }
+
+        // FNV-1a, 64 bits - only the number of distinct words is used
+        private static long hash(byte[] bytes, int start, int end) {
+            long hash = 0xcbf29ce484222325L;
+            for (int i = start; i < end; i++) {
+                hash = (hash ^ (bytes[i] & 0xFF)) * 0x100000001b3L;
+            }
+            return hash;
+        }
+    }
+
+    /**
+     * The reduce groups of the sampled records, as longs that sort like the map output keys of Step3
+     * (r << 8 | sub-bucket) and Step4 (w1 rank << 32 | w2 rank).
+     */
+    private static class Sample {
+        private long records = 0;
+        private long consumedBytes = 0;
+        private long outputBytes = 0;
+        private long[] groups = new long[1024];
+        private int groupCount = 0;
+        private final IntList hashes = new IntList(); // Step3: hashCode of the trigram of every group
+
+        void add(long group, int bytes) {
+            if (groupCount == groups.length) {
+                groups = Arrays.copyOf(groups, groupCount * 2);
+            }
+            groups[groupCount++] = group;
+            outputBytes += bytes;
+        }
+
+        /**
+         * GEE estimate of the distinct groups in the whole input.
+         */
+        double groups(double scale) {
+            long[] sorted = Arrays.copyOf(groups, groupCount);
+            Arrays.sort(sorted);
+            long once = 0, more = 0;
+            for (int i = 0; i < sorted.length; ) {
+                int j = i + 1;
+                while (j < sorted.length && sorted[j] == sorted[i]) {
+                    j++;
+                }
+                if (j - i == 1) {
+                    once++;
+                } else {
+                    more++;
+                }
+                i = j;
+            }
+            return Math.sqrt(Math.max(1, scale)) * once + more;
+        }
+
+        double largestShare() {
+            long[] sorted = Arrays.copyOf(groups, groupCount);
+            Arrays.sort(sorted);
+            int largest = 0;
+            for (int i = 0; i < sorted.length; ) {
+                int j = i + 1;
+                while (j < sorted.length && sorted[j] == sorted[i]) {
+                    j++;
+                }
+                largest = Math.max(largest, j - i);
+                i = j;
+            }
+            return groupCount == 0 ? 0 : (double) largest / groupCount;
+        }
+
+        /**
+         * Step3: the largest r holding more than half of the share of one of the reducers, 0 if none does.
+         */
+        long hotR(int reducers) {
+            long[] sorted = Arrays.copyOf(groups, groupCount);
+            Arrays.sort(sorted);
+            long hotR = 0;
+            for (int i = 0; i < sorted.length; ) {
+                int j = i + 1;
+                while (j < sorted.length && sorted[j] == sorted[i]) {
+                    j++;
+                }
+                if ((j - i) * 2L * reducers > groupCount) {
+                    hotR = sorted[i] >>> 8;
+                }
+                i = j;
+            }
+            return hotR;
+        }
+
+        /**
+         * Step3: spreads the trigrams of every r <= hotR over sub-buckets, as Step3.Map does.
+         */
+        void splitHotR(long hotR, int splits) {
+            for (int i = 0; i < groupCount; i++) {
+                if (groups[i] >>> 8 <= hotR) {
+                    groups[i] |= (hashes.get(i) & Integer.MAX_VALUE) % splits;
+                }
+            }
+        }
+
+        /**
+         * @return up to reducers - 1 increasing groups that cut the sorted sample into parts of the same size
+         */
+        long[] cuts(int reducers) {
+            long[] sorted = Arrays.copyOf(groups, groupCount);
+            Arrays.sort(sorted);
+            List<Long> cuts = new ArrayList<>();
+            for (int i = 1; i < reducers && sorted.length > 0; i++) {
+                long cut = sorted[(int) ((long) i * sorted.length / reducers)];
+                if (cut > sorted[0] && (cuts.isEmpty() || cut > cuts.get(cuts.size() - 1))) {
+                    cuts.add(cut);
+                }
+            }
+            long[] result = new long[cuts.size()];
+            for (int i = 0; i < result.length; i++) {
+                result[i] = cuts.get(i);
+            }
+            return result;
+        }
+    }
+
+    private static class IntList {
+        private int[] values = new int[1024];
+        private int size = 0;
+
+        void add(int value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+
+        int get(int i) {
+            return values[i];
+        }
+    }
+}
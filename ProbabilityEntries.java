@@ -0,0 +1,134 @@
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.util.IndexedSortable;
+import org.apache.hadoop.util.QuickSort;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+
+/**
+ * <w1 rank, w2 rank, w3 id, probability> entries in parallel primitive arrays, sorted in memory in the order of
+ * Step4 (as ProbabilityKey: w1 and w2 ascending, probability descending) and written in the format of its output.
+ * Used by the engines that compute the probabilities without Hadoop (Streaming, SingleNode): every thread sorts its
+ * own entries and the sorted runs are merged as they are written.
+ */
+public class ProbabilityEntries {
+    private static final byte[] SPACE = {' '};
+
+    private int[] w1;
+    private int[] w2;
+    private int[] w3;
+    private double[] probability;
+    private int size = 0;
+    private int position = 0; // of the merge
+
+    public ProbabilityEntries(int capacity) {
+        capacity = Math.max(capacity, 16);
+        w1 = new int[capacity];
+        w2 = new int[capacity];
+        w3 = new int[capacity];
+        probability = new double[capacity];
+    }
+
+    public void add(int rank1, int rank2, int id3, double p) {
+        if (size == w1.length) {
+            int capacity = size + (size >> 1);
+            w1 = Arrays.copyOf(w1, capacity);
+            w2 = Arrays.copyOf(w2, capacity);
+            w3 = Arrays.copyOf(w3, capacity);
+            probability = Arrays.copyOf(probability, capacity);
+        }
+        w1[size] = rank1;
+        w2[size] = rank2;
+        w3[size] = id3;
+        probability[size] = p;
+        size++;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    private int compareTo(int i, ProbabilityEntries other, int j) {
+        int compareResult = Integer.compare(w1[i], other.w1[j]);
+        if (compareResult != 0) {
+            return compareResult;
+        }
+        compareResult = Integer.compare(w2[i], other.w2[j]);
+        if (compareResult != 0) {
+            return compareResult;
+        }
+        return Double.compare(other.probability[j], probability[i]);
+    }
+
+    public void sort() {
+        if (size < 2) {
+            return;
+        }
+        new QuickSort().sort(new IndexedSortable() {
+            @Override
+            public int compare(int i, int j) {
+                return compareTo(i, ProbabilityEntries.this, j);
+            }
+
+            @Override
+            public void swap(int i, int j) {
+                int tmp = w1[i];
+                w1[i] = w1[j];
+                w1[j] = tmp;
+                tmp = w2[i];
+                w2[i] = w2[j];
+                w2[j] = tmp;
+                tmp = w3[i];
+                w3[i] = w3[j];
+                w3[j] = tmp;
+                double p = probability[i];
+                probability[i] = probability[j];
+                probability[j] = p;
+            }
+        }, 0, size);
+    }
+
+    /**
+     * Merges sorted entries into "w1 w2 w3 \t probability" lines.
+     * @return the number of lines written
+     */
+    public static long write(List<ProbabilityEntries> sorted, Dictionary dictionary, OutputStream out) throws IOException {
+        PriorityQueue<ProbabilityEntries> queue = new PriorityQueue<>(Math.max(1, sorted.size()), new Comparator<ProbabilityEntries>() {
+            @Override
+            public int compare(ProbabilityEntries a, ProbabilityEntries b) {
+                return a.compareTo(a.position, b, b.position);
+            }
+        });
+        for (ProbabilityEntries entries : sorted) {
+            entries.position = 0;
+            if (entries.size > 0) {
+                queue.add(entries);
+            }
+        }
+        long written = 0;
+        Text text = new Text();
+        while (!queue.isEmpty()) {
+            ProbabilityEntries entries = queue.poll();
+            int i = entries.position++;
+            text.clear();
+            dictionary.appendWord(dictionary.idOfRank(entries.w1[i]), text);
+            text.append(SPACE, 0, 1);
+            dictionary.appendWord(dictionary.idOfRank(entries.w2[i]), text);
+            text.append(SPACE, 0, 1);
+            dictionary.appendWord(entries.w3[i], text);
+            out.write(text.getBytes(), 0, text.getLength());
+            out.write(('\t' + String.valueOf(entries.probability[i]) + '\n').getBytes(StandardCharsets.UTF_8));
+            written++;
+            if (entries.position < entries.size) {
+                queue.add(entries);
+            }
+        }
+        return written;
+    }
+}
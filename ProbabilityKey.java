@@ -0,0 +1,86 @@
+import org.apache.hadoop.io.WritableComparable;
+import org.apache.hadoop.io.WritableUtils;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+
+/**
+ * Step4 sort key <w1, w2, probability>.
+ * w1 and w2 are the byte order ranks of the words (Dictionary.rank), so sorting by them sorts by the words as Text.
+ * Serialized as <w1 vint, w2 vint, probability as 8 byte double>.
+ * Sorted by w1 and w2 ascending, then by probability descending (numerically, not as a string).
+ */
+public class ProbabilityKey implements WritableComparable<ProbabilityKey> {
+    private int w1;
+    private int w2;
+    private double probability;
+
+    public ProbabilityKey() {
+    }
+
+    public void set(int w1, int w2, double probability) {
+        this.w1 = w1;
+        this.w2 = w2;
+        this.probability = probability;
+    }
+
+    public int getW1() {
+        return w1;
+    }
+
+    public int getW2() {
+        return w2;
+    }
+
+    public double getProbability() {
+        return probability;
+    }
+
+    @Override
+    public void write(DataOutput out) throws IOException {
+        WritableUtils.writeVInt(out, w1);
+        WritableUtils.writeVInt(out, w2);
+        out.writeDouble(probability);
+    }
+
+    @Override
+    public void readFields(DataInput in) throws IOException {
+        w1 = WritableUtils.readVInt(in);
+        w2 = WritableUtils.readVInt(in);
+        probability = in.readDouble();
+    }
+
+    @Override
+    public int compareTo(ProbabilityKey other) {
+        int compareResult = Integer.compare(w1, other.w1);
+        if (compareResult != 0) {
+            return compareResult;
+        }
+        compareResult = Integer.compare(w2, other.w2);
+        if (compareResult != 0) {
+            return compareResult;
+        }
+        return Double.compare(other.probability, probability);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof ProbabilityKey)) {
+            return false;
+        }
+        ProbabilityKey other = (ProbabilityKey) o;
+        return w1 == other.w1 && w2 == other.w2 && Double.compare(probability, other.probability) == 0;
+    }
+
+    @Override
+    public int hashCode() {
+        return (w1 * 31 + w2) * 31 + Double.hashCode(probability);
+    }
+
+    @Override
+    public String toString() {
+        return w1 + " " + w2 + " " + probability;
+    }
+}
@@ -0,0 +1,302 @@
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * Read-only lookups over the final probabilities, compiled from the Step4 output by ProbabilityStoreWriter.
+ * The file is memory mapped - nothing but the header is read onto the heap, the OS pages the rest in on demand.
+ * Only absolute reads are used on the buffers, so one store can be shared by any number of threads.
+ * <p>
+ * File layout (big endian):
+ * header - magic, version, vocabulary size (int), prefix count, entry count (long),
+ * start of every section (long): vocabulary offsets, vocabulary bytes, entries, prefixes, w3 order
+ * vocabulary offsets - int per word + 1, where the word starts in the vocabulary bytes. The id of a word is its index.
+ * vocabulary bytes - the UTF-8 words, sorted by their bytes (so a word is found by binary search)
+ * entries - <w3 id int, probability double>, the entries of every (w1, w2) together, by probability descending
+ * prefixes - <w1 id int, w2 id int, first entry long, entry count int>, sorted by (w1 id, w2 id)
+ * w3 order - int per entry: the entries of every (w1, w2) by w3 id, as their positions in the prefix (at the same
+ * indexes as the entries), so probability() finds a w3 by binary search even in prefixes with many thousands of them
+ */
+public class ProbabilityStore implements Closeable {
+    static final int MAGIC = 0x54475053; // "TGPS"
+    static final int VERSION = 2;
+    static final int HEADER_SIZE = 72;
+    static final int ENTRY_SIZE = 12;
+    static final int PREFIX_SIZE = 20;
+
+    private final RandomAccessFile file;
+    private final int vocabularySize;
+    private final long prefixCount;
+    private final ByteBuffer vocabularyOffsets;
+    private final ByteBuffer vocabularyBytes;
+    private final Region entries;
+    private final Region prefixes;
+    private final Region byW3;
+
+    public ProbabilityStore(File path) throws IOException {
+        file = new RandomAccessFile(path, "r");
+        try {
+            FileChannel channel = file.getChannel();
+            ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+            if (header.getInt(0) != MAGIC || header.getInt(4) != VERSION) {
+                throw new IOException(path + " is not a probability store (version " + VERSION + ")");
+            }
+            vocabularySize = header.getInt(8);
+            prefixCount = header.getLong(12);
+            long entryCount = header.getLong(20);
+            long vocabularyOffsetsStart = header.getLong(28);
+            long vocabularyBytesStart = header.getLong(36);
+            long entriesStart = header.getLong(44);
+            long prefixesStart = header.getLong(52);
+            long byW3Start = header.getLong(60);
+            vocabularyOffsets = map(channel, vocabularyOffsetsStart, vocabularyBytesStart - vocabularyOffsetsStart);
+            vocabularyBytes = map(channel, vocabularyBytesStart, entriesStart - vocabularyBytesStart);
+            entries = new Region(channel, entriesStart, entryCount, ENTRY_SIZE);
+            prefixes = new Region(channel, prefixesStart, prefixCount, PREFIX_SIZE);
+            byW3 = new Region(channel, byW3Start, entryCount, 4);
+        } catch (IOException | RuntimeException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    private static MappedByteBuffer map(FileChannel channel, long start, long size) throws IOException {
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("vocabulary section of " + size + " bytes is too large to map");
+        }
+        return channel.map(FileChannel.MapMode.READ_ONLY, start, size);
+    }
+
+    /**
+     * @return the k most probable w3 after (w1, w2), most probable first (fewer if (w1, w2) has fewer, none if unknown)
+     */
+    public List<Candidate> topK(String w1, String w2, int k) {
+        List<Candidate> result = new ArrayList<>();
+        long prefix = findPrefix(w1, w2);
+        if (prefix < 0) {
+            return result;
+        }
+        long first = prefixes.getLong(prefix, 8);
+        int count = Math.min(k, prefixes.getInt(prefix, 16));
+        for (int i = 0; i < count; i++) {
+            result.add(new Candidate(word(entries.getInt(first + i, 0)), entries.getDouble(first + i, 4)));
+        }
+        return result;
+    }
+
+    /**
+     * @return the probability of w3 after (w1, w2), 0 for a trigram that is not in the store
+     */
+    public double probability(String w1, String w2, String w3) {
+        long prefix = findPrefix(w1, w2);
+        int id3 = id(w3);
+        if (prefix < 0 || id3 < 0) {
+            return 0;
+        }
+        long first = prefixes.getLong(prefix, 8);
+        int low = 0;
+        int high = prefixes.getInt(prefix, 16) - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            long entry = first + byW3.getInt(first + middle, 0);
+            int compareResult = Integer.compare(entries.getInt(entry, 0), id3);
+            if (compareResult < 0) {
+                low = middle + 1;
+            } else if (compareResult > 0) {
+                high = middle - 1;
+            } else {
+                return entries.getDouble(entry, 4);
+            }
+        }
+        return 0;
+    }
+
+    public int getVocabularySize() {
+        return vocabularySize;
+    }
+
+    public long getPrefixCount() {
+        return prefixCount;
+    }
+
+    public long getEntryCount() {
+        return entries.records;
+    }
+
+    private long findPrefix(String w1, String w2) {
+        return findPrefix(id(w1), id(w2));
+    }
+
+    /**
+     * @return the index of the prefix (w1, w2), -1 if it has no entries
+     */
+    long findPrefix(int id1, int id2) {
+        if (id1 < 0 || id2 < 0) {
+            return -1;
+        }
+        long low = 0;
+        long high = prefixCount - 1;
+        while (low <= high) {
+            long middle = (low + high) >>> 1;
+            int compareResult = Integer.compare(prefixes.getInt(middle, 0), id1);
+            if (compareResult == 0) {
+                compareResult = Integer.compare(prefixes.getInt(middle, 4), id2);
+            }
+            if (compareResult < 0) {
+                low = middle + 1;
+            } else if (compareResult > 0) {
+                high = middle - 1;
+            } else {
+                return middle;
+            }
+        }
+        return -1;
+    }
+
+    long firstEntry(long prefix) {
+        return prefixes.getLong(prefix, 8);
+    }
+
+    int entryCount(long prefix) {
+        return prefixes.getInt(prefix, 16);
+    }
+
+    int entryW3(long entry) {
+        return entries.getInt(entry, 0);
+    }
+
+    double entryProbability(long entry) {
+        return entries.getDouble(entry, 4);
+    }
+
+    /**
+     * @return the id of the word, -1 if it is not in the vocabulary
+     */
+    int id(String word) {
+        byte[] bytes = word.getBytes(StandardCharsets.UTF_8);
+        int low = 0;
+        int high = vocabularySize - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int compareResult = compareWord(middle, bytes);
+            if (compareResult < 0) {
+                low = middle + 1;
+            } else if (compareResult > 0) {
+                high = middle - 1;
+            } else {
+                return middle;
+            }
+        }
+        return -1;
+    }
+
+    private int compareWord(int id, byte[] bytes) {
+        int start = vocabularyOffsets.getInt(id * 4);
+        int length = vocabularyOffsets.getInt(id * 4 + 4) - start;
+        for (int i = 0; i < length && i < bytes.length; i++) {
+            int compareResult = (vocabularyBytes.get(start + i) & 0xFF) - (bytes[i] & 0xFF);
+            if (compareResult != 0) {
+                return compareResult;
+            }
+        }
+        return length - bytes.length;
+    }
+
+    String word(int id) {
+        int start = vocabularyOffsets.getInt(id * 4);
+        byte[] bytes = new byte[vocabularyOffsets.getInt(id * 4 + 4) - start];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = vocabularyBytes.get(start + i);
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Unmapping happens when the buffers are garbage collected, closing only releases the file.
+     */
+    @Override
+    public void close() throws IOException {
+        file.close();
+    }
+
+    public static class Candidate {
+        private final String w3;
+        private final double probability;
+
+        public Candidate(String w3, double probability) {
+            this.w3 = w3;
+            this.probability = probability;
+        }
+
+        public String getW3() {
+            return w3;
+        }
+
+        public double getProbability() {
+            return probability;
+        }
+
+        @Override
+        public String toString() {
+            return w3 + "\t" + probability;
+        }
+    }
+
+    /**
+     * Fixed size records mapped in chunks, since a single MappedByteBuffer can't be larger than 2GB.
+     */
+    private static class Region {
+        private static final int CHUNK_RECORDS = 1 << 26;
+
+        private final long records;
+        private final int recordSize;
+        private final MappedByteBuffer[] chunks;
+
+        Region(FileChannel channel, long start, long records, int recordSize) throws IOException {
+            this.records = records;
+            this.recordSize = recordSize;
+            chunks = new MappedByteBuffer[(int) ((records + CHUNK_RECORDS - 1) / CHUNK_RECORDS)];
+            for (int i = 0; i < chunks.length; i++) {
+                long chunkRecords = Math.min(CHUNK_RECORDS, records - (long) i * CHUNK_RECORDS);
+                chunks[i] = channel.map(FileChannel.MapMode.READ_ONLY, start + (long) i * CHUNK_RECORDS * recordSize,
+                        chunkRecords * recordSize);
+            }
+        }
+
+        int getInt(long record, int offset) {
+            return chunks[(int) (record / CHUNK_RECORDS)].getInt((int) (record % CHUNK_RECORDS) * recordSize + offset);
+        }
+
+        long getLong(long record, int offset) {
+            return chunks[(int) (record / CHUNK_RECORDS)].getLong((int) (record % CHUNK_RECORDS) * recordSize + offset);
+        }
+
+        double getDouble(long record, int offset) {
+            return chunks[(int) (record / CHUNK_RECORDS)].getDouble((int) (record % CHUNK_RECORDS) * recordSize + offset);
+        }
+    }
+
+    /**
+     * Usage: ProbabilityStore <store file> <w1> <w2> [k]
+     * Prints the k (default 10) most probable w3 after w1 w2.
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 3) {
+            System.err.println("Usage: ProbabilityStore <store file> <w1> <w2> [k]");
+            System.exit(2);
+        }
+        try (ProbabilityStore store = new ProbabilityStore(new File(args[0]))) {
+            for (Candidate candidate : store.topK(args[1], args[2], args.length > 3 ? Integer.parseInt(args[3]) : 10)) {
+                System.out.println(args[1] + " " + args[2] + " " + candidate);
+            }
+        }
+    }
+}
@@ -0,0 +1,235 @@
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.util.GenericOptionsParser;
+import org.apache.hadoop.util.IndexedSortable;
+import org.apache.hadoop.util.QuickSort;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashMap;
+
+
+/**
+ * Compiles the Step4 output (text part files of "w1 w2 w3 \t probability", compressed or not, or the SequenceFiles of
+ * Step4.OUTPUT_FORMAT binary and logprob) into a ProbabilityStore file.
+ * Step4 already writes all the w3 of a (w1, w2) together and by probability descending, so the entries are
+ * copied in the order they are read and only the prefix index (one record per (w1, w2)) is sorted in memory.
+ * The w3 order of a prefix is sorted when the prefix ends and goes to a temporary file next to the store, which is
+ * copied after the prefix index.
+ * Two passes over the input: the first one collects the vocabulary, the second one writes the entries.
+ */
+public class ProbabilityStoreWriter {
+    private final Configuration conf;
+    private final Path[] parts;
+    private final HashMap<String, Integer> ids = new HashMap<>();
+
+    // the prefix index, one record per (w1, w2)
+    private int[] prefixW1 = new int[1024];
+    private int[] prefixW2 = new int[1024];
+    private long[] prefixFirst = new long[1024];
+    private int[] prefixCount = new int[1024];
+    private int prefixes = 0;
+
+    // the w3 of the entries of the current prefix, and their positions in it sorted by w3
+    private int[] prefixW3 = new int[1024];
+    private int[] positions = new int[1024];
+
+    public ProbabilityStoreWriter(Path step4Output, Configuration conf) throws IOException {
+        this.conf = conf;
+        parts = Step4Records.parts(step4Output, conf);
+    }
+
+    public void write(File store) throws IOException {
+        byte[][] vocabulary = Step4Records.vocabulary(parts, conf);
+        for (int id = 0; id < vocabulary.length; id++) {
+            ids.put(new String(vocabulary[id], StandardCharsets.UTF_8), id);
+        }
+
+        long vocabularyBytesStart = ProbabilityStore.HEADER_SIZE + 4L * (vocabulary.length + 1);
+        long entriesStart;
+        long entries;
+        File w3OrderFile = new File(store.getPath() + ".w3");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(store), 1 << 16));
+             DataOutputStream w3Order = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(w3OrderFile), 1 << 16))) {
+            out.write(new byte[ProbabilityStore.HEADER_SIZE]); // written at the end
+            int offset = 0;
+            for (byte[] word : vocabulary) {
+                out.writeInt(offset);
+                offset += word.length;
+            }
+            out.writeInt(offset);
+            for (byte[] word : vocabulary) {
+                out.write(word);
+            }
+            entriesStart = vocabularyBytesStart + offset;
+            entries = writeEntries(out, w3Order);
+            w3Order.flush(); // copied into the store below
+            sortPrefixes();
+            for (int i = 0; i < prefixes; i++) {
+                out.writeInt(prefixW1[i]);
+                out.writeInt(prefixW2[i]);
+                out.writeLong(prefixFirst[i]);
+                out.writeInt(prefixCount[i]);
+            }
+            Files.copy(w3OrderFile.toPath(), out);
+        } finally {
+            Files.deleteIfExists(w3OrderFile.toPath());
+        }
+
+        try (RandomAccessFile file = new RandomAccessFile(store, "rw")) {
+            file.writeInt(ProbabilityStore.MAGIC);
+            file.writeInt(ProbabilityStore.VERSION);
+            file.writeInt(vocabulary.length);
+            file.writeLong(prefixes);
+            file.writeLong(entries);
+            file.writeLong(ProbabilityStore.HEADER_SIZE);
+            file.writeLong(vocabularyBytesStart);
+            file.writeLong(entriesStart);
+            long prefixesStart = entriesStart + entries * ProbabilityStore.ENTRY_SIZE;
+            file.writeLong(prefixesStart);
+            file.writeLong(prefixesStart + (long) prefixes * ProbabilityStore.PREFIX_SIZE);
+        }
+    }
+
+    /**
+     * Copies every record as an entry and starts a prefix record whenever (w1, w2) changes,
+     * and writes the w3 order of every prefix when it ends.
+     * @return the number of entries written
+     */
+    private long writeEntries(DataOutputStream out, DataOutputStream w3Order) throws IOException {
+        long entries = 0;
+        for (Path part : parts) {
+            int lastW1 = -1, lastW2 = -1;
+            double lastProbability = 0;
+            try (Step4Records records = new Step4Records(part, conf)) {
+                while (records.next()) {
+                    String[] trigram = records.trigram.split(" ");
+                    int w1 = ids.get(trigram[0]);
+                    int w2 = ids.get(trigram[1]);
+                    double probability = records.probability;
+                    if (w1 != lastW1 || w2 != lastW2) {
+                        writeW3Order(w3Order);
+                        addPrefix(w1, w2, entries);
+                        lastW1 = w1;
+                        lastW2 = w2;
+                    } else if (probability > lastProbability) {
+                        throw new IOException(part + ": " + records.trigram + " is not sorted by probability descending");
+                    }
+                    lastProbability = probability;
+                    int w3 = ids.get(trigram[2]);
+                    int position = prefixCount[prefixes - 1]++;
+                    if (position == prefixW3.length) {
+                        prefixW3 = Arrays.copyOf(prefixW3, position * 2);
+                        positions = Arrays.copyOf(positions, position * 2);
+                    }
+                    prefixW3[position] = w3;
+                    positions[position] = position;
+                    out.writeInt(w3);
+                    out.writeDouble(probability);
+                    entries++;
+                }
+            }
+        }
+        writeW3Order(w3Order);
+        return entries;
+    }
+
+    /**
+     * Writes the positions of the entries of the last prefix, sorted by w3.
+     */
+    private void writeW3Order(DataOutputStream w3Order) throws IOException {
+        if (prefixes == 0) {
+            return;
+        }
+        int count = prefixCount[prefixes - 1];
+        if (count > 1) {
+            new QuickSort().sort(new IndexedSortable() {
+                @Override
+                public int compare(int i, int j) {
+                    return Integer.compare(prefixW3[positions[i]], prefixW3[positions[j]]);
+                }
+
+                @Override
+                public void swap(int i, int j) {
+                    int tmp = positions[i];
+                    positions[i] = positions[j];
+                    positions[j] = tmp;
+                }
+            }, 0, count);
+        }
+        for (int i = 0; i < count; i++) {
+            w3Order.writeInt(positions[i]);
+        }
+    }
+
+    private void addPrefix(int w1, int w2, long first) {
+        if (prefixes == prefixW1.length) {
+            prefixW1 = Arrays.copyOf(prefixW1, prefixes * 2);
+            prefixW2 = Arrays.copyOf(prefixW2, prefixes * 2);
+            prefixFirst = Arrays.copyOf(prefixFirst, prefixes * 2);
+            prefixCount = Arrays.copyOf(prefixCount, prefixes * 2);
+        }
+        prefixW1[prefixes] = w1;
+        prefixW2[prefixes] = w2;
+        prefixFirst[prefixes] = first;
+        prefixCount[prefixes] = 0;
+        prefixes++;
+    }
+
+    private void sortPrefixes() throws IOException {
+        new QuickSort().sort(new IndexedSortable() {
+            @Override
+            public int compare(int i, int j) {
+                int compareResult = Integer.compare(prefixW1[i], prefixW1[j]);
+                return compareResult != 0 ? compareResult : Integer.compare(prefixW2[i], prefixW2[j]);
+            }
+
+            @Override
+            public void swap(int i, int j) {
+                swap(prefixW1, i, j);
+                swap(prefixW2, i, j);
+                swap(prefixCount, i, j);
+                long first = prefixFirst[i];
+                prefixFirst[i] = prefixFirst[j];
+                prefixFirst[j] = first;
+            }
+
+            private void swap(int[] array, int i, int j) {
+                int tmp = array[i];
+                array[i] = array[j];
+                array[j] = tmp;
+            }
+        }, 0, prefixes);
+        for (int i = 1; i < prefixes; i++) {
+            if (prefixW1[i] == prefixW1[i - 1] && prefixW2[i] == prefixW2[i - 1]) {
+                throw new IOException("The w3 of one (w1, w2) are not together - is this the Step4 output?");
+            }
+        }
+    }
+
+    /**
+     * Usage: ProbabilityStoreWriter [-D step4.output.format=text|binary|logprob] <Step4 output dir> <store file>
+     * The Step4 output can be on any Hadoop file system (e.g. s3://bucketurevich2/Step4output.txt),
+     * the store file is local - it is memory mapped by the readers.
+     */
+    public static void main(String[] args) throws IOException {
+        Configuration conf = new Configuration();
+        args = new GenericOptionsParser(conf, args).getRemainingArgs();
+        if (args.length != 2) {
+            System.err.println("Usage: ProbabilityStoreWriter [-D step4.output.format=text|binary|logprob] <Step4 output dir> <store file>");
+            System.exit(2);
+        }
+        new ProbabilityStoreWriter(new Path(args[0]), conf).write(new File(args[1]));
+        try (ProbabilityStore store = new ProbabilityStore(new File(args[1]))) {
+            System.out.println(store.getVocabularySize() + " words, " + store.getPrefixCount() + " (w1, w2) prefixes, "
+                    + store.getEntryCount() + " trigrams");
+        }
+    }
+}
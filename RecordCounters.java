@@ -0,0 +1,10 @@
+/**
+ * Input records dropped by the mappers of the 3-gram lines (Vocabulary.Map, TrigramSketch.Map and Step1.Map), by reason.
+ */
+public enum RecordCounters {
+    PARSE_FAILURES,
+    FILTERED_NON_LETTER,
+    FILTERED_STOP_WORD,
+    FILTERED_NOT_IN_VOCABULARY,
+    PRUNED_LOW_COUNT // Step1.MIN_COUNT, by the estimate of the TrigramSketch
+}
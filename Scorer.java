@@ -0,0 +1,424 @@
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.util.GenericOptionsParser;
+import org.apache.hadoop.util.IndexedSortable;
+import org.apache.hadoop.util.QuickSort;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Scores word sequences with an interpolated trigram language model (Jelinek-Mercer):
+ * P(w3 | w1, w2) = l3 * P3(w3 | w1, w2) + l2 * P2(w3 | w2) + l1 * P1(w3), where
+ * P3 - the Step4 probabilities of the trigrams of (w1, w2), read from a ProbabilityStore and normalized over them,
+ * P2 - c(w2, w3) / c(w2, *) from the bigram counts of Step1 (step1.lower.orders),
+ * P1 - (c(w3) + 1) / (N1 + V + 1), the add-one unigram estimate, so unseen words get some mass too.
+ * An order whose history was never seen is left out and the weights of the others are normalized, so unseen trigrams
+ * back off to the bigram and unigram estimates instead of getting nothing. The first two words of a sequence have
+ * the unigram and the bigram histories only.
+ * <p>
+ * The bigram and unigram counts are held in memory as primitive arrays. The trigrams stay in the memory mapped store,
+ * and every (w1, w2) history scored is turned into a context - its w3 ids sorted for binary search and their
+ * normalized probabilities - kept in a bounded LRU cache, so the frequent histories aren't read and normalized again.
+ * The cache is split into segments by hash, each one an access ordered LinkedHashMap under its own lock.
+ * scoreSentences scores a batch on scorer.threads threads.
+ * <p>
+ * Usage: Scorer [-D key=value ...] <store file> <vocabulary file> <Step2 output dir> <sentences file>
+ * The store is written by ProbabilityStoreWriter, the vocabulary file by the Vocabulary job, and the Step2 output
+ * (the output of Step1 with step1.fused) has the lower order counts with step1.lower.orders=true.
+ * Prints the natural log probability of every sentence, and the throughput and the cache hits to stderr.
+ * Keys: scorer.lambdas - l3,l2,l1 (default 0.6,0.3,0.1), scorer.cache.contexts - contexts kept (default 100000,
+ * 0 for no cache), scorer.threads (default: the number of cores).
+ */
+public class Scorer implements Closeable {
+    static final String LAMBDAS = "scorer.lambdas";
+    static final String CACHE_CONTEXTS = "scorer.cache.contexts";
+    static final String THREADS = "scorer.threads";
+    private static final int SEGMENTS = 16;
+    private static final Context EMPTY = new Context(new int[0], new double[0]);
+
+    private final ProbabilityStore store;
+    private final Dictionary dictionary;
+    private final double lambda3;
+    private final double lambda2;
+    private final double lambda1;
+    private final long[] unigrams; // by Dictionary id
+    private final long[] histories; // c(w2, *), by Dictionary id
+    private final BigramCounts bigrams = new BigramCounts();
+    private long unigramTotal = 0;
+    private final ContextCache cache;
+    private final int threads;
+    private final ExecutorService executor;
+
+    public Scorer(ProbabilityStore store, Dictionary dictionary, Path lowerOrders, Configuration conf) throws IOException {
+        this.store = store;
+        this.dictionary = dictionary;
+        double[] lambdas = new double[3];
+        String[] values = conf.getTrimmedStrings(LAMBDAS, "0.6", "0.3", "0.1");
+        if (values.length != 3) {
+            throw new IllegalArgumentException(LAMBDAS + " must be l3,l2,l1");
+        }
+        for (int i = 0; i < 3; i++) {
+            lambdas[i] = Double.parseDouble(values[i]);
+        }
+        lambda3 = lambdas[0];
+        lambda2 = lambdas[1];
+        lambda1 = lambdas[2];
+        unigrams = new long[dictionary.size()];
+        histories = new long[dictionary.size()];
+        load(lowerOrders, conf);
+        cache = new ContextCache(conf.getInt(CACHE_CONTEXTS, 100000));
+        threads = conf.getInt(THREADS, Runtime.getRuntime().availableProcessors());
+        executor = threads > 1 ? Executors.newFixedThreadPool(threads) : null;
+    }
+
+    /**
+     * Reads the bigram and unigram counts written by Step1.FusedReduce.
+     */
+    private void load(Path lowerOrders, Configuration conf) throws IOException {
+        Path glob = new Path(lowerOrders, Step1.LOWER + "-*");
+        FileSystem fs = glob.getFileSystem(conf);
+        FileStatus[] files = fs.globStatus(glob);
+        if (files == null || files.length == 0) {
+            throw new IOException("No lower order counts in " + lowerOrders + " - run Step1 with " + Step1.LOWER_ORDERS + "=true");
+        }
+        TrigramKey key = new TrigramKey();
+        LongWritable count = new LongWritable();
+        for (FileStatus file : files) {
+            try (SequenceFile.Reader reader = new SequenceFile.Reader(conf, SequenceFile.Reader.file(file.getPath()))) {
+                while (reader.next(key, count)) {
+                    if (key.getW2() < 0) {
+                        unigrams[key.getW3()] += count.get();
+                        unigramTotal += count.get();
+                    } else {
+                        bigrams.add(key.getW2(), key.getW3(), count.get());
+                        histories[key.getW2()] += count.get();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the natural log probability of every sentence (words separated by white space), in order
+     */
+    public double[] scoreSentences(final List<String> sentences) throws InterruptedException {
+        final double[] scores = new double[sentences.size()];
+        if (executor == null) {
+            for (int i = 0; i < scores.length; i++) {
+                scores[i] = score(sentences.get(i));
+            }
+            return scores;
+        }
+        int chunk = Math.max(1, (scores.length + threads * 4 - 1) / (threads * 4));
+        List<Future<?>> chunks = new ArrayList<>();
+        for (int start = 0; start < scores.length; start += chunk) {
+            final int from = start;
+            final int to = Math.min(scores.length, start + chunk);
+            chunks.add(executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    for (int i = from; i < to; i++) {
+                        scores[i] = score(sentences.get(i));
+                    }
+                    return null;
+                }
+            }));
+        }
+        for (Future<?> future : chunks) {
+            try {
+                future.get();
+            } catch (ExecutionException e) {
+                throw new IllegalStateException(e.getCause());
+            }
+        }
+        return scores;
+    }
+
+    /**
+     * @return the natural log probability of the sentence
+     */
+    public double score(String sentence) {
+        String trimmed = sentence.trim();
+        if (trimmed.isEmpty()) {
+            return 0;
+        }
+        String[] words = trimmed.split("\\s+");
+        int[] ids = new int[words.length];
+        int[] storeIds = new int[words.length];
+        for (int i = 0; i < words.length; i++) {
+            byte[] bytes = words[i].getBytes(StandardCharsets.UTF_8);
+            ids[i] = dictionary.id(bytes, 0, bytes.length);
+            storeIds[i] = store.id(words[i]);
+        }
+        double logProbability = 0;
+        for (int i = 0; i < words.length; i++) {
+            double weighted = lambda1 * ((ids[i] < 0 ? 0 : unigrams[ids[i]]) + 1) / (double) (unigramTotal + unigrams.length + 1);
+            double weights = lambda1;
+            if (i > 0 && ids[i - 1] >= 0 && histories[ids[i - 1]] > 0) {
+                weighted += lambda2 * (ids[i] < 0 ? 0 : bigrams.get(ids[i - 1], ids[i])) / (double) histories[ids[i - 1]];
+                weights += lambda2;
+            }
+            if (i > 1) {
+                Context context = cache.get(storeIds[i - 2], storeIds[i - 1]);
+                if (context != EMPTY) {
+                    weighted += lambda3 * context.probability(storeIds[i]);
+                    weights += lambda3;
+                }
+            }
+            logProbability += Math.log(weighted / weights);
+        }
+        return logProbability;
+    }
+
+    public long getCacheHits() {
+        return cache.hits.get();
+    }
+
+    public long getCacheMisses() {
+        return cache.misses.get();
+    }
+
+    /**
+     * @return the context of (w1, w2) from the store, EMPTY if it has no trigrams
+     */
+    private Context readContext(int id1, int id2) {
+        long prefix = store.findPrefix(id1, id2);
+        if (prefix < 0) {
+            return EMPTY;
+        }
+        long first = store.firstEntry(prefix);
+        int count = store.entryCount(prefix);
+        final int[] w3 = new int[count];
+        final double[] probability = new double[count];
+        double sum = 0;
+        for (int i = 0; i < count; i++) {
+            w3[i] = store.entryW3(first + i);
+            probability[i] = store.entryProbability(first + i);
+            sum += probability[i];
+        }
+        for (int i = 0; i < count; i++) {
+            probability[i] /= sum;
+        }
+        new QuickSort().sort(new IndexedSortable() {
+            @Override
+            public int compare(int i, int j) {
+                return Integer.compare(w3[i], w3[j]);
+            }
+
+            @Override
+            public void swap(int i, int j) {
+                int tmp = w3[i];
+                w3[i] = w3[j];
+                w3[j] = tmp;
+                double p = probability[i];
+                probability[i] = probability[j];
+                probability[j] = p;
+            }
+        }, 0, count);
+        return new Context(w3, probability);
+    }
+
+    /**
+     * Shuts down the scoring threads and closes the store.
+     */
+    @Override
+    public void close() throws IOException {
+        if (executor != null) {
+            executor.shutdown();
+        }
+        store.close();
+    }
+
+    /**
+     * The trigrams of one (w1, w2): w3 store ids, sorted, and P3(w3 | w1, w2).
+     */
+    private static class Context {
+        private final int[] w3;
+        private final double[] probability;
+
+        Context(int[] w3, double[] probability) {
+            this.w3 = w3;
+            this.probability = probability;
+        }
+
+        double probability(int id3) {
+            int index = id3 < 0 ? -1 : Arrays.binarySearch(w3, id3);
+            return index < 0 ? 0 : probability[index];
+        }
+    }
+
+    /**
+     * Bounded LRU cache of contexts by (w1, w2), in segments with a lock each so that the scoring threads rarely wait
+     * for each other. A miss reads the context outside the lock - two threads may both read it, the result is the same.
+     */
+    private class ContextCache {
+        private final Segment[] segments = new Segment[SEGMENTS];
+        private final boolean enabled;
+        private final AtomicLong hits = new AtomicLong();
+        private final AtomicLong misses = new AtomicLong();
+
+        ContextCache(int capacity) {
+            enabled = capacity > 0;
+            for (int i = 0; i < SEGMENTS; i++) {
+                segments[i] = new Segment(Math.max(1, capacity / SEGMENTS));
+            }
+        }
+
+        Context get(int id1, int id2) {
+            if (id1 < 0 || id2 < 0) {
+                return EMPTY;
+            }
+            if (!enabled) {
+                misses.incrementAndGet();
+                return readContext(id1, id2);
+            }
+            long key = (long) id1 << 32 | (id2 & 0xFFFFFFFFL);
+            int hash = (id1 * 31 + id2) * 0x9E3779B9;
+            Segment segment = segments[(hash ^ (hash >>> 16)) & (SEGMENTS - 1)];
+            Context context = segment.get(key);
+            if (context != null) {
+                hits.incrementAndGet();
+                return context;
+            }
+            misses.incrementAndGet();
+            context = readContext(id1, id2);
+            segment.put(key, context);
+            return context;
+        }
+    }
+
+    /**
+     * One segment of the cache: its contexts in access order, the least recently used one is evicted by put.
+     */
+    private static class Segment {
+        private final LinkedHashMap<Long, Context> contexts = new LinkedHashMap<>(16, 0.75f, true); // access order
+        private final int capacity;
+
+        Segment(int capacity) {
+            this.capacity = capacity;
+        }
+
+        synchronized Context get(long key) {
+            return contexts.get(key);
+        }
+
+        synchronized void put(long key, Context context) {
+            contexts.put(key, context);
+            if (contexts.size() > capacity) {
+                Iterator<Long> eldest = contexts.keySet().iterator();
+                eldest.next();
+                eldest.remove();
+            }
+        }
+    }
+
+    /**
+     * c(w2, w3) by the packed ids, open addressing over primitive arrays - no boxing on lookup.
+     */
+    private static class BigramCounts {
+        private static final long EMPTY_KEY = -1;
+
+        private long[] keys;
+        private long[] counts;
+        private int size = 0;
+
+        BigramCounts() {
+            allocate(1 << 16);
+        }
+
+        private void allocate(int capacity) {
+            keys = new long[capacity];
+            counts = new long[capacity];
+            Arrays.fill(keys, EMPTY_KEY);
+        }
+
+        void add(int w2, int w3, long count) {
+            if (size >= keys.length * 0.7) {
+                long[] oldKeys = keys;
+                long[] oldCounts = counts;
+                allocate(keys.length * 2);
+                for (int i = 0; i < oldKeys.length; i++) {
+                    if (oldKeys[i] != EMPTY_KEY) {
+                        int slot = slot(oldKeys[i]);
+                        keys[slot] = oldKeys[i];
+                        counts[slot] = oldCounts[i];
+                    }
+                }
+            }
+            long key = (long) w2 << 32 | w3;
+            int slot = slot(key);
+            if (keys[slot] == EMPTY_KEY) {
+                keys[slot] = key;
+                size++;
+            }
+            counts[slot] += count;
+        }
+
+        long get(int w2, int w3) {
+            int slot = slot((long) w2 << 32 | w3);
+            return keys[slot] == EMPTY_KEY ? 0 : counts[slot];
+        }
+
+        // the slot of the key, or the empty slot where it would go
+        private int slot(long key) {
+            int mask = keys.length - 1;
+            long hash = key * 0x9E3779B97F4A7C15L;
+            int slot = (int) (hash >>> 32) & mask;
+            while (keys[slot] != EMPTY_KEY && keys[slot] != key) {
+                slot = (slot + 1) & mask;
+            }
+            return slot;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Configuration conf = new Configuration();
+        String[] paths = new GenericOptionsParser(conf, args).getRemainingArgs();
+        if (paths.length != 4) {
+            System.err.println("Usage: Scorer [-D key=value ...] <store file> <vocabulary file> <Step2 output dir> <sentences file>");
+            System.exit(2);
+        }
+        List<String> sentences = new ArrayList<>();
+        Path sentencesPath = new Path(paths[3]);
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(sentencesPath.getFileSystem(conf).open(sentencesPath), StandardCharsets.UTF_8), 1 << 16)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                sentences.add(line);
+            }
+        }
+        try (Scorer scorer = new Scorer(new ProbabilityStore(new File(paths[0])), Dictionary.load(new Path(paths[1]), conf), new Path(paths[2]), conf)) {
+            long start = System.nanoTime();
+            double[] scores = scorer.scoreSentences(sentences);
+            long nanos = Math.max(1, System.nanoTime() - start);
+            StringBuilder out = new StringBuilder();
+            for (int i = 0; i < scores.length; i++) {
+                out.append(scores[i]).append('\t').append(sentences.get(i)).append('\n');
+            }
+            System.out.print(out);
+            long hits = scorer.getCacheHits(), misses = scorer.getCacheMisses();
+            System.err.println("Scored " + scores.length + " sentences in " + nanos / 1000000 + " ms, "
+                    + (long) (scores.length * 1e9 / nanos) + " sentences/s, cache hits " + hits + " of " + (hits + misses));
+        }
+    }
+}
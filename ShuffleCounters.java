@@ -0,0 +1,13 @@
+/**
+ * Counters for the records and bytes kept out of the shuffle by map-side aggregation.
+ * Bytes are the serialized size of the map output key and value.
+ */
+public enum ShuffleCounters {
+    IN_MAPPER_RECORDS_IN,
+    IN_MAPPER_RECORDS_OUT,
+    IN_MAPPER_BYTES_SAVED,
+    IN_MAPPER_FLUSHES,
+    COMBINER_RECORDS_IN,
+    COMBINER_RECORDS_OUT,
+    COMBINER_BYTES_SAVED
+}
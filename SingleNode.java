@@ -0,0 +1,541 @@
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapred.FileAlreadyExistsException;
+import org.apache.hadoop.mapreduce.InputFormat;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.TaskAttemptID;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+import org.apache.hadoop.mapreduce.lib.input.SequenceFileInputFormat;
+import org.apache.hadoop.mapreduce.lib.input.TextInputFormat;
+import org.apache.hadoop.mapreduce.task.TaskAttemptContextImpl;
+import org.apache.hadoop.util.GenericOptionsParser;
+import org.apache.hadoop.util.ReflectionUtils;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * Single node mode: computes the Step4 output of a corpus that fits on one machine (such as heb-all) in one process,
+ * without the overhead of the four Hadoop jobs, using all the cores of the machine.
+ * <p>
+ * The input is split as the Hadoop jobs split it (the splits of its InputFormat), and every thread reads whole splits:
+ * its lines are filtered as Vocabulary.Map does and the parts alternate line by line within a split as in Step1.Map,
+ * so the counts are those of Step1. The words get ids as they come, and a trigram is packed into one long - 21 bits
+ * per word id - which keys an open addressing table of (key, part0, part1) longs kept off the heap, in direct
+ * buffers, so counting hundreds of millions of distinct trigrams creates no garbage and the GC doesn't scan them.
+ * The table is striped by the hash of the key over single.stripes stripes, each with its own lock and growing on
+ * its own; a thread collects its trigrams in a small batch per stripe and applies the batch under the lock.
+ * <p>
+ * Then the stripes are scanned by the threads for the N_r/T_r statistics of Step2 (as Step1.FusedReduce computes
+ * them), into primitive long[] histograms for r < 65536 and a StatTable for the few larger r, which are added up.
+ * A second scan computes the probability of every trigram (as Step3) and routes it by the rank of w1 to one of
+ * single.parts ranges, and every range is sorted and written like Step4 to its own part file - the parts are
+ * sorted within and between themselves, as after the total order partitioner of Step4.
+ * <p>
+ * Usage: SingleNode [-D key=value ...] <input> <output dir> [stop words file]
+ * Keys: single.threads (default: the number of cores), single.stripes (default: 8 per thread, a power of 2),
+ * single.parts - part files of the output (default: the number of threads),
+ * single.input.format - text or sequence for the datasets (default text).
+ * The direct buffers are limited by -XX:MaxDirectMemorySize: give the JVM about 24 bytes per distinct trigram
+ * divided by the load factor (0.7), plus the room of one stripe being rehashed.
+ * More than 2^21 distinct words don't fit the packed keys - such a corpus needs the Hadoop pipeline.
+ */
+public class SingleNode {
+    static final String THREADS = "single.threads";
+    static final String STRIPES = "single.stripes";
+    static final String PARTS = "single.parts";
+    static final String INPUT_FORMAT = "single.input.format";
+
+    private static final int WORD_BITS = 21;
+    private static final int MAX_WORDS = 1 << WORD_BITS;
+    private static final long WORD_MASK = MAX_WORDS - 1;
+    private static final long OCCUPIED = 1L << 63;
+    private static final int DENSE = 1 << 16;
+    private static final int BATCH = 1024;
+
+    private final Configuration conf;
+    private final StopWords stopWords;
+    private final int threads;
+    private final Stripe[] stripes;
+    private final ConcurrentHashMap<Text, Integer> ids = new ConcurrentHashMap<>();
+    private final List<byte[]> words = new ArrayList<>();
+    private final long[] dropped = new long[RecordCounters.values().length];
+    private long linesIn = 0;
+
+    SingleNode(Configuration conf, StopWords stopWords) {
+        this.conf = conf;
+        this.stopWords = stopWords;
+        threads = conf.getInt(THREADS, Runtime.getRuntime().availableProcessors());
+        int count = Integer.highestOneBit(Math.max(1, conf.getInt(STRIPES, threads * 8)) * 2 - 1);
+        stripes = new Stripe[count];
+        for (int i = 0; i < count; i++) {
+            stripes[i] = new Stripe(1 << 12);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Configuration conf = new Configuration();
+        String[] paths = new GenericOptionsParser(conf, args).getRemainingArgs();
+        if (paths.length < 2) {
+            System.err.println("Usage: SingleNode [-D key=value ...] <input> <output dir> [stop words file]");
+            System.exit(2);
+        }
+        StopWords stopWords = paths.length > 2 ? StopWords.load(new Path(paths[2]), conf) : new StopWords(new ArrayList<String>());
+        SingleNode singleNode = new SingleNode(conf, stopWords);
+        ExecutorService executor = Executors.newFixedThreadPool(singleNode.threads);
+        try {
+            singleNode.run(new Path(paths[0]), new Path(paths[1]), executor);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    void run(Path input, Path output, ExecutorService executor) throws Exception {
+        FileSystem fs = output.getFileSystem(conf);
+        if (fs.exists(output)) {
+            throw new FileAlreadyExistsException("Output directory " + output + " already exists");
+        }
+        long start = System.currentTimeMillis();
+        long trigrams = count(input, executor);
+        long counted = System.currentTimeMillis();
+        long offHeap = 0;
+        for (Stripe stripe : stripes) {
+            offHeap += stripe.bytes();
+        }
+        System.out.println("Counted " + trigrams + " trigrams of " + words.size() + " words from " + linesIn + " lines in "
+                + (counted - start) + " ms, " + (offHeap >> 20) + " MB off heap, dropped " + drops());
+
+        Histogram stats = histogram(executor);
+        long histogram = System.currentTimeMillis();
+        System.out.println("N_r/T_r of " + stats.size() + " r values in " + (histogram - counted) + " ms");
+
+        long written = write(stats, fs, output, executor);
+        fs.create(new Path(output, "_SUCCESS")).close();
+        long end = System.currentTimeMillis();
+        Runtime runtime = Runtime.getRuntime();
+        System.out.println("Wrote " + written + " probabilities to " + output + " in " + (end - histogram) + " ms, total "
+                + (end - start) + " ms, heap used " + ((runtime.totalMemory() - runtime.freeMemory()) >> 20) + " MB");
+    }
+
+    /**
+     * Counts the trigrams of all the splits of the input into the stripes.
+     * @return the number of distinct trigrams
+     */
+    long count(Path input, ExecutorService executor) throws Exception {
+        Job job = Job.getInstance(conf);
+        FileInputFormat.addInputPath(job, input);
+        if (conf.get(INPUT_FORMAT, "text").equals("sequence")) {
+            job.setInputFormatClass(SequenceFileInputFormat.class);
+        } else {
+            job.setInputFormatClass(TextInputFormat.class);
+        }
+        @SuppressWarnings("unchecked")
+        final InputFormat<Object, Text> inputFormat = (InputFormat<Object, Text>) ReflectionUtils.newInstance(job.getInputFormatClass(), conf);
+        final List<InputSplit> splits = inputFormat.getSplits(job);
+        final AtomicInteger next = new AtomicInteger();
+        List<Future<Reader>> readers = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            readers.add(executor.submit(new Callable<Reader>() {
+                @Override
+                public Reader call() throws Exception {
+                    Reader reader = new Reader();
+                    for (int split = next.getAndIncrement(); split < splits.size(); split = next.getAndIncrement()) {
+                        reader.read(inputFormat, splits.get(split));
+                    }
+                    reader.flush();
+                    return reader;
+                }
+            }));
+        }
+        for (Future<Reader> future : readers) {
+            Reader reader = get(future);
+            linesIn += reader.linesIn;
+            for (int i = 0; i < dropped.length; i++) {
+                dropped[i] += reader.dropped[i];
+            }
+        }
+        long trigrams = 0;
+        for (Stripe stripe : stripes) {
+            trigrams += stripe.size;
+        }
+        return trigrams;
+    }
+
+    /**
+     * @return the N_r/T_r statistics of all the trigrams, as Step2 writes them
+     */
+    Histogram histogram(ExecutorService executor) throws InterruptedException {
+        final AtomicInteger next = new AtomicInteger();
+        List<Future<Histogram>> histograms = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            histograms.add(executor.submit(new Callable<Histogram>() {
+                @Override
+                public Histogram call() {
+                    Histogram histogram = new Histogram();
+                    for (int i = next.getAndIncrement(); i < stripes.length; i = next.getAndIncrement()) {
+                        LongBuffer slots = stripes[i].slots;
+                        for (int slot = 0; slot < stripes[i].capacity; slot++) {
+                            if (slots.get(slot * 3) != 0) {
+                                histogram.add(slots.get(slot * 3 + 1), slots.get(slot * 3 + 2));
+                            }
+                        }
+                    }
+                    return histogram;
+                }
+            }));
+        }
+        Histogram stats = new Histogram();
+        for (Future<Histogram> histogram : histograms) {
+            stats.add(get(histogram));
+        }
+        return stats;
+    }
+
+    /**
+     * Writes the non-zero probabilities in the order of Step4, w1 ranges to part files.
+     * @return the number of probabilities written
+     */
+    long write(final Histogram stats, final FileSystem fs, final Path output, ExecutorService executor) throws InterruptedException {
+        final double n = stats.getOccurrences();
+        final Dictionary dictionary = new Dictionary(words);
+        if (dictionary.size() > 0) {
+            dictionary.rank(0); // sorts the words once, before the threads use the ranks
+        }
+        final int parts = Math.max(1, conf.getInt(PARTS, threads));
+        List<Future<ProbabilityEntries[]>> routed = new ArrayList<>();
+        for (final Stripe stripe : stripes) {
+            routed.add(executor.submit(new Callable<ProbabilityEntries[]>() {
+                @Override
+                public ProbabilityEntries[] call() {
+                    ProbabilityEntries[] ranges = new ProbabilityEntries[parts];
+                    for (int i = 0; i < parts; i++) {
+                        ranges[i] = new ProbabilityEntries(stripe.size / parts);
+                    }
+                    LongBuffer slots = stripe.slots;
+                    for (int slot = 0; slot < stripe.capacity; slot++) {
+                        long key = slots.get(slot * 3);
+                        if (key == 0) {
+                            continue;
+                        }
+                        long r = slots.get(slot * 3 + 1) + slots.get(slot * 3 + 2);
+                        double probability = Step3.probability(stats.getN(r), stats.getT(r), n);
+                        if (probability != 0) {
+                            int rank1 = dictionary.rank((int) (key >>> (2 * WORD_BITS) & WORD_MASK));
+                            int rank2 = dictionary.rank((int) (key >>> WORD_BITS & WORD_MASK));
+                            ranges[(int) ((long) rank1 * parts / dictionary.size())].add(rank1, rank2, (int) (key & WORD_MASK), probability);
+                        }
+                    }
+                    return ranges;
+                }
+            }));
+        }
+        final List<ProbabilityEntries[]> stripeRanges = new ArrayList<>();
+        for (Future<ProbabilityEntries[]> ranges : routed) {
+            stripeRanges.add(get(ranges));
+        }
+        List<Future<Long>> written = new ArrayList<>();
+        for (int part = 0; part < parts; part++) {
+            final int range = part;
+            written.add(executor.submit(new Callable<Long>() {
+                @Override
+                public Long call() throws IOException {
+                    List<ProbabilityEntries> sorted = new ArrayList<>();
+                    for (ProbabilityEntries[] ranges : stripeRanges) {
+                        ranges[range].sort();
+                        sorted.add(ranges[range]);
+                    }
+                    Path file = new Path(output, String.format("part-r-%05d", range));
+                    try (OutputStream out = new BufferedOutputStream(fs.create(file, false), 1 << 16)) {
+                        return ProbabilityEntries.write(sorted, dictionary, out);
+                    }
+                }
+            }));
+        }
+        long total = 0;
+        for (Future<Long> part : written) {
+            total += get(part);
+        }
+        return total;
+    }
+
+    private String drops() {
+        StringBuilder drops = new StringBuilder();
+        for (RecordCounters reason : RecordCounters.values()) {
+            if (dropped[reason.ordinal()] > 0) {
+                drops.append(drops.length() == 0 ? "" : ", ").append(reason).append('=').append(dropped[reason.ordinal()]);
+            }
+        }
+        return drops.length() == 0 ? "none" : drops.toString();
+    }
+
+    private static <T> T get(Future<T> future) throws InterruptedException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    /**
+     * @return the id of the word, a new one if it wasn't seen yet
+     */
+    private int id(Text word) {
+        Integer id = ids.get(word);
+        if (id == null) {
+            synchronized (words) {
+                id = ids.get(word);
+                if (id == null) {
+                    if (words.size() == MAX_WORDS) {
+                        throw new IllegalStateException("More than " + MAX_WORDS + " distinct words: too many for SingleNode, use the Hadoop pipeline");
+                    }
+                    id = words.size();
+                    words.add(word.copyBytes());
+                    ids.put(new Text(word), id);
+                }
+            }
+        }
+        return id;
+    }
+
+    // the finalizer of MurmurHash3, so that nearby ids spread over the stripes and the slots
+    private static long mix(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+        return key;
+    }
+
+    /**
+     * The reading thread of some of the splits: filters their lines and batches their trigrams per stripe.
+     */
+    private class Reader {
+        private final NgramLine line = new NgramLine();
+        private final Text word = new Text();
+        private final Batch[] batches = new Batch[stripes.length];
+        private final long[] dropped = new long[RecordCounters.values().length];
+        private long linesIn = 0;
+
+        Reader() {
+            for (int i = 0; i < batches.length; i++) {
+                batches[i] = new Batch();
+            }
+        }
+
+        void read(InputFormat<Object, Text> inputFormat, InputSplit split) throws IOException, InterruptedException {
+            TaskAttemptContext context = new TaskAttemptContextImpl(conf, new TaskAttemptID());
+            int part = 0; // restarts with every split, as in Step1.Map
+            try (RecordReader<Object, Text> reader = inputFormat.createRecordReader(split, context)) {
+                reader.initialize(split, context);
+                while (reader.nextKeyValue()) {
+                    linesIn++;
+                    if (!line.parse(reader.getCurrentValue())) {
+                        dropped[RecordCounters.PARSE_FAILURES.ordinal()]++;
+                        continue;
+                    }
+                    if (line.hasNonLetterWord()) {
+                        dropped[RecordCounters.FILTERED_NON_LETTER.ordinal()]++;
+                        continue;
+                    }
+                    if (line.hasStopWord(stopWords)) {
+                        dropped[RecordCounters.FILTERED_STOP_WORD.ordinal()]++;
+                        continue;
+                    }
+                    long key = OCCUPIED | (long) id(0) << (2 * WORD_BITS) | (long) id(1) << WORD_BITS | id(2);
+                    long hash = mix(key);
+                    int stripe = (int) hash & (stripes.length - 1);
+                    Batch batch = batches[stripe];
+                    batch.add(key, hash, line.getOccurrences(), part);
+                    part ^= 1;
+                    if (batch.size == BATCH) {
+                        stripes[stripe].apply(batch);
+                    }
+                }
+            }
+        }
+
+        private int id(int i) {
+            word.set(line.getBytes(), line.getStart(i), line.getEnd(i) - line.getStart(i));
+            return SingleNode.this.id(word);
+        }
+
+        void flush() {
+            for (int i = 0; i < batches.length; i++) {
+                stripes[i].apply(batches[i]);
+            }
+        }
+    }
+
+    /**
+     * Trigrams read by one thread for one stripe, applied together under its lock.
+     */
+    private static class Batch {
+        private final long[] keys = new long[BATCH];
+        private final long[] hashes = new long[BATCH];
+        private final long[] occurrences = new long[BATCH];
+        private final int[] parts = new int[BATCH];
+        private int size = 0;
+
+        void add(long key, long hash, long count, int part) {
+            keys[size] = key;
+            hashes[size] = hash;
+            occurrences[size] = count;
+            parts[size] = part;
+            size++;
+        }
+    }
+
+    /**
+     * Open addressing with linear probing over slots of 3 longs - key (0 for an empty slot), part0, part1 - in a
+     * direct buffer. The slot of a key comes from the high bits of its hash, the stripe from the low bits.
+     */
+    private static class Stripe {
+        private static final int MAX_CAPACITY = Integer.highestOneBit(Integer.MAX_VALUE / 24); // slots of one direct buffer
+
+        private LongBuffer slots;
+        private int capacity;
+        private int size = 0;
+
+        Stripe(int capacity) {
+            allocate(capacity);
+        }
+
+        private void allocate(int capacity) {
+            this.capacity = capacity;
+            slots = ByteBuffer.allocateDirect(capacity * 24).order(ByteOrder.nativeOrder()).asLongBuffer();
+        }
+
+        long bytes() {
+            return (long) capacity * 24;
+        }
+
+        synchronized void apply(Batch batch) {
+            for (int i = 0; i < batch.size; i++) {
+                if (size >= capacity * 0.7) {
+                    grow();
+                }
+                int slot = find(batch.keys[i], batch.hashes[i]);
+                int index = slot * 3;
+                if (slots.get(index) == 0) {
+                    slots.put(index, batch.keys[i]);
+                    size++;
+                }
+                index += 1 + batch.parts[i];
+                slots.put(index, slots.get(index) + batch.occurrences[i]);
+            }
+            batch.size = 0;
+        }
+
+        // the slot of the key, or the empty slot where it would go
+        private int find(long key, long hash) {
+            int mask = capacity - 1;
+            int slot = (int) (hash >>> 32) & mask;
+            long current;
+            while ((current = slots.get(slot * 3)) != 0 && current != key) {
+                slot = (slot + 1) & mask;
+            }
+            return slot;
+        }
+
+        private void grow() {
+            if (capacity == MAX_CAPACITY) {
+                throw new IllegalStateException("A stripe is full at " + capacity + " trigrams: set " + STRIPES + " higher");
+            }
+            LongBuffer old = slots;
+            int oldCapacity = capacity;
+            allocate(capacity * 2);
+            for (int slot = 0; slot < oldCapacity; slot++) {
+                long key = old.get(slot * 3);
+                if (key != 0) {
+                    int index = find(key, mix(key)) * 3;
+                    slots.put(index, key);
+                    slots.put(index + 1, old.get(slot * 3 + 1));
+                    slots.put(index + 2, old.get(slot * 3 + 2));
+                }
+            }
+        }
+    }
+
+    /**
+     * N_r^01 and T_r^01 in long[] indexed by r for the small r, where nearly all the trigrams are,
+     * and in a StatTable for the rest.
+     */
+    static class Histogram {
+        private final long[] n = new long[DENSE];
+        private final long[] t = new long[DENSE];
+        private final StatTable large = new StatTable();
+        private final StatKey statKey = new StatKey();
+
+        // the records Step1.FusedReduce writes for a trigram, summed over the parts as StatTable does
+        void add(long part0, long part1) {
+            add(StatKey.N, part0, 1);
+            add(StatKey.N, part1, 1);
+            add(StatKey.T, part0, part1);
+            add(StatKey.T, part1, part0);
+        }
+
+        private void add(byte kind, long r, long count) {
+            if (r < DENSE) {
+                (kind == StatKey.N ? n : t)[(int) r] += count;
+            } else {
+                statKey.set(kind, r, 0);
+                large.add(statKey, count);
+            }
+        }
+
+        void add(Histogram other) {
+            for (int r = 0; r < DENSE; r++) {
+                n[r] += other.n[r];
+                t[r] += other.t[r];
+            }
+            large.add(other.large);
+        }
+
+        // the N of Step3
+        long getOccurrences() {
+            long occurrences = large.getOccurrences();
+            for (int r = 0; r < DENSE; r++) {
+                occurrences += r * n[r];
+            }
+            return occurrences;
+        }
+
+        long getN(long r) {
+            return r < DENSE ? n[(int) r] : large.getN(r);
+        }
+
+        long getT(long r) {
+            return r < DENSE ? t[(int) r] : large.getT(r);
+        }
+
+        int size() {
+            int size = large.size();
+            for (int r = 0; r < DENSE; r++) {
+                if (n[r] != 0) {
+                    size++;
+                }
+            }
+            return size;
+        }
+    }
+}
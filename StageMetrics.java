@@ -0,0 +1,76 @@
+import org.apache.hadoop.mapreduce.ReduceContext;
+import org.apache.hadoop.mapreduce.TaskInputOutputContext;
+import org.apache.hadoop.mapreduce.TaskType;
+
+
+/**
+ * Counters of one Map, Combine or Reduce class, in a counter group named after the class (e.g. Step1$Map):
+ * records in and out, input bytes (mappers of text lines), the records dropped by each RecordCounters reason
+ * and the milliseconds from the creation of the instance to cleanup. A reducer that runs as the combiner of a
+ * map task reports to "<class> (combine)".
+ * The hot path only adds to fields, the counters are updated once, at cleanup.
+ */
+public class StageMetrics {
+    public static final String RECORDS_IN = "RECORDS_IN";
+    public static final String RECORDS_OUT = "RECORDS_OUT";
+    public static final String BYTES_IN = "BYTES_IN";
+    public static final String MILLIS = "MILLIS";
+
+    private final Class<?> stage;
+    private final long start = System.nanoTime();
+    private final long[] dropped = new long[RecordCounters.values().length];
+    private long recordsIn = 0, recordsOut = 0, bytesIn = 0;
+
+    public StageMetrics(Class<?> stage) {
+        this.stage = stage;
+    }
+
+    public void in() {
+        recordsIn++;
+    }
+
+    public void in(long records) {
+        recordsIn += records;
+    }
+
+    /**
+     * One record of this many bytes in.
+     */
+    public void inBytes(int bytes) {
+        recordsIn++;
+        bytesIn += bytes;
+    }
+
+    public void out() {
+        recordsOut++;
+    }
+
+    public void out(long records) {
+        recordsOut += records;
+    }
+
+    public void drop(RecordCounters reason) {
+        dropped[reason.ordinal()]++;
+    }
+
+    /**
+     * Adds the counts to the counters of the task. Called from cleanup.
+     */
+    public void report(TaskInputOutputContext<?, ?, ?, ?> context) {
+        String group = stage.getName();
+        if (context instanceof ReduceContext && context.getTaskAttemptID().getTaskType() == TaskType.MAP) {
+            group += " (combine)";
+        }
+        context.getCounter(group, RECORDS_IN).increment(recordsIn);
+        context.getCounter(group, RECORDS_OUT).increment(recordsOut);
+        if (bytesIn > 0) {
+            context.getCounter(group, BYTES_IN).increment(bytesIn);
+        }
+        context.getCounter(group, MILLIS).increment((System.nanoTime() - start) / 1000000);
+        for (RecordCounters reason : RecordCounters.values()) {
+            if (dropped[reason.ordinal()] > 0) {
+                context.getCounter(reason).increment(dropped[reason.ordinal()]);
+            }
+        }
+    }
+}
@@ -0,0 +1,133 @@
+import org.apache.hadoop.io.WritableComparable;
+import org.apache.hadoop.io.WritableComparator;
+import org.apache.hadoop.io.WritableUtils;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+
+/**
+ * Tagged statistic key <kind, r, part>.
+ * kind - N (N_r^part), T (T_r^part) or TRIGRAM (a trigram that occurred r times, used by Step3)
+ * Serialized as <kind byte, r vlong, part byte>.
+ * Sorted by r, then kind, then part - so for every r the N and T records come before the trigrams.
+ */
+public class StatKey implements WritableComparable<StatKey> {
+    public static final byte N = 0;
+    public static final byte T = 1;
+    public static final byte TRIGRAM = 2;
+
+    private byte kind;
+    private long r;
+    private byte part;
+
+    public StatKey() {
+    }
+
+    public StatKey(byte kind, long r, int part) {
+        set(kind, r, part);
+    }
+
+    public void set(byte kind, long r, int part) {
+        this.kind = kind;
+        this.r = r;
+        this.part = (byte) part;
+    }
+
+    public byte getKind() {
+        return kind;
+    }
+
+    public long getR() {
+        return r;
+    }
+
+    public int getPart() {
+        return part;
+    }
+
+    /**
+     * @return the number of bytes written by write()
+     */
+    public int getSerializedSize() {
+        return 2 + WritableUtils.getVIntSize(r);
+    }
+
+    @Override
+    public void write(DataOutput out) throws IOException {
+        out.writeByte(kind);
+        WritableUtils.writeVLong(out, r);
+        out.writeByte(part);
+    }
+
+    @Override
+    public void readFields(DataInput in) throws IOException {
+        kind = in.readByte();
+        r = WritableUtils.readVLong(in);
+        part = in.readByte();
+    }
+
+    @Override
+    public int compareTo(StatKey other) {
+        int compareResult = Long.compare(r, other.r);
+        if (compareResult != 0) {
+            return compareResult;
+        }
+        compareResult = Byte.compare(kind, other.kind);
+        if (compareResult != 0) {
+            return compareResult;
+        }
+        return Byte.compare(part, other.part);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof StatKey)) {
+            return false;
+        }
+        StatKey other = (StatKey) o;
+        return kind == other.kind && r == other.r && part == other.part;
+    }
+
+    @Override
+    public int hashCode() {
+        return (Long.hashCode(r) * 31 + kind) * 31 + part;
+    }
+
+    @Override
+    public String toString() {
+        String kindS = kind == N ? "N" : kind == T ? "T" : "b";
+        return kindS + "," + r + "," + part;
+    }
+
+    /**
+     * Compares <r, kind, part> straight from the serialized bytes.
+     */
+    public static class Comparator extends WritableComparator {
+        public Comparator() {
+            super(StatKey.class);
+        }
+
+        @Override
+        public int compare(byte[] b1, int s1, int l1, byte[] b2, int s2, int l2) {
+            try {
+                int compareResult = Long.compare(readVLong(b1, s1 + 1), readVLong(b2, s2 + 1));
+                if (compareResult != 0) {
+                    return compareResult;
+                }
+                compareResult = Byte.compare(b1[s1], b2[s2]);
+                if (compareResult != 0) {
+                    return compareResult;
+                }
+                return Byte.compare(b1[s1 + l1 - 1], b2[s2 + l2 - 1]);
+            } catch (IOException e) {
+                throw new IllegalArgumentException(e);
+            }
+        }
+    }
+
+    static {
+        WritableComparator.define(StatKey.class, new Comparator());
+    }
+}
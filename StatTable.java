@@ -0,0 +1,136 @@
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.SequenceFile;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+
+/**
+ * In-memory N_r^01 = N_r^0 + N_r^1 and T_r^01 = T_r^0 + T_r^1 for every r, built from the Step2 output.
+ * There are only a few thousand distinct r values, so the whole table fits easily in every mapper.
+ * Open addressing over primitive arrays - no boxing on lookup.
+ */
+public class StatTable {
+    private static final long EMPTY = -1;
+
+    private long[] rs;
+    private long[] n;
+    private long[] t;
+    private int size = 0;
+
+    public StatTable() {
+        this(1024);
+    }
+
+    public StatTable(int capacity) {
+        int tableSize = Integer.highestOneBit(Math.max(capacity, 16) * 2 - 1);
+        rs = new long[tableSize];
+        n = new long[tableSize];
+        t = new long[tableSize];
+        Arrays.fill(rs, EMPTY);
+    }
+
+    /**
+     * Adds a Step2 record <N or T, r, part> -> count.
+     */
+    public void add(StatKey key, long count) {
+        int slot = insert(key.getR());
+        if (key.getKind() == StatKey.N) {
+            n[slot] += count;
+        } else if (key.getKind() == StatKey.T) {
+            t[slot] += count;
+        }
+    }
+
+    /**
+     * Adds the N and T of every r of other (e.g. the table of another shard).
+     */
+    public void add(StatTable other) {
+        for (int i = 0; i < other.rs.length; i++) {
+            if (other.rs[i] != EMPTY) {
+                int slot = insert(other.rs[i]);
+                n[slot] += other.n[i];
+                t[slot] += other.t[i];
+            }
+        }
+    }
+
+    /**
+     * @return sum of r * N_r^01 over all r - the occurrences of all the trigrams, the N of Step3
+     */
+    public long getOccurrences() {
+        long occurrences = 0;
+        for (int i = 0; i < rs.length; i++) {
+            if (rs[i] != EMPTY) {
+                occurrences += rs[i] * n[i];
+            }
+        }
+        return occurrences;
+    }
+
+    public long getN(long r) {
+        int slot = slot(r);
+        return rs[slot] == EMPTY ? 0 : n[slot];
+    }
+
+    public long getT(long r) {
+        int slot = slot(r);
+        return rs[slot] == EMPTY ? 0 : t[slot];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Reads a SequenceFile of <StatKey, LongWritable> written by Step2.Reduce.
+     */
+    public void load(Path path, Configuration conf) throws IOException {
+        StatKey key = new StatKey();
+        LongWritable value = new LongWritable();
+        try (SequenceFile.Reader reader = new SequenceFile.Reader(conf, SequenceFile.Reader.file(path))) {
+            while (reader.next(key, value)) {
+                add(key, value.get());
+            }
+        }
+    }
+
+    private int insert(long r) {
+        int slot = slot(r);
+        if (rs[slot] == EMPTY) {
+            rs[slot] = r;
+            if (++size * 2 > rs.length) {
+                grow();
+                slot = slot(r);
+            }
+        }
+        return slot;
+    }
+
+    private int slot(long r) {
+        int mask = rs.length - 1;
+        int slot = (int) (r ^ (r >>> 32)) * 0x9E3779B9 & mask;
+        while (rs[slot] != EMPTY && rs[slot] != r) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private void grow() {
+        long[] oldRs = rs, oldN = n, oldT = t;
+        rs = new long[oldRs.length * 2];
+        n = new long[rs.length];
+        t = new long[rs.length];
+        Arrays.fill(rs, EMPTY);
+        for (int i = 0; i < oldRs.length; i++) {
+            if (oldRs[i] != EMPTY) {
+                int slot = slot(oldRs[i]);
+                rs[slot] = oldRs[i];
+                n[slot] = oldN[i];
+                t[slot] = oldT[i];
+            }
+        }
+    }
+}
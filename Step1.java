@@ -3,23 +3,40 @@ import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.LongWritable;
 import org.apache.hadoop.io.Text;
 import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.JobContext;
 import org.apache.hadoop.mapreduce.Mapper;
 import org.apache.hadoop.mapreduce.Partitioner;
 import org.apache.hadoop.mapreduce.Reducer;
+import org.apache.hadoop.mapreduce.TaskInputOutputContext;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
 import org.apache.hadoop.mapreduce.lib.input.SequenceFileInputFormat;
 import org.apache.hadoop.mapreduce.lib.input.TextInputFormat;
 import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
-import org.apache.hadoop.mapreduce.lib.output.TextOutputFormat;
+import org.apache.hadoop.mapreduce.lib.output.MultipleOutputs;
+import org.apache.hadoop.mapreduce.lib.output.SequenceFileOutputFormat;
 
 
 import java.io.*;
-import java.util.Collections;
-import java.util.HashSet;
+import java.util.HashMap;
 
 
 public class Step1 {
+    static final String FUSED = "step1.fused";
+    static final String LOWER_ORDERS = "step1.lower.orders";
+    static final String LOWER = "lower";
+    /**
+     * Trigrams with fewer occurrences in the whole input are not written (default 0: all of them are). Step1.Map drops
+     * them before the shuffle by the estimate of the TrigramSketch in the distributed cache, the reducers drop the
+     * rest by their exact totals. A dropped trigram has r < MIN_COUNT in both parts, so the N_r and T_r of every r
+     * the written trigrams read are the same as without pruning - only N (OCCURRENCES) has to count the dropped ones.
+     */
+    static final String MIN_COUNT = "step1.min.count";
 
-    static HashSet<String> stopWords = new HashSet<>();
+    public enum Counter {
+        OCCURRENCES, // of all the trigrams kept - the N of Step3, counted in this scan instead of in a job of its own
+        PRUNED_OCCURRENCES, // of the trigrams dropped by MIN_COUNT, before and after the shuffle (they are in OCCURRENCES)
+        PRUNED_AFTER_SHUFFLE // trigrams the sketch let through and the reducers dropped
+    }
 
 
     /**
@@ -28,136 +45,424 @@ public class Step1 {
      * value - 3-gram /t year /t occurrences /t pages /t books
      * <p>
      * Output:
-     * Key: <w1, w2, w3>
-     * Value: [<occurrences in part 0>,0] OR [0,<occurrences in part 1>]
+     * Key: TrigramKey <w1, w2, w3> (Dictionary ids)
+     * Value: PartCounts [<occurrences in part 0>,0] OR [0,<occurrences in part 1>]
+     * A 3-gram is kept only if its three words are in the vocabulary (so they are letters only and not stop words).
+     * With LOWER_ORDERS on it is also counted as the bigram <-1, w2, w3> and the unigram <-1, -1, w3>,
+     * which FusedReduce writes to the "lower" named output (the counts Scorer interpolates with).
+     * With MIN_COUNT on, a 3-gram whose trigram is estimated below it by the sketch is not written (its lower
+     * orders still are), and it still takes its turn in the part alternation, so the parts of the others don't change.
+     * With in-mapper aggregation on, the values of a trigram are summed before they are written.
+     * The line is scanned as UTF-8 bytes and written through reused objects - nothing is allocated per record.
      */
-    private static class Map extends Mapper<LongWritable, Text, Text, Text> {
+    private static class Map extends Mapper<LongWritable, Text, TrigramKey, PartCounts> {
         int part = 0;
+        private final NgramLine line = new NgramLine();
+        private final TrigramKey outKey = new TrigramKey();
+        private final PartCounts outValue = new PartCounts();
+        private InMapperAggregation aggregation;
+        private HashMap<TrigramKey, PartCounts> buffer; // null when in-mapper aggregation is off
+        private long recordsIn = 0, bytesIn = 0;
+        private long occurrencesKept = 0;
+        private long occurrencesPruned = 0;
+        private Dictionary dictionary;
+        private TrigramSketch sketch; // null when MIN_COUNT is off
+        private long minCount;
+        private boolean lowerOrders;
+        private final StageMetrics metrics = new StageMetrics(Map.class);
 
         @Override
-        public void map(LongWritable key, Text value, Mapper.Context context) throws IOException, InterruptedException {
-            //System.out.println("Started Mapping\n");
-            String[] fields = value.toString().split("\t");
-            String[] trigram = fields[0].split(" ");
-            if (fields.length < 5)
-                return;
-            if (trigram.length > 2) {
-                String w1 = trigram[0];
-                String w2 = trigram[1];
-                String w3 = trigram[2];
-
-                if (isntLetter(w1) || isntLetter(w2) || isntLetter(w3))
-                    return;
+        protected void setup(Context context) throws IOException {
+            dictionary = Dictionary.fromCache(context);
+            lowerOrders = context.getConfiguration().getBoolean(LOWER_ORDERS, false);
+            minCount = context.getConfiguration().getLong(MIN_COUNT, 0);
+            if (minCount > 1) {
+                sketch = TrigramSketch.fromCache(context);
+            }
+            if (InMapperAggregation.isEnabled(context.getConfiguration())) {
+                aggregation = new InMapperAggregation(context.getConfiguration());
+                buffer = new HashMap<>();
+            }
+        }
 
-                if (isStopWord(w1) || isStopWord(w2) || isStopWord(w3))
-                    return;
+        @Override
+        public void map(LongWritable key, Text value, Context context) throws IOException, InterruptedException {
+            metrics.inBytes(value.getLength());
+            if (!line.parse(value)) {
+                metrics.drop(RecordCounters.PARSE_FAILURES);
+                return;
+            }
 
-                String occurrences = fields[2];
+            byte[] bytes = line.getBytes();
+            int w1 = dictionary.id(bytes, line.getStart(0), line.getEnd(0));
+            int w2 = w1 < 0 ? -1 : dictionary.id(bytes, line.getStart(1), line.getEnd(1));
+            int w3 = w2 < 0 ? -1 : dictionary.id(bytes, line.getStart(2), line.getEnd(2));
+            if (w3 < 0) {
+                metrics.drop(RecordCounters.FILTERED_NOT_IN_VOCABULARY);
+                return;
+            }
 
-                if (part == 0) {
-                    part = 1;
-                    context.write(new Text(String.format("%s %s %s", w1, w2, w3)), new Text(occurrences + ",0")); // for T
-                } else {
-                    part = 0;
-                    context.write(new Text(String.format("%s %s %s", w1, w2, w3)), new Text("0," + occurrences)); // for T
-                }
+            long occurrences = line.getOccurrences();
+            occurrencesKept += occurrences;
+            if (part == 0) {
+                part = 1;
+                outValue.set(occurrences, 0); // for T
+            } else {
+                part = 0;
+                outValue.set(0, occurrences); // for T
+            }
+            if (sketch != null && sketch.estimate(w1, w2, w3) < minCount) {
+                metrics.drop(RecordCounters.PRUNED_LOW_COUNT);
+                occurrencesPruned += occurrences;
+            } else {
+                outKey.set(w1, w2, w3);
+                emit(context);
+            }
+            if (lowerOrders) {
+                outKey.set(-1, w2, w3);
+                emit(context);
+                outKey.set(-1, -1, w3);
+                emit(context);
+            }
+        }
 
+        @Override
+        protected void cleanup(Context context) throws IOException, InterruptedException {
+            if (buffer != null) {
+                flush(context);
             }
+            context.getCounter(Counter.OCCURRENCES).increment(occurrencesKept);
+            context.getCounter(Counter.PRUNED_OCCURRENCES).increment(occurrencesPruned);
+            metrics.report(context);
         }
 
-        private boolean isntLetter(String w1) {
-            if (w1.isEmpty()) {
-                return true;
+        private void emit(Context context) throws IOException, InterruptedException {
+            if (buffer == null) {
+                context.write(outKey, outValue);
+                metrics.out();
+                return;
             }
-            for (int i = 0; i < w1.length(); i++) {
-                if (!Character.isLetter(w1.charAt(i))) {
-                    return true;
-                }
+            recordsIn++;
+            bytesIn += outKey.getSerializedSize() + outValue.getSerializedSize();
+            PartCounts counts = buffer.get(outKey);
+            if (counts == null) {
+                TrigramKey newKey = new TrigramKey();
+                newKey.set(outKey);
+                buffer.put(newKey, new PartCounts(outValue.getPart0(), outValue.getPart1()));
+            } else {
+                counts.set(counts.getPart0() + outValue.getPart0(), counts.getPart1() + outValue.getPart1());
+            }
+            if (aggregation.shouldFlush(buffer.size())) {
+                flush(context);
             }
-            return false;
         }
 
-        private boolean isStopWord(String w1) {
-            return stopWords.contains(w1);
+        private void flush(Context context) throws IOException, InterruptedException {
+            long bytesOut = 0;
+            for (java.util.Map.Entry<TrigramKey, PartCounts> entry : buffer.entrySet()) {
+                context.write(entry.getKey(), entry.getValue());
+                bytesOut += entry.getKey().getSerializedSize() + entry.getValue().getSerializedSize();
+            }
+            context.getCounter(ShuffleCounters.IN_MAPPER_RECORDS_IN).increment(recordsIn);
+            context.getCounter(ShuffleCounters.IN_MAPPER_RECORDS_OUT).increment(buffer.size());
+            context.getCounter(ShuffleCounters.IN_MAPPER_BYTES_SAVED).increment(bytesIn - bytesOut);
+            context.getCounter(ShuffleCounters.IN_MAPPER_FLUSHES).increment(1);
+            metrics.out(buffer.size());
+            buffer.clear();
+            recordsIn = 0;
+            bytesIn = 0;
         }
     }
 
     /**
      * Input:
-     * Key: <w1, w2, w3>
-     * Value: [<occurrences in part 0>,0] OR [0,<occurrences in part 1>]
+     * Key: TrigramKey <w1, w2, w3>
+     * Value: PartCounts [<occurrences in part 0>,0] OR [0,<occurrences in part 1>]
      * <p>
      * Output:
-     * Key: <w1, w2, w3>
-     * Value: [<Total occurrences of all years in part 0>, <Total occurrences of all years in part 1>]
+     * Key: TrigramKey <w1, w2, w3>
+     * Value: PartCounts [<Total occurrences of all years in part 0>, <Total occurrences of all years in part 1>]
+     * The trigrams with fewer than MIN_COUNT occurrences are not written.
      */
 
-        public static class Reduce extends Reducer<Text, Text, Text, Text> {
+        public static class Reduce extends Reducer<TrigramKey, PartCounts, TrigramKey, PartCounts> {
+            private final PartCounts outValue = new PartCounts();
+            private final Pruning pruning = new Pruning();
+            private final StageMetrics metrics = new StageMetrics(Reduce.class);
+
             @Override
-            protected void reduce(Text key, Iterable<Text> values, Context context) throws IOException, InterruptedException {
+            protected void setup(Context context) {
+                pruning.setup(context);
+            }
 
-                int part0 = 0, part1 = 0;
+            @Override
+            protected void reduce(TrigramKey key, Iterable<PartCounts> values, Context context) throws IOException, InterruptedException {
 
-                while (values.iterator().hasNext()) {
-                    String value = values.iterator().next().toString();
-                    if (value.charAt(0) == '0') {
-                        part1 += Integer.parseInt(value.substring(2));
-                    } else {
-                        part0 += Integer.parseInt(value.substring(0, value.indexOf(',')));
+                long part0 = 0, part1 = 0;
+
+                for (PartCounts value : values) {
+                    part0 += value.getPart0();
+                    part1 += value.getPart1();
+                    metrics.in();
+                }
+                    if (pruning.prune(part0 + part1)) {
+                        return;
                     }
+                    outValue.set(part0, part1);
+                    context.write(key, outValue);
+                    metrics.out();
                 }
-                    String toWrite = part0 + "," + part1;
-                    context.write( key, new Text(String.format("%s", toWrite)));
+
+            @Override
+            protected void cleanup(Context context) {
+                pruning.report(context);
+                metrics.report(context);
+            }
+            }
+
+        /**
+         * The MIN_COUNT check of the reducers, on the exact totals of the trigrams.
+         */
+        private static class Pruning {
+            private long minCount;
+            private long trigrams = 0, occurrences = 0;
+
+            void setup(JobContext context) {
+                minCount = context.getConfiguration().getLong(MIN_COUNT, 0);
+            }
+
+            /**
+             * @return true if the trigram is dropped
+             */
+            boolean prune(long total) {
+                if (total >= minCount) {
+                    return false;
                 }
+                trigrams++;
+                occurrences += total;
+                return true;
+            }
+
+            void report(TaskInputOutputContext<?, ?, ?, ?> context) {
+                context.getCounter(Counter.PRUNED_AFTER_SHUFFLE).increment(trigrams);
+                context.getCounter(Counter.PRUNED_OCCURRENCES).increment(occurrences);
             }
+        }
+
+        /**
+         * Combiner - sums the part counts of a trigram on the map side, same as Reduce.
+         * Since every value is a full [part0, part1] pair, partial sums can be summed again by Reduce.
+         */
+        public static class Combine extends Reducer<TrigramKey, PartCounts, TrigramKey, PartCounts> {
+            private final PartCounts outValue = new PartCounts();
+            private final StageMetrics metrics = new StageMetrics(Combine.class);
 
+            @Override
+            protected void reduce(TrigramKey key, Iterable<PartCounts> values, Context context) throws IOException, InterruptedException {
+                long part0 = 0, part1 = 0;
+                long recordsIn = 0, bytesIn = 0;
 
+                for (PartCounts value : values) {
+                    part0 += value.getPart0();
+                    part1 += value.getPart1();
+                    recordsIn++;
+                    bytesIn += value.getSerializedSize();
+                    metrics.in();
+                }
+                outValue.set(part0, part1);
+                context.write(key, outValue);
 
-        public static class Partition extends Partitioner<Text, Text> {
+                bytesIn += recordsIn * key.getSerializedSize();
+                long bytesOut = key.getSerializedSize() + outValue.getSerializedSize();
+                context.getCounter(ShuffleCounters.COMBINER_RECORDS_IN).increment(recordsIn);
+                context.getCounter(ShuffleCounters.COMBINER_RECORDS_OUT).increment(1);
+                context.getCounter(ShuffleCounters.COMBINER_BYTES_SAVED).increment(bytesIn - bytesOut);
+                metrics.out();
+            }
 
             @Override
-            public int getPartition(Text key, Text value, int numPartitions) {
-                return Math.abs(key.hashCode() % numPartitions);
+            protected void cleanup(Context context) {
+                metrics.report(context);
             }
         }
 
-        public static void main(String[] args) throws Exception {
+        /**
+         * Step1 and Step2 in one reducer.
+         * Input: same as Reduce
+         * <p>
+         * Output:
+         * 1. Total occurrences for each trigram (the "trigrams" named output, same as Step2)
+         * key: TrigramKey <w1, w2, w3>
+         * value : <total occurrences>
+         * <p>
+         * 2. N_r^0, N_r^1, T_r^0 AND T_r^1 summed over the trigrams of this reducer (main output, written at cleanup)
+         * key - StatKey <N OR T, r, part>
+         * value - <partial count>
+         * <p>
+         * 3. With LOWER_ORDERS, the total occurrences of the bigrams and unigrams (the "lower" named output)
+         * key: TrigramKey <-1, w2, w3> OR <-1, -1, w3>
+         * value : <total occurrences>
+         * The trigrams with fewer than MIN_COUNT occurrences are not written, nor counted in N_r and T_r.
+         * There are only a few thousand distinct r values, so the partial sums are kept in memory.
+         * Step3 sums the partial counts of all the reducers, so no Step2 job is needed.
+         */
+        public static class FusedReduce extends Reducer<TrigramKey, PartCounts, StatKey, LongWritable> {
+            private final HashMap<StatKey, LongWritable> stats = new HashMap<>();
+            private final StatKey statKey = new StatKey();
+            private final LongWritable total = new LongWritable();
+            private MultipleOutputs<StatKey, LongWritable> multipleOutputs;
+            private final Pruning pruning = new Pruning();
+            private final StageMetrics metrics = new StageMetrics(FusedReduce.class);
 
-            Configuration conf = new Configuration();
+            @Override
+            protected void setup(Context context) {
+                multipleOutputs = new MultipleOutputs<>(context);
+                pruning.setup(context);
+            }
+
+            @Override
+            protected void reduce(TrigramKey key, Iterable<PartCounts> values, Context context) throws IOException, InterruptedException {
+                long part0 = 0, part1 = 0;
+
+                for (PartCounts value : values) {
+                    part0 += value.getPart0();
+                    part1 += value.getPart1();
+                    metrics.in();
+                }
+                if (key.getW1() < 0) { // a lower order count, not a trigram
+                    total.set(part0 + part1);
+                    multipleOutputs.write(LOWER, key, total);
+                    metrics.out();
+                    return;
+                }
+                if (pruning.prune(part0 + part1)) {
+                    return;
+                }
+
+                addStat(StatKey.N, part0, 0, 1);
+                addStat(StatKey.N, part1, 1, 1);
+                addStat(StatKey.T, part0, 0, part1);
+                addStat(StatKey.T, part1, 1, part0);
+
+                total.set(part0 + part1);
+                multipleOutputs.write(Step2.TRIGRAMS, key, total); // <<w1,w2,w3>, total occ in all the corpus>
+                metrics.out();
+            }
+
+            private void addStat(byte kind, long r, int part, long count) {
+                statKey.set(kind, r, part);
+                LongWritable sum = stats.get(statKey);
+                if (sum == null) {
+                    stats.put(new StatKey(kind, r, part), new LongWritable(count));
+                } else {
+                    sum.set(sum.get() + count);
+                }
+            }
+
+            @Override
+            protected void cleanup(Context context) throws IOException, InterruptedException {
+                for (java.util.Map.Entry<StatKey, LongWritable> entry : stats.entrySet()) {
+                    context.write(entry.getKey(), entry.getValue());
+                }
+                metrics.out(stats.size());
+                pruning.report(context);
+                metrics.report(context);
+                multipleOutputs.close();
+            }
+        }
+
+
+
+        public static class Partition extends Partitioner<TrigramKey, PartCounts> {
+
+            @Override
+            public int getPartition(TrigramKey key, PartCounts value, int numPartitions) {
+                return Math.abs(key.hashCode() % numPartitions);
+            }
+        }
+
+        /**
+         * Step1 job from the 3-gram text lines in input to output.
+         * With FUSED on the reducer is FusedReduce, and output holds what Step2 would have written.
+         * The caller adds the vocabulary written by the Vocabulary job (Dictionary.addToJob),
+         * and with MIN_COUNT the sketch written by the TrigramSketch job (TrigramSketch.addToJob).
+         */
+        static Job createJob(Configuration conf, Path input, Path output) throws IOException {
             Job job = Job.getInstance(conf);
             job.setJarByClass(Step1.class);
             job.setMapperClass(Map.class);
-            //job.setCombinerClass(Reduce.class);
+            job.setCombinerClass(Combine.class);
             job.setReducerClass(Reduce.class);
-            job.setOutputKeyClass(Text.class);
-            job.setOutputValueClass(Text.class);
+            job.setOutputKeyClass(TrigramKey.class);
+            job.setOutputValueClass(PartCounts.class);
             job.setPartitionerClass(Step1.Partition.class);
-            job.setOutputFormatClass(TextOutputFormat.class);
+            job.setOutputFormatClass(SequenceFileOutputFormat.class);
             job.setInputFormatClass(TextInputFormat.class);
 
+            if (conf.getBoolean(FUSED, false)) {
+                // writes what Step2 would have written, so Step2 is skipped and Step3 reads this output
+                job.setReducerClass(FusedReduce.class);
+                job.setMapOutputKeyClass(TrigramKey.class);
+                job.setMapOutputValueClass(PartCounts.class);
+                job.setOutputKeyClass(StatKey.class);
+                job.setOutputValueClass(LongWritable.class);
+                MultipleOutputs.addNamedOutput(job, Step2.TRIGRAMS, SequenceFileOutputFormat.class, TrigramKey.class, LongWritable.class);
+                if (conf.getBoolean(LOWER_ORDERS, false)) {
+                    MultipleOutputs.addNamedOutput(job, LOWER, SequenceFileOutputFormat.class, TrigramKey.class, LongWritable.class);
+                }
+                MultipleOutputs.setCountersEnabled(job, true); // records per named output, in the report
+            } else if (conf.getBoolean(LOWER_ORDERS, false)) {
+                throw new IllegalArgumentException(LOWER_ORDERS + " needs " + FUSED + ": Step2 would count the lower orders as trigrams");
+            }
+
+            FileInputFormat.addInputPath(job, input);
+            FileOutputFormat.setOutputPath(job, output);
+            Compression.configure(job, "step1");
+            return job;
+        }
+
+        public static void main(String[] args) throws Exception {
+
+            Configuration conf = new Configuration();
+
             boolean local = false;
             boolean english = true;
+            boolean inMapperAggregation = true;
+            boolean fused = true;
+            conf.setBoolean(InMapperAggregation.ENABLED, inMapperAggregation);
+            conf.setBoolean(FUSED, fused);
             String input = "", output = "";
             if (local) {
                 input = "/home/adler/Downloads/dist2-20221224T103516Z-001-20221228T114702Z-001/dist2-20221224T103516Z-001/dist2/MapReduceProject/3_grams.txt";
                 output = "/home/adler/Downloads/dist2-20221224T103516Z-001-20221228T114702Z-001/dist2-20221224T103516Z-001/dist2/MapReduceProject/src/main/java/outputs/Step1";
-                TextInputFormat.addInputPath(job, new Path(input));
-                job.setInputFormatClass(TextInputFormat.class);
             } else {
                 if (english) {
-                    Collections.addAll(stopWords, "a", "about", "above", "after", "again", "against", "all", "am", "an", "and", "any", "are", "aren't", "as", "at", "be", "because", "been", "before", "being", "below", "between", "both", "but", "by", "can't", "cannot", "could", "couldn't", "did", "didn't", "do", "does", "doesn't", "doing", "don't", "down", "during", "each", "few", "for", "from", "further", "had", "hadn't", "has", "hasn't", "have", "haven't", "having", "he", "he'd", "he'll", "he's", "her", "here", "here's", "hers", "herself", "him", "himself", "his", "how", "how's", "i", "i'd", "i'll", "i'm", "i've", "if", "in", "into", "is", "isn't", "it", "it's", "its", "itself", "let's", "me", "more", "most", "mustn't", "my", "myself", "no", "nor", "not", "of", "off", "on", "once", "only", "or", "other", "ought", "our", "ours", "ourselves", "out", "over", "own", "same", "shan't", "she", "she'd", "she'll", "she's", "should", "shouldn't", "so", "some", "such", "than", "that", "that's", "the", "their", "theirs", "them", "themselves", "then", "there", "there's", "these", "they", "they'd", "they'll", "they're", "they've", "this", "those", "through", "to", "too", "under", "until", "up", "very", "was", "wasn't", "we", "we'd", "we'll");
                     input = "s3n://datasets.elasticmapreduce/ngrams/books/20090715/eng-all/3gram/data";
                 } else {
-                    Collections.addAll(stopWords, "את", "לא", "של", "אני", "על", "זה", "עם", "כל", "הוא", "אם", "או", "גם", "יותר", "יש", "לי", "מה", "אבל", "פורום", "אז", "טוב", "רק", "כי", "שלי", "היה", "בפורום", "אין", "עוד", "היא", "אחד", "ב", "ל", "עד", "לך", "כמו", "להיות", "אתה", "כמה", "אנחנו", "הם", "כבר", "אנשים", "אפשר", "תודה", "שלא", "אותו", "ה", "מאוד", "הרבה", "ולא", "ממש", "לו", "א", "מי", "חיים", "בית", "שאני", "יכול", "שהוא", "כך");
                     input = "s3n://datasets.elasticmapreduce/ngrams/books/20090715/heb-all/3gram/data";
                 }
                 output = "s3://bucketurevich2/Step1output.txt";
-                SequenceFileInputFormat.addInputPath(job, new Path(input));
-                job.setInputFormatClass(SequenceFileInputFormat.class);
+            }
+            if (fused) {
+                output = local ? output.replace("outputs/Step1", "outputs/Step2") : "s3://bucketurevich2/Step2output.txt";
             }
 
-            FileOutputFormat.setOutputPath(job, new Path(output));
-            System.exit(job.waitForCompletion(true) ? 0 : 1);
+            if (!local) {
+                Compression.useClusterDefaults(conf);
+            }
+            Job job = createJob(conf, new Path(input), new Path(output));
+            if (local) {
+                Dictionary.addToJob(job, "/home/adler/Downloads/dist2-20221224T103516Z-001-20221228T114702Z-001/dist2-20221224T103516Z-001/dist2/MapReduceProject/src/main/java/outputs/vocabulary.txt");
+            } else {
+                Dictionary.addToJob(job, "s3://bucketurevich2/vocabulary.txt"); // written by Vocabulary
+                job.setInputFormatClass(SequenceFileInputFormat.class);
+            }
+            PipelineReport report = new PipelineReport();
+            boolean success = report.run(job, "step1");
+            Compression.report(job, "step1");
+            System.out.println("N = " + job.getCounters().findCounter(Counter.OCCURRENCES).getValue() + " (-D " + Step3.N + " for Step3)");
+            report.write(new Path(output + ".report.json"), conf);
+            System.exit(success ? 0 : 1);
         }
 
 
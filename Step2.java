@@ -1,60 +1,126 @@
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.LongWritable;
-import org.apache.hadoop.io.Text;
 import org.apache.hadoop.mapreduce.Job;
 import org.apache.hadoop.mapreduce.Mapper;
 import org.apache.hadoop.mapreduce.Partitioner;
 import org.apache.hadoop.mapreduce.Reducer;
 import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
 //import org.apache.hadoop.mapreduce.lib.input.MultipleInputs;
-import org.apache.hadoop.mapreduce.lib.input.TextInputFormat;
+import org.apache.hadoop.mapreduce.lib.input.SequenceFileInputFormat;
 import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
-import org.apache.hadoop.mapreduce.lib.output.TextOutputFormat;
+import org.apache.hadoop.mapreduce.lib.output.MultipleOutputs;
+import org.apache.hadoop.mapreduce.lib.output.SequenceFileOutputFormat;
 
 import java.io.IOException;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 
 // args = s3 path of the output of step1
 public class Step2 {
+    static final String TRIGRAMS = "trigrams";
+
     /**
      * Input:
-     *      Key: <w1, w2, w3>
-     *      Value: [Total occurrences of all years in part 0, Total occurrences of all years in part 1]
+     *      Key: TrigramKey <w1, w2, w3>
+     *      Value: PartCounts [Total occurrences of all years in part 0, Total occurrences of all years in part 1]
      *
      * Output:
      *      1. N_r^0 And N_r^1
-     *          key - <'N',r, part>  (r=occurrences)
+     *          key - StatKey <N, r, part>  (r=occurrences)
      *          value - <1>
      *
      *      2. T_r^0 AND T_r^1
-     *          key - <'T', r, part>  (r = total occurrences of the specific trigram in this part (0) of the corpus)
+     *          key - StatKey <T, r, part>  (r = total occurrences of the specific trigram in this part (0) of the corpus)
      *          value - <total occurrences of the specific trigram in the other part (1) of the corpus>
      *
-     *      3. Total occurrences for each trigram
-     *          key: <w1, w2, w3>
+     *      3. Total occurrences for each trigram (written straight to the "trigrams" named output, no shuffle)
+     *          key: TrigramKey <w1, w2, w3>
      *          value : <total occurrences>
+     *
+     * With in-mapper aggregation on, the N and T values are summed per key before they are written.
      */
-    private static class Map extends Mapper<LongWritable, Text, Text, Text> {
+    private static class Map extends Mapper<TrigramKey, PartCounts, StatKey, LongWritable> {
+        private final StatKey outKey = new StatKey();
+        private final LongWritable outValue = new LongWritable();
+        private MultipleOutputs<StatKey, LongWritable> multipleOutputs;
+        private InMapperAggregation aggregation;
+        private HashMap<StatKey, LongWritable> buffer; // null when in-mapper aggregation is off
+        private long recordsIn = 0, bytesIn = 0;
+        private final StageMetrics metrics = new StageMetrics(Map.class);
+
+        @Override
+        protected void setup(Context context) {
+            multipleOutputs = new MultipleOutputs<>(context);
+            if (InMapperAggregation.isEnabled(context.getConfiguration())) {
+                aggregation = new InMapperAggregation(context.getConfiguration());
+                buffer = new HashMap<>();
+            }
+        }
+
         @Override
-        public void map (LongWritable key, Text value, Context context)  throws IOException, InterruptedException {
-            String[] keyValuePair = value.toString().split("\t");
-            String trigram = keyValuePair[0];
-            String[] occPerPart = keyValuePair[1].split(",");
-            String occPart0 = occPerPart[0];
-            String occPart1 = occPerPart[1];
+        public void map (TrigramKey key, PartCounts value, Context context)  throws IOException, InterruptedException {
+            metrics.in();
+            long occPart0 = value.getPart0();
+            long occPart1 = value.getPart1();
+
+            emit(StatKey.N, occPart0, 0, 1, context); // <<N, occurrences, part>, <1>>
+            emit(StatKey.N, occPart1, 1, 1, context); // <<N, occurrences, part>, <1>>
 
-            context.write(new Text("N," + occPart0 + ",0"), new Text("1")); // <<occurrences,part>, <1>>
-            context.write(new Text("N," + occPart1 + ",1"), new Text("1")); // <<occurrences,part>, <1>>
+            emit(StatKey.T, occPart0, 0, occPart1, context); // <<T, r, 0>, <total occ...>>
+            emit(StatKey.T, occPart1, 1, occPart0, context); // <<T, r, 1>, <total occ...>>
 
-            context.write(new Text("T," + occPart0 + ",0"), new Text(occPart1)); // <<T, r, 0>, <total occ...>>
-            context.write(new Text("T," + occPart1 + ",1"), new Text(occPart0)); // <<T, r, 0>, <total occ...>>
+            outValue.set(value.getTotal());
+            multipleOutputs.write(TRIGRAMS, key, outValue); // <<w1,w2,w3>, total occ in all the corpus>
 
-            String r = "" + (Integer.valueOf(occPart0) + Integer.valueOf(occPart1));
-            context.write(new Text(trigram) , new Text(r)); // <<w1,w2,w3>, total occ in all the corpus>
+        }
 
+        @Override
+        protected void cleanup(Context context) throws IOException, InterruptedException {
+            if (buffer != null) {
+                flush(context);
+            }
+            metrics.report(context);
+            multipleOutputs.close();
+        }
+
+        private void emit(byte kind, long r, int part, long count, Context context) throws IOException, InterruptedException {
+            outKey.set(kind, r, part);
+            if (buffer == null) {
+                outValue.set(count);
+                context.write(outKey, outValue);
+                metrics.out();
+                return;
+            }
+            recordsIn++;
+            bytesIn += outKey.getSerializedSize() + 8;
+            LongWritable sum = buffer.get(outKey);
+            if (sum == null) {
+                buffer.put(new StatKey(kind, r, part), new LongWritable(count));
+            } else {
+                sum.set(sum.get() + count);
+            }
+            if (aggregation.shouldFlush(buffer.size())) {
+                flush(context);
+            }
+        }
+
+        private void flush(Context context) throws IOException, InterruptedException {
+            long bytesOut = 0;
+            for (java.util.Map.Entry<StatKey, LongWritable> entry : buffer.entrySet()) {
+                context.write(entry.getKey(), entry.getValue());
+                bytesOut += entry.getKey().getSerializedSize() + 8;
+            }
+            context.getCounter(ShuffleCounters.IN_MAPPER_RECORDS_IN).increment(recordsIn);
+            context.getCounter(ShuffleCounters.IN_MAPPER_RECORDS_OUT).increment(buffer.size());
+            context.getCounter(ShuffleCounters.IN_MAPPER_BYTES_SAVED).increment(bytesIn - bytesOut);
+            context.getCounter(ShuffleCounters.IN_MAPPER_FLUSHES).increment(1);
+            metrics.out(buffer.size());
+            buffer.clear();
+            recordsIn = 0;
+            bytesIn = 0;
         }
     }
     
@@ -62,44 +128,97 @@ public class Step2 {
     /**
      * Sums up all T and N values for each r
      */
-    public static class Reduce extends Reducer<Text, Text, Text, Text> {
+    public static class Reduce extends Reducer<StatKey, LongWritable, StatKey, LongWritable> {
+        private final LongWritable outValue = new LongWritable();
+        private final StageMetrics metrics = new StageMetrics(Reduce.class);
+
+        @Override
+        protected void reduce(StatKey key, Iterable<LongWritable> values, Context context) throws IOException, InterruptedException {
+            long sum = 0;
+            for (LongWritable value : values) {
+                sum += value.get();
+                metrics.in();
+            }
+            outValue.set(sum);
+            context.write(key, outValue);
+            metrics.out();
+        }
+
+        @Override
+        protected void cleanup(Context context) {
+            metrics.report(context);
+        }
+    }
+
+    /**
+     * Combiner - sums the T and N values of a key on the map side, same as Reduce.
+     */
+    public static class Combine extends Reducer<StatKey, LongWritable, StatKey, LongWritable> {
+        private final LongWritable outValue = new LongWritable();
+        private final StageMetrics metrics = new StageMetrics(Combine.class);
+
         @Override
-        protected void reduce(Text key, Iterable<Text> values, Context context) throws IOException, InterruptedException {
-            int sum = 0;
-            while (values.iterator().hasNext()) {
-                try {
-                    sum += Integer.parseInt(values.iterator().next().toString());
-                } catch (Exception ignored) {
-                }
+        protected void reduce(StatKey key, Iterable<LongWritable> values, Context context) throws IOException, InterruptedException {
+            long sum = 0;
+            long recordsIn = 0;
+            for (LongWritable value : values) {
+                sum += value.get();
+                recordsIn++;
             }
-            context.write(key, new Text(String.format("%d", sum)));
+            outValue.set(sum);
+            context.write(key, outValue);
+            metrics.in(recordsIn);
+            metrics.out();
+
+            long recordSize = key.getSerializedSize() + 8;
+            context.getCounter(ShuffleCounters.COMBINER_RECORDS_IN).increment(recordsIn);
+            context.getCounter(ShuffleCounters.COMBINER_RECORDS_OUT).increment(1);
+            context.getCounter(ShuffleCounters.COMBINER_BYTES_SAVED).increment((recordsIn - 1) * recordSize);
+        }
+
+        @Override
+        protected void cleanup(Context context) {
+            metrics.report(context);
         }
     }
 
-    public static class Partition extends Partitioner<Text,Text> {
+    public static class Partition extends Partitioner<StatKey,LongWritable> {
 
         @Override
-        public int getPartition(Text key, Text value, int numPartitions) {
+        public int getPartition(StatKey key, LongWritable value, int numPartitions) {
             return Math.abs(key.hashCode() % numPartitions);
         }
     }
 
-    public static void main(String[] args) throws Exception {
-
-        Configuration conf = new Configuration();
+    /**
+     * Step2 job from the Step1 output in input to output.
+     */
+    static Job createJob(Configuration conf, Path input, Path output) throws IOException {
         Job job = Job.getInstance(conf);
-        //Job job = new Job(conf);
         job.setJarByClass(Step2.class);
         job.setMapperClass(Map.class);
-        //job.setCombinerClass(Reduce.class);
+        job.setCombinerClass(Combine.class);
         job.setReducerClass(Reduce.class);
-        job.setOutputKeyClass(Text.class);
-        job.setOutputValueClass(Text.class);
+        job.setOutputKeyClass(StatKey.class);
+        job.setOutputValueClass(LongWritable.class);
         job.setPartitionerClass(Step2.Partition.class);
-        job.setOutputFormatClass(TextOutputFormat.class);
-        job.setInputFormatClass(TextInputFormat.class);
+        job.setOutputFormatClass(SequenceFileOutputFormat.class);
+        job.setInputFormatClass(SequenceFileInputFormat.class);
+        MultipleOutputs.addNamedOutput(job, TRIGRAMS, SequenceFileOutputFormat.class, TrigramKey.class, LongWritable.class);
+        MultipleOutputs.setCountersEnabled(job, true); // records per named output, in the report
+        FileInputFormat.addInputPath(job, input);
+        FileOutputFormat.setOutputPath(job, output);
+        Compression.configure(job, "step2");
+        return job;
+    }
+
+    public static void main(String[] args) throws Exception {
+
+        Configuration conf = new Configuration();
 
         boolean local = false;
+        boolean inMapperAggregation = true;
+        conf.setBoolean(InMapperAggregation.ENABLED, inMapperAggregation);
         String input = "", output = "";
         if(local){
             input = "/home/adler/Downloads/dist2-20221224T103516Z-001-20221228T114702Z-001/dist2-20221224T103516Z-001/dist2/MapReduceProject/src/main/java/outputs/Step1/part-r-00000"; //"s3://bucketurevich2/output1.txt/";
@@ -110,9 +229,15 @@ public class Step2 {
             output = "s3://bucketurevich2/Step2output.txt";
         }
 
-        FileInputFormat.addInputPath(job, new Path(input));
-        TextOutputFormat.setOutputPath(job, new Path(output));
-        System.exit(job.waitForCompletion(true) ? 0 : 1);
+        if (!local) {
+            Compression.useClusterDefaults(conf);
+        }
+        Job job = createJob(conf, new Path(input), new Path(output));
+        PipelineReport report = new PipelineReport();
+        boolean success = report.run(job, "step2");
+        Compression.report(job, "step2");
+        report.write(new Path(output + ".report.json"), conf);
+        System.exit(success ? 0 : 1);
     }
 
 
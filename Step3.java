@@ -1,191 +1,397 @@
 import org.apache.hadoop.conf.Configuration;
-import org.apache.hadoop.fs.FSDataInputStream;
-
-import java.io.BufferedReader;
-import java.io.InputStreamReader;
-
-import org.apache.hadoop.fs.FileSystem;
-import org.apache.hadoop.fs.LocatedFileStatus;
+import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.Path;
-import org.apache.hadoop.fs.RemoteIterator;
+import org.apache.hadoop.io.DoubleWritable;
+import org.apache.hadoop.io.GenericWritable;
 import org.apache.hadoop.io.LongWritable;
-import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
 import org.apache.hadoop.io.WritableComparable;
 import org.apache.hadoop.io.WritableComparator;
 import org.apache.hadoop.mapreduce.*;
 import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
-import org.apache.hadoop.mapreduce.lib.input.TextInputFormat;
+import org.apache.hadoop.mapreduce.lib.input.SequenceFileInputFormat;
 import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
-import org.apache.hadoop.mapreduce.lib.output.TextOutputFormat;
-import software.amazon.awssdk.services.s3.endpoints.internal.Value;
-//import org.apache.hadoop.mapreduce.lib.input.MultipleInputs;
-//import org.apache.hadoop.mapreduce.lib.input.TextInputFormat;
+import org.apache.hadoop.mapreduce.lib.output.SequenceFileOutputFormat;
 
-//import javax.xml.soap.Text;
 import java.io.IOException;
-import java.util.HashMap;
+import java.net.URI;
 
 
 public class Step3 {
+    static final String SKEW_HOT_R = "step3.skew.hot.r";
+    static final String SKEW_SPLITS = "step3.skew.splits";
+    static final String BROADCAST = "step3.broadcast";
     /**
-     * Input:
+     * N - the occurrences of all the trigrams of the corpus, after the filters (the Step1.Counter.OCCURRENCES of the
+     * Step1 job). Set by the drivers; createJob sums it from the N_r records of its input when it is not set.
+     */
+    static final String N = "step3.n";
+
+    /**
+     * Input (the two kinds of files written by Step2):
      * 1. N_r^0 And N_r^1
-     * key - <'N',r, part>  (r=occurrences)
+     * key - StatKey <N, r, part>  (r=occurrences)
      * value - <1>
      * <p>
      * 2. T_r^0 AND T_r^1
-     * key - <'T', r, part>  (r = total occurrences of the specific trigram in this part (0) of the corpus)
+     * key - StatKey <T, r, part>  (r = total occurrences of the specific trigram in this part (0) of the corpus)
      * value - <total occurrences of the specific trigram in the other part (1) of the corpus>
      * <p>
      * 3. Total occurrences for each trigram
-     * key: <w1, w2, w3>
+     * key: TrigramKey <w1, w2, w3>
      * value : <total occurrences>
      * Output:
      * 1. N or T
-     * key - <r,'a'>  (r=occurrences)
-     * value - <'N' OR 'T', part, occurrences>
+     * key - StatKey <N OR T, r, sub-bucket>  (r=occurrences)
+     * value - <occurrences>
      * 2. trigram
-     * key - <r,'b'>  (r=occurrences)
-     * value - <w1, w2, w3>
+     * key - StatKey <TRIGRAM, r, sub-bucket>  (r=occurrences)
+     * value - TrigramKey <w1, w2, w3>
+     * <p>
+     * The part of the key is not needed anymore (N_r^0 and N_r^1 are summed anyway), so it holds the sub-bucket of r.
+     * It is always 0, unless skew mode is on and r <= SKEW_HOT_R: then the trigrams of r are spread over
+     * SKEW_SPLITS sub-buckets and every N/T record of r is sent to all of them.
      */
 
-    private static class Map extends Mapper<LongWritable, Text, Text, Text> {
+    private static class Map extends Mapper<WritableComparable<?>, LongWritable, StatKey, Value> {
+        private final StatKey outKey = new StatKey();
+        private final Value outValue = new Value();
+        private long hotR;
+        private int splits;
+        private final StageMetrics metrics = new StageMetrics(Map.class);
+
+        @Override
+        protected void setup(Context context) {
+            hotR = context.getConfiguration().getLong(SKEW_HOT_R, 0);
+            splits = Math.min(context.getConfiguration().getInt(SKEW_SPLITS, context.getNumReduceTasks()), Byte.MAX_VALUE);
+        }
+
         @Override
-        public void map(LongWritable key, Text value, Context context) throws IOException, InterruptedException {
-            String[] keyValuePair = value.toString().split("\t");
-            String[] parsedKeys = keyValuePair[0].split(",");
-            if (parsedKeys.length == 3) { // either N or T
-                String NT = parsedKeys[0];
-                String r = parsedKeys[1];
-                String part = parsedKeys[2];
-                String parsedValue = keyValuePair[1];
-                context.write(new Text(r + ",a"), new Text(NT + "," + part + "," + parsedValue)); // <<r,a>, <N/T,part,parsedValue>>
-            } else if (parsedKeys.length == 1) { // trigram
-                context.write(new Text(keyValuePair[1] + ",b"), new Text(keyValuePair[0])); //<<r,b>, trigram>
+        public void map(WritableComparable<?> key, LongWritable value, Context context) throws IOException, InterruptedException {
+            metrics.in();
+            if (key instanceof StatKey) { // either N or T
+                StatKey statKey = (StatKey) key;
+                outValue.set(value);
+                int subBuckets = statKey.getR() <= hotR ? splits : 1;
+                for (int subBucket = 0; subBucket < subBuckets; subBucket++) {
+                    outKey.set(statKey.getKind(), statKey.getR(), subBucket);
+                    context.write(outKey, outValue); // <<N/T, r, sub-bucket>, <parsedValue>>
+                }
+                metrics.out(subBuckets);
+            } else if (key instanceof TrigramKey) { // trigram
+                int subBucket = value.get() <= hotR ? (key.hashCode() & Integer.MAX_VALUE) % splits : 0;
+                outKey.set(StatKey.TRIGRAM, value.get(), subBucket);
+                outValue.set(key);
+                context.write(outKey, outValue); //<<TRIGRAM, r, sub-bucket>, trigram>
+                metrics.out();
             }
         }
+
+        @Override
+        protected void cleanup(Context context) {
+            metrics.report(context);
+        }
     }
 
     /**
-     * Input:
+     * Input (grouped by <r, sub-bucket>, N and T records first):
      * 1. N or T
-     * key - <r,'a'>  (r=occurrences)
-     * value - <'N' OR 'T', part, occurrences>
+     * key - StatKey <N OR T, r, sub-bucket>  (r=occurrences)
+     * value - <occurrences>
      * 2. trigram
-     * key - <r,'b'>  (r=occurrences)
-     * value - <w1, w2, w3>
+     * key - StatKey <TRIGRAM, r, sub-bucket>  (r=occurrences)
+     * value - TrigramKey <w1, w2, w3>
      * Output:
      * trigram
-     * key - <w1, w2, w3>
+     * key - TrigramKey <w1, w2, w3>
      * value - <probability>
      */
-    public static class Reduce extends Reducer<Text, Text, Text, Text> {
-        static double N = 23260642968D;
-        static double N01 = 0;
-        static double T01 = 0;
+    public static class Reduce extends Reducer<StatKey, Value, TrigramKey, DoubleWritable> {
+        private final DoubleWritable outValue = new DoubleWritable();
+        private double n;
+        private final StageMetrics metrics = new StageMetrics(Reduce.class);
 
+        @Override
+        protected void setup(Context context) {
+            n = corpusSize(context.getConfiguration());
+        }
 
         @Override
-        protected void reduce(Text key, Iterable<Text> values, Context context) throws IOException, InterruptedException {
-            String[] parsedKey = key.toString().split(",");
-            if (parsedKey[1].equals("a")) {
-                N01 = 0;
-                T01 = 0;
-
-                while (values.iterator().hasNext()) {
-                    String value = values.iterator().next().toString();
-                    String[] parsedValue = value.split(",");
-                    if (parsedValue[0].equals("N")) {
-                        N01 += Integer.valueOf(parsedValue[2]);
-                    }
-                    if (parsedValue[0].equals("T")) {
-                        T01 += Integer.valueOf(parsedValue[2]);
+        protected void reduce(StatKey key, Iterable<Value> values, Context context) throws IOException, InterruptedException {
+            long N01 = 0;
+            long T01 = 0;
+            boolean probabilityReady = false;
+
+            // the key is updated while iterating, so it tells the kind of the current value
+            for (Value value : values) {
+                metrics.in();
+                if (key.getKind() == StatKey.N) {
+                    N01 += ((LongWritable) value.get()).get();
+                } else if (key.getKind() == StatKey.T) {
+                    T01 += ((LongWritable) value.get()).get();
+                } else if (key.getKind() == StatKey.TRIGRAM) {
+                    if (!probabilityReady) {
+                        outValue.set(probability(N01, T01, n));
+                        probabilityReady = true;
                     }
+                    context.write((TrigramKey) value.get(), outValue); //
+                    metrics.out();
                 }
-            } else if (parsedKey[1].equals("b")) {
-                double probability;
+            }
+        }
 
-                if (N01 == 0) {
-                    probability = 0;
-                } else {
-                    probability = T01 / (N * N01);
-                }
-                String probabilityS = String.valueOf(probability);
+        @Override
+        protected void cleanup(Context context) {
+            metrics.report(context);
+        }
+    }
 
-                while (values.iterator().hasNext()) {
-                    String trigram = values.iterator().next().toString();
-                    context.write(new Text(trigram), new Text(probabilityS)); //
-                }
+
+    /**
+     * Map-only alternative to Map + Reduce.
+     * setup() loads the N/T records written by Step2.Reduce from the distributed cache into a StatTable,
+     * so every trigram is joined with its r in the mapper and the trigrams are never shuffled.
+     * Input:
+     * key: TrigramKey <w1, w2, w3>
+     * value : <total occurrences>
+     * Output:
+     * key - TrigramKey <w1, w2, w3>
+     * value - <probability>
+     */
+    private static class BroadcastMap extends Mapper<TrigramKey, LongWritable, TrigramKey, DoubleWritable> {
+        private final StatTable stats = new StatTable();
+        private final DoubleWritable outValue = new DoubleWritable();
+        private double n;
+        private final StageMetrics metrics = new StageMetrics(BroadcastMap.class);
+
+        @Override
+        protected void setup(Context context) throws IOException {
+            Configuration conf = context.getConfiguration();
+            n = corpusSize(conf);
+            for (URI uri : context.getCacheFiles()) {
+                stats.load(CacheFiles.localOrRemote(uri), conf);
             }
         }
+
+        @Override
+        public void map(TrigramKey key, LongWritable value, Context context) throws IOException, InterruptedException {
+            long r = value.get();
+            outValue.set(probability(stats.getN(r), stats.getT(r), n));
+            context.write(key, outValue);
+            metrics.in();
+            metrics.out();
+        }
+
+        @Override
+        protected void cleanup(Context context) {
+            metrics.report(context);
+        }
+    }
+
+    /**
+     * The counts are exact longs up to here, the only rounding is in the division.
+     * @param n the N of the corpus
+     */
+    static double probability(long N01, long T01, double n) {
+        if (N01 == 0) {
+            return 0;
+        }
+        return T01 / (n * N01);
     }
 
+    private static double corpusSize(Configuration conf) {
+        long n = conf.getLong(N, 0);
+        if (n <= 0) {
+            throw new IllegalStateException(N + " is not set - create the job with Step3.createJob");
+        }
+        return n;
+    }
 
-    public static class Partition extends Partitioner<Text, Text> {
+
+    /**
+     * Partitions on <r, sub-bucket> only, so the N/T records and the trigrams of a bucket meet in one reducer.
+     * The sub-buckets of a hot r are consecutive, so they go to different reducers.
+     */
+    public static class Partition extends Partitioner<StatKey, Value> {
 
         @Override
-        public int getPartition(Text key, Text value, int numPartitions) {
-            return Math.abs(key.hashCode() % numPartitions);
+        public int getPartition(StatKey key, Value value, int numPartitions) {
+            return (int) (((Long.hashCode(key.getR()) & Integer.MAX_VALUE) + (long) key.getPart()) % numPartitions);
         }
     }
 
-    private static class Comparison extends WritableComparator {
-        protected Comparison() {
-            super(Text.class, true);
+    /**
+     * Sorts the output of the map by the following rules:
+     *    1) r: ascending
+     *    2) sub-bucket: ascending
+     *    3) kind: N, T and then the trigrams
+     */
+    public static class Comparison extends WritableComparator {
+        public Comparison() {
+            super(StatKey.class);
         }
 
         @Override
-        public int compare(WritableComparable key1, WritableComparable key2) {
-
-            // key: r,a OR r,b
-            String[] key11 = key1.toString().split(",");
-            String[] key22 = key2.toString().split(",");
-            int number1 = Integer.parseInt(key11[0]);
-            int number2 = Integer.parseInt(key22[0]);
-            if (number1 > number2) {
-                return 1;
-            } else if (number1 < number2) {
-                return -1;
-            } else {
-                if (key11[1].equals(key22[1])) {
-                    return 0;
-                } else if (key11[1].equals("a")) {
-                    return -1;
-                } else {
-                    return 1;
-                }
+        public int compare(byte[] b1, int s1, int l1, byte[] b2, int s2, int l2) {
+            int compareResult = compareBucket(b1, s1, l1, b2, s2, l2);
+            if (compareResult != 0) {
+                return compareResult;
             }
+            return Byte.compare(b1[s1], b2[s2]);
+        }
+
+        // the same order on the objects, for the TotalOrderPartitioner set by Planner
+        @Override
+        @SuppressWarnings("rawtypes") // the signature of WritableComparator
+        public int compare(WritableComparable a, WritableComparable b) {
+            StatKey key1 = (StatKey) a;
+            StatKey key2 = (StatKey) b;
+            int compareResult = Long.compare(key1.getR(), key2.getR());
+            if (compareResult != 0) {
+                return compareResult;
+            }
+            compareResult = Integer.compare(key1.getPart(), key2.getPart());
+            if (compareResult != 0) {
+                return compareResult;
+            }
+            return Byte.compare(key1.getKind(), key2.getKind());
         }
     }
 
+    /**
+     * Groups the reduce input by <r, sub-bucket>, so one reduce call sees the N/T records and then the trigrams.
+     */
+    public static class Grouping extends WritableComparator {
+        public Grouping() {
+            super(StatKey.class);
+        }
 
-    public static void main(String[] args) throws Exception {
+        @Override
+        public int compare(byte[] b1, int s1, int l1, byte[] b2, int s2, int l2) {
+            return compareBucket(b1, s1, l1, b2, s2, l2);
+        }
+    }
 
-        Configuration conf = new Configuration();
+    // serialized StatKey: <kind byte, r vlong, part byte>
+    private static int compareBucket(byte[] b1, int s1, int l1, byte[] b2, int s2, int l2) {
+        try {
+            int compareResult = Long.compare(WritableComparator.readVLong(b1, s1 + 1), WritableComparator.readVLong(b2, s2 + 1));
+            if (compareResult != 0) {
+                return compareResult;
+            }
+            return Byte.compare(b1[s1 + l1 - 1], b2[s2 + l2 - 1]);
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+
+    /**
+     * Map output value: either the N/T count or the trigram.
+     */
+    public static class Value extends GenericWritable {
+        @SuppressWarnings({"unchecked", "rawtypes"}) // no generic array creation
+        private static final Class<? extends Writable>[] TYPES = new Class[]{LongWritable.class, TrigramKey.class};
+
+        @Override
+        protected Class<? extends Writable>[] getTypes() {
+            return TYPES;
+        }
+    }
+
+
+    /**
+     * Step3 job from the Step2 output in input to output.
+     * With BROADCAST on it is the map-only BroadcastMap job, otherwise Map + Reduce (split by SKEW_HOT_R if it is set).
+     * N is taken from conf, or else summed from the N_r records of the input.
+     */
+    static Job createJob(Configuration conf, Path input, Path output) throws IOException {
         Job job = Job.getInstance(conf);
         job.setJarByClass(Step3.class);
         job.setMapperClass(Map.class);
         job.setReducerClass(Step3.Reduce.class);
-        job.setOutputKeyClass(Text.class);
-        job.setOutputValueClass(Text.class);
-        job.setSortComparatorClass(Comparison.class);
+        job.setMapOutputKeyClass(StatKey.class);
+        job.setMapOutputValueClass(Value.class);
+        job.setOutputKeyClass(TrigramKey.class);
+        job.setOutputValueClass(DoubleWritable.class);
+        job.setSortComparatorClass(Step3.Comparison.class);
+        job.setGroupingComparatorClass(Step3.Grouping.class);
         job.setPartitionerClass(Step3.Partition.class);
-        job.setOutputFormatClass(TextOutputFormat.class);
-        job.setInputFormatClass(TextInputFormat.class);
+        job.setOutputFormatClass(SequenceFileOutputFormat.class);
+        job.setInputFormatClass(SequenceFileInputFormat.class);
+
+        if (conf.getBoolean(BROADCAST, false)) {
+            // the N/T records are tiny - send them to every mapper and skip the shuffle of all the trigrams
+            job.setMapperClass(BroadcastMap.class);
+            job.setNumReduceTasks(0);
+            Path statsGlob = new Path(input, "part-r-*");
+            FileStatus[] statsFiles = statsGlob.getFileSystem(job.getConfiguration()).globStatus(statsGlob);
+            for (int i = 0; i < statsFiles.length; i++) {
+                job.addCacheFile(URI.create(statsFiles[i].getPath().toUri() + "#stats-" + i));
+            }
+            FileInputFormat.addInputPath(job, new Path(input, Step2.TRIGRAMS + "-*"));
+        } else {
+            // not the whole directory, which may also hold the lower order counts of Step1
+            FileInputFormat.addInputPath(job, new Path(input, "part-r-*"));
+            FileInputFormat.addInputPath(job, new Path(input, Step2.TRIGRAMS + "-*"));
+        }
+        FileOutputFormat.setOutputPath(job, output);
+        Compression.configure(job, "step3");
+        if (conf.getLong(N, 0) <= 0) {
+            if (conf.getLong(Step1.MIN_COUNT, 0) > 1) {
+                throw new IllegalArgumentException(N + " must be set with " + Step1.MIN_COUNT + ": the pruned trigrams are not in the N_r records");
+            }
+            // run on its own (or on an Incremental version): the N_r records are a few thousand, reading them is nothing
+            job.getConfiguration().setLong(N, occurrences(input, conf));
+        }
+        return job;
+    }
+
+    /**
+     * @return the occurrences of all the trigrams, from the N_r records written by Step2 to dir
+     */
+    static long occurrences(Path dir, Configuration conf) throws IOException {
+        Path statsGlob = new Path(dir, "part-r-*");
+        FileStatus[] statsFiles = statsGlob.getFileSystem(conf).globStatus(statsGlob);
+        if (statsFiles == null || statsFiles.length == 0) {
+            throw new IOException("No N/T files in " + dir);
+        }
+        StatTable stats = new StatTable();
+        for (FileStatus file : statsFiles) {
+            stats.load(file.getPath(), conf);
+        }
+        return stats.getOccurrences();
+    }
+
+    public static void main(String[] args) throws Exception {
+
+        Configuration conf = new Configuration();
 
         boolean local = false;
+        boolean broadcast = true;
+        boolean skew = true;
+        conf.setBoolean(BROADCAST, broadcast);
+        if (skew) {
+            // r = 1 and r = 2 hold most of the trigrams, split each of them over all the reducers
+            conf.setLong(SKEW_HOT_R, 2);
+        }
         String input = "", output = "";
         if (local) {
-            input = "/home/adler/Downloads/dist2-20221224T103516Z-001-20221228T114702Z-001/dist2-20221224T103516Z-001/dist2/MapReduceProject/src/main/java/outputs/Step2/part-r-00000";
+            input = "/home/adler/Downloads/dist2-20221224T103516Z-001-20221228T114702Z-001/dist2-20221224T103516Z-001/dist2/MapReduceProject/src/main/java/outputs/Step2";
             output = "/home/adler/Downloads/dist2-20221224T103516Z-001-20221228T114702Z-001/dist2-20221224T103516Z-001/dist2/MapReduceProject/src/main/java/outputs/Step3";
         } else {
             input = "s3://bucketurevich2/Step2output.txt";
             output = "s3://bucketurevich2/Step3output.txt";
         }
 
-        FileInputFormat.addInputPath(job, new Path(input));
-        FileOutputFormat.setOutputPath(job, new Path(output));
-        System.exit(job.waitForCompletion(true) ? 0 : 1);
+        if (!local) {
+            Compression.useClusterDefaults(conf);
+        }
+        Job job = createJob(conf, new Path(input), new Path(output));
+        PipelineReport report = new PipelineReport();
+        boolean success = report.run(job, "step3");
+        Compression.report(job, "step3");
+        report.write(new Path(output + ".report.json"), conf);
+        System.exit(success ? 0 : 1);
     }
 
 }
\ No newline at end of file
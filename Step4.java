@@ -1,111 +1,397 @@
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.Path;
-import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.DoubleWritable;
 import org.apache.hadoop.io.Text;
-import org.apache.hadoop.io.WritableComparable;
+import org.apache.hadoop.io.VIntWritable;
 import org.apache.hadoop.io.WritableComparator;
+import org.apache.hadoop.io.WritableUtils;
 import org.apache.hadoop.mapreduce.Job;
 import org.apache.hadoop.mapreduce.Mapper;
 import org.apache.hadoop.mapreduce.Partitioner;
 import org.apache.hadoop.mapreduce.Reducer;
 import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
-import org.apache.hadoop.mapreduce.lib.input.TextInputFormat;
+import org.apache.hadoop.mapreduce.lib.input.SequenceFileInputFormat;
 import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.apache.hadoop.mapreduce.lib.output.SequenceFileOutputFormat;
 import org.apache.hadoop.mapreduce.lib.output.TextOutputFormat;
 
 import java.io.IOException;
+import java.util.HashMap;
 
 
 public class Step4 {
+    /**
+     * Top-K mode: only the K most probable w3 of every (w1, w2) are written (0, the default, writes all of them).
+     * The map keeps the K best of every pair it sees, the combiner and the reducer pass on at most K per pair,
+     * so the shuffle and the output are bounded by pairs * K instead of by the number of trigrams.
+     * When the K-th and the (K+1)-th probabilities of a pair are equal, which of them is kept is not defined.
+     */
+    public static final String TOP_K = "step4.top.k";
+
+    /**
+     * Format of the final output:
+     * text - "w1 w2 w3 \t probability" lines (default)
+     * binary - SequenceFile of "w1 w2 w3" -> DoubleWritable probability, the 8 bytes of the double instead of its decimal text
+     * logprob - same, with the natural log of the probability
+     * ProbabilityStoreWriter reads all three.
+     */
+    public static final String OUTPUT_FORMAT = "step4.output.format";
+
     /**
      * Map function reorganize the key and value -
-     *     Input: same as the output of the reduce of Step3.
+     *     Input: same as the output of the reduce of Step3 (TrigramKey, probability).
      *     Output:
-     *          key - <w1, w2, probability>
-     *          value - <w3>
+     *          key - <w1, w2, probability>  (w1 and w2 as their Dictionary rank, so they sort in byte order)
+     *          value - <w3>  (Dictionary id)
+     * In top-K mode the records are held in a bounded min-heap per (w1, w2) and only the heaps are written -
+     * when the heaps hold too many records (see InMapperAggregation) or when the task ends.
      */
-    private static class Map extends Mapper<LongWritable, Text, Text, Text> {
+    private static class Map extends Mapper<TrigramKey, DoubleWritable, ProbabilityKey, VIntWritable> {
+        private final ProbabilityKey outKey = new ProbabilityKey();
+        private final VIntWritable outValue = new VIntWritable();
+        private Dictionary dictionary;
+        private int topK;
+        private InMapperAggregation aggregation;
+        private HashMap<Long, TopK> buffer; // (w1 rank, w2 rank) -> its best w3, null when top-K mode is off
+        private int buffered = 0;
+        private long recordsIn = 0;
+        private final StageMetrics metrics = new StageMetrics(Map.class);
+
         @Override
-        public void map (LongWritable key, Text value, Context context)  throws IOException, InterruptedException {
-            String[] keyValuePair = value.toString().split("\t");
-            String[] words = keyValuePair[0].split(" ");
-            String probability = keyValuePair[1];
-            context.write(new Text(words[0] + " " + words[1] + " " + probability), new Text(words[2]));
+        protected void setup(Context context) throws IOException {
+            dictionary = Dictionary.fromCache(context);
+            topK = context.getConfiguration().getInt(TOP_K, 0);
+            if (topK > 0) {
+                aggregation = new InMapperAggregation(context.getConfiguration());
+                buffer = new HashMap<>();
+            }
+        }
+
+        @Override
+        public void map (TrigramKey key, DoubleWritable value, Context context)  throws IOException, InterruptedException {
+            metrics.in();
+            int w1 = dictionary.rank(key.getW1());
+            int w2 = dictionary.rank(key.getW2());
+            if (buffer == null) {
+                outKey.set(w1, w2, value.get());
+                outValue.set(key.getW3());
+                context.write(outKey, outValue);
+                metrics.out();
+                return;
+            }
+            if (value.get() == 0) {
+                return; // never written by the reducer
+            }
+            recordsIn++;
+            long prefix = (long) w1 << 32 | w2;
+            TopK best = buffer.get(prefix);
+            if (best == null) {
+                best = new TopK(topK);
+                buffer.put(prefix, best);
+            }
+            int size = best.size();
+            best.offer(key.getW3(), value.get());
+            buffered += best.size() - size;
+            if (aggregation.shouldFlush(buffered)) {
+                flush(context);
+            }
+        }
+
+        @Override
+        protected void cleanup(Context context) throws IOException, InterruptedException {
+            if (buffer != null) {
+                flush(context);
+            }
+            metrics.report(context);
+        }
+
+        private void flush(Context context) throws IOException, InterruptedException {
+            for (java.util.Map.Entry<Long, TopK> entry : buffer.entrySet()) {
+                long prefix = entry.getKey();
+                TopK best = entry.getValue();
+                for (int i = 0; i < best.size(); i++) {
+                    outKey.set((int) (prefix >>> 32), (int) prefix, best.getProbability(i));
+                    outValue.set(best.getW3(i));
+                    context.write(outKey, outValue);
+                }
+            }
+            context.getCounter(ShuffleCounters.IN_MAPPER_RECORDS_IN).increment(recordsIn);
+            context.getCounter(ShuffleCounters.IN_MAPPER_RECORDS_OUT).increment(buffered);
+            context.getCounter(ShuffleCounters.IN_MAPPER_FLUSHES).increment(1);
+            metrics.out(buffered);
+            buffer.clear();
+            buffered = 0;
+            recordsIn = 0;
+        }
+    }
+
+    /**
+     * The K most probable w3 of one (w1, w2): a min-heap on the probability, so the least probable is replaced.
+     */
+    static class TopK {
+        private final int[] w3s;
+        private final double[] probabilities;
+        private int size = 0;
+
+        TopK(int k) {
+            w3s = new int[k];
+            probabilities = new double[k];
+        }
+
+        int size() {
+            return size;
+        }
+
+        int getW3(int i) {
+            return w3s[i];
+        }
+
+        double getProbability(int i) {
+            return probabilities[i];
+        }
+
+        void offer(int w3, double probability) {
+            if (size < w3s.length) {
+                int i = size++;
+                while (i > 0 && probabilities[(i - 1) / 2] > probability) {
+                    w3s[i] = w3s[(i - 1) / 2];
+                    probabilities[i] = probabilities[(i - 1) / 2];
+                    i = (i - 1) / 2;
+                }
+                w3s[i] = w3;
+                probabilities[i] = probability;
+                return;
+            }
+            if (probability <= probabilities[0]) {
+                return;
+            }
+            int i = 0;
+            while (2 * i + 1 < size) {
+                int child = 2 * i + 1;
+                if (child + 1 < size && probabilities[child + 1] < probabilities[child]) {
+                    child++;
+                }
+                if (probabilities[child] >= probability) {
+                    break;
+                }
+                w3s[i] = w3s[child];
+                probabilities[i] = probabilities[child];
+                i = child;
+            }
+            w3s[i] = w3;
+            probabilities[i] = probability;
+        }
+    }
+
+    /**
+     * Counts the records written for the current (w1, w2). The records arrive sorted (see Comparison),
+     * so a pair starts when w1 or w2 changes and its records come by probability descending.
+     */
+    static class PrefixLimit {
+        private final int limit;
+        private int w1 = -1, w2 = -1;
+        private int count = 0;
+
+        /**
+         * @param limit the records to write per (w1, w2), 0 for all of them
+         */
+        PrefixLimit(int limit) {
+            this.limit = limit;
+        }
+
+        /**
+         * @return true if one more record of the pair of key may be written (and counts it)
+         */
+        boolean take(ProbabilityKey key) {
+            if (key.getW1() != w1 || key.getW2() != w2) {
+                w1 = key.getW1();
+                w2 = key.getW2();
+                count = 0;
+            }
+            if (limit > 0 && count >= limit) {
+                return false;
+            }
+            count++;
+            return true;
+        }
+    }
+
+    /**
+     * Combiner in top-K mode: passes on the first K records of every (w1, w2) of a sorted spill.
+     * Input and output: same as the output of the map.
+     */
+    public static class TopKCombine extends Reducer<ProbabilityKey, VIntWritable, ProbabilityKey, VIntWritable> {
+        private PrefixLimit limit;
+        private long recordsIn = 0, recordsOut = 0;
+        private final StageMetrics metrics = new StageMetrics(TopKCombine.class);
+
+        @Override
+        protected void setup(Context context) {
+            limit = new PrefixLimit(context.getConfiguration().getInt(TOP_K, 0));
+        }
+
+        @Override
+        protected void reduce(ProbabilityKey key, Iterable<VIntWritable> values, Context context) throws IOException, InterruptedException {
+            for (VIntWritable w3 : values) {
+                recordsIn++;
+                if (limit.take(key)) {
+                    recordsOut++;
+                    context.write(key, w3);
+                }
+            }
+        }
+
+        @Override
+        protected void cleanup(Context context) {
+            context.getCounter(ShuffleCounters.COMBINER_RECORDS_IN).increment(recordsIn);
+            context.getCounter(ShuffleCounters.COMBINER_RECORDS_OUT).increment(recordsOut);
+            metrics.in(recordsIn);
+            metrics.out(recordsOut);
+            metrics.report(context);
         }
     }
  /**   Input: 
      *    key - <w1, w2, probability>
      *    value - <w3>
      * Output:
-     *    key - <w1, w2, w3>
-     *    value - <probability>
+     *    key - <w1, w2, w3>  (the words again)
+     *    value - <probability>  (or its log with OUTPUT_FORMAT logprob)
+     * In top-K mode at most K records per (w1, w2).
 */
-    public static class Reduce extends Reducer<Text, Text, Text, Text> {
+    public static class Reduce extends Reducer<ProbabilityKey, VIntWritable, Text, DoubleWritable> {
+        private static final byte[] SPACE = {' '};
+        private final Text outKey = new Text();
+        private final DoubleWritable outValue = new DoubleWritable();
+        private Dictionary dictionary;
+        private PrefixLimit limit;
+        private boolean log;
+        private final StageMetrics metrics = new StageMetrics(Reduce.class);
+
+        @Override
+        protected void setup(Context context) throws IOException {
+            dictionary = Dictionary.fromCache(context);
+            limit = new PrefixLimit(context.getConfiguration().getInt(TOP_K, 0));
+            log = context.getConfiguration().get(OUTPUT_FORMAT, "text").equals("logprob");
+        }
+
         @Override
-        protected void reduce(Text key, Iterable<Text> values, Context context) throws IOException, InterruptedException {
+        protected void reduce(ProbabilityKey key, Iterable<VIntWritable> values, Context context) throws IOException, InterruptedException {
 
-            String[] parsedKey = key.toString().split(" ");
-            String w1 = parsedKey[0];
-            String w2 = parsedKey[1];
-            String probability = parsedKey[2];
-            if(probability.equals("0.0")) {
+            if(key.getProbability() == 0) {
+                for (VIntWritable w3 : values) {
+                    metrics.in();
+                }
                 return;
             }
-            while (values.iterator().hasNext()) {
-                String w3 = values.iterator().next().toString();
-                context.write(new Text(w1 + " " + w2 + " " + w3), new Text(probability));
+            outValue.set(log ? Math.log(key.getProbability()) : key.getProbability()); // TextOutputFormat prints String.valueOf
+            for (VIntWritable w3 : values) {
+                metrics.in();
+                if (!limit.take(key)) {
+                    continue;
+                }
+                outKey.clear();
+                dictionary.appendWord(dictionary.idOfRank(key.getW1()), outKey);
+                outKey.append(SPACE, 0, 1);
+                dictionary.appendWord(dictionary.idOfRank(key.getW2()), outKey);
+                outKey.append(SPACE, 0, 1);
+                dictionary.appendWord(w3.get(), outKey);
+                context.write(outKey, outValue);
+                metrics.out();
             }
         }
+
+        @Override
+        protected void cleanup(Context context) {
+            metrics.report(context);
+        }
     }
 
 
-    public static class Partition extends Partitioner<Text,Text>{
+    /**
+     * Partitions on <w1, w2> only, so all the w3 of a pair end up sorted in the same output file.
+     */
+    public static class Partition extends Partitioner<ProbabilityKey,VIntWritable>{
 
         @Override
-        public int getPartition(Text key, Text value, int numPartitions) {
-            return Math.abs(key.hashCode() % numPartitions);
+        public int getPartition(ProbabilityKey key, VIntWritable value, int numPartitions) {
+            int hash = (key.getW1() * 31 + key.getW2()) * 0x9E3779B9;
+            return ((hash ^ (hash >>> 16)) & Integer.MAX_VALUE) % numPartitions;
         }
     }
 
-    private static class Comparison extends WritableComparator {
-        protected Comparison() {
-            super(Text.class, true);
+    /**Sorts the output of the map by the following rules:
+     *    1) Left part of the key (w1): ascending
+     *    2) Middle part of the key (w2): ascending
+     *    3) Right of the key (probability): descending
+     * Works on the serialized ProbabilityKey: <w1 vint, w2 vint, probability 8 byte double>.
+     */
+    public static class Comparison extends WritableComparator {
+        public Comparison() {
+            super(ProbabilityKey.class);
         }
+
         @Override
-        /**Sorts the output of the map by the following rules:
-                *    1) Left part of the key (w1): ascending
-                *    2) Middle part of the key (w2): ascending
-                *    3) Right of the key (probability): descending
-                */
-        public int compare(WritableComparable key1, WritableComparable key2) {
-            String[] words1 = key1.toString().split(" ");
-            String[] words2 = key2.toString().split(" ");
-
-            for (int i = 0; i < 2; i++) {
-                int compareResult = words1[i].compareTo(words2[i]);
-                if (compareResult != 0) {
-                    return compareResult;
+        public int compare(byte[] b1, int s1, int l1, byte[] b2, int s2, int l2) {
+            try {
+                for (int i = 0; i < 2; i++) {
+                    int compareResult = Integer.compare(readVInt(b1, s1), readVInt(b2, s2));
+                    if (compareResult != 0) {
+                        return compareResult;
+                    }
+                    s1 += WritableUtils.decodeVIntSize(b1[s1]);
+                    s2 += WritableUtils.decodeVIntSize(b2[s2]);
                 }
+                return Double.compare(readDouble(b2, s2), readDouble(b1, s1));
+            } catch (IOException e) {
+                throw new IllegalArgumentException(e);
             }
-
-            return words2[2].compareTo(words1[2]);
         }
     }
 
-    public static void main(String[] args) throws Exception {
-        Configuration conf = new Configuration();
+    /**
+     * Step4 job from the Step3 output in input to the final output (text unless OUTPUT_FORMAT says otherwise).
+     * The caller adds the vocabulary written by the Vocabulary job (Dictionary.addToJob).
+     * With TOP_K set in conf, only the K most probable w3 of every (w1, w2) are kept.
+     */
+    static Job createJob(Configuration conf, Path input, Path output) throws IOException {
         Job job = Job.getInstance(conf);
         job.setJarByClass(Step4.class);
         job.setMapperClass(Step4.Map.class);
         job.setReducerClass(Step4.Reduce.class);
         job.setSortComparatorClass(Step4.Comparison.class);
+        job.setMapOutputKeyClass(ProbabilityKey.class);
+        job.setMapOutputValueClass(VIntWritable.class);
         job.setOutputKeyClass(Text.class);
-        job.setOutputValueClass(Text.class);
+        job.setOutputValueClass(DoubleWritable.class);
         job.setPartitionerClass(Step4.Partition.class);
-        job.setOutputFormatClass(TextOutputFormat.class);
-        job.setInputFormatClass(TextInputFormat.class);
+        if (conf.getInt(TOP_K, 0) > 0) {
+            job.setCombinerClass(Step4.TopKCombine.class);
+        }
+        String format = conf.get(OUTPUT_FORMAT, "text");
+        switch (format) {
+            case "text":
+                job.setOutputFormatClass(TextOutputFormat.class);
+                break;
+            case "binary":
+            case "logprob":
+                job.setOutputFormatClass(SequenceFileOutputFormat.class);
+                break;
+            default:
+                throw new IllegalArgumentException(OUTPUT_FORMAT + " must be text, binary or logprob, not " + format);
+        }
+        job.setInputFormatClass(SequenceFileInputFormat.class);
+        FileInputFormat.addInputPath(job, input);
+        FileOutputFormat.setOutputPath(job, output);
+        Compression.configure(job, "step4");
+        return job;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Configuration conf = new Configuration();
 
         boolean local = false;
+        int topK = 0; // e.g. 5 for the top 5 of Analysis.txt, 0 writes every w3
+        conf.setInt(TOP_K, topK);
         String input = "", output = "";
         if(local){
             input = "/home/adler/Downloads/dist2-20221224T103516Z-001-20221228T114702Z-001/dist2-20221224T103516Z-001/dist2/MapReduceProject/src/main/java/outputs/Step3/part-r-00000";
@@ -116,8 +402,19 @@ public class Step4 {
             output = "s3://bucketurevich2/Step4output.txt";
         }
 
-        FileInputFormat.addInputPath(job, new Path(input));
-        TextOutputFormat.setOutputPath(job, new Path(output));
-        System.exit(job.waitForCompletion(true) ? 0 : 1);
+        if (!local) {
+            Compression.useClusterDefaults(conf);
+        }
+        Job job = createJob(conf, new Path(input), new Path(output));
+        if (local) {
+            Dictionary.addToJob(job, "/home/adler/Downloads/dist2-20221224T103516Z-001-20221228T114702Z-001/dist2-20221224T103516Z-001/dist2/MapReduceProject/src/main/java/outputs/vocabulary.txt");
+        } else {
+            Dictionary.addToJob(job, "s3://bucketurevich2/vocabulary.txt"); // written by Vocabulary
+        }
+        PipelineReport report = new PipelineReport();
+        boolean success = report.run(job, "step4");
+        Compression.report(job, "step4");
+        report.write(new Path(output + ".report.json"), conf);
+        System.exit(success ? 0 : 1);
     }
 }
\ No newline at end of file
@@ -0,0 +1,131 @@
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.DoubleWritable;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.WritableComparator;
+import org.apache.hadoop.io.compress.CompressionCodec;
+import org.apache.hadoop.io.compress.CompressionCodecFactory;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Set;
+
+
+/**
+ * The <"w1 w2 w3", probability> records of one part file of the Step4 output, in any of its formats
+ * (Step4.OUTPUT_FORMAT in conf: text lines, compressed or not, or the binary and logprob SequenceFiles).
+ * Read by the tools that compile the final output into other layouts (ProbabilityStoreWriter, ColumnarWriter).
+ */
+class Step4Records implements Closeable {
+    private final Path part;
+    private final String format;
+    private BufferedReader lines; // text
+    private SequenceFile.Reader reader; // binary and logprob
+    private final Text key = new Text();
+    private final DoubleWritable value = new DoubleWritable();
+    String trigram;
+    double probability;
+
+    Step4Records(Path part, Configuration conf) throws IOException {
+        this.part = part;
+        format = conf.get(Step4.OUTPUT_FORMAT, "text");
+        if (format.equals("text")) {
+            InputStream in = part.getFileSystem(conf).open(part);
+            CompressionCodec codec = new CompressionCodecFactory(conf).getCodec(part); // step4.compress.output
+            if (codec != null) {
+                in = codec.createInputStream(in);
+            }
+            lines = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8), 1 << 16);
+        } else {
+            reader = new SequenceFile.Reader(conf, SequenceFile.Reader.file(part));
+        }
+    }
+
+    boolean next() throws IOException {
+        if (reader != null) {
+            if (!reader.next(key, value)) {
+                return false;
+            }
+            trigram = key.toString();
+            probability = format.equals("logprob") ? Math.exp(value.get()) : value.get();
+        } else {
+            // "w1 w2 w3 \t probability"
+            String line = lines.readLine();
+            if (line == null) {
+                return false;
+            }
+            String[] fields = line.split("\t");
+            if (fields.length != 2) {
+                throw new IOException(part + ": not a Step4 line: " + line);
+            }
+            trigram = fields[0];
+            probability = Double.parseDouble(fields[1]);
+        }
+        if (trigram.split(" ").length != 3) {
+            throw new IOException(part + ": not a Step4 trigram: " + trigram);
+        }
+        return true;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (reader != null) {
+            reader.close();
+        } else {
+            lines.close();
+        }
+    }
+
+    /**
+     * @return the part files of the Step4 output
+     */
+    static Path[] parts(Path step4Output, Configuration conf) throws IOException {
+        FileStatus[] statuses = step4Output.getFileSystem(conf).globStatus(new Path(step4Output, "part-*"));
+        if (statuses == null || statuses.length == 0) {
+            throw new IOException("No part files in " + step4Output);
+        }
+        Path[] parts = new Path[statuses.length];
+        for (int i = 0; i < statuses.length; i++) {
+            parts[i] = statuses[i].getPath();
+        }
+        return parts;
+    }
+
+    /**
+     * @return all the words of the output, sorted by their UTF-8 bytes (one pass over all the parts)
+     */
+    static byte[][] vocabulary(Path[] parts, Configuration conf) throws IOException {
+        Set<String> words = new HashSet<>();
+        for (Path part : parts) {
+            try (Step4Records records = new Step4Records(part, conf)) {
+                while (records.next()) {
+                    String[] trigram = records.trigram.split(" ");
+                    words.add(trigram[0]);
+                    words.add(trigram[1]);
+                    words.add(trigram[2]);
+                }
+            }
+        }
+        byte[][] vocabulary = new byte[words.size()][];
+        int i = 0;
+        for (String word : words) {
+            vocabulary[i++] = word.getBytes(StandardCharsets.UTF_8);
+        }
+        Arrays.sort(vocabulary, new Comparator<byte[]>() {
+            @Override
+            public int compare(byte[] a, byte[] b) {
+                return WritableComparator.compareBytes(a, 0, a.length, b, 0, b.length);
+            }
+        });
+        return vocabulary;
+    }
+}
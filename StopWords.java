@@ -0,0 +1,136 @@
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.JobContext;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.TreeMap;
+
+
+/**
+ * Stop word matcher over UTF-8 bytes, so words can be tested straight from a Text without creating a String.
+ * The words are compiled into a byte trie stored in flat arrays: the children of a node are consecutive nodes,
+ * sorted by the byte that leads to them. Most words are rejected after their first or second byte.
+ * <p>
+ * The list is a UTF-8 file with one word per line (blank lines and lines starting with # are skipped), in any language.
+ * The driver adds it to the distributed cache with addToJob and every task loads it in setup with fromCache.
+ */
+public class StopWords {
+    static final String LINK_NAME = "stopwords.txt";
+
+    private final int[] firstChild;
+    private final int[] childCount;
+    private final byte[] label;
+    private final boolean[] terminal;
+
+    public StopWords(Collection<String> words) {
+        Node root = new Node();
+        int nodes = 1;
+        for (String word : words) {
+            Node node = root;
+            for (byte b : word.getBytes(StandardCharsets.UTF_8)) {
+                Node child = node.children.get(b & 0xFF);
+                if (child == null) {
+                    child = new Node();
+                    node.children.put(b & 0xFF, child);
+                    nodes++;
+                }
+                node = child;
+            }
+            node.terminal = true;
+        }
+
+        firstChild = new int[nodes];
+        childCount = new int[nodes];
+        label = new byte[nodes];
+        terminal = new boolean[nodes];
+        // breadth first, so the children of every node get consecutive indexes
+        List<Node> queue = new ArrayList<>();
+        queue.add(root);
+        int next = 1;
+        for (int i = 0; i < queue.size(); i++) {
+            Node node = queue.get(i);
+            terminal[i] = node.terminal;
+            firstChild[i] = next;
+            childCount[i] = node.children.size();
+            for (java.util.Map.Entry<Integer, Node> entry : node.children.entrySet()) {
+                label[next++] = (byte) (int) entry.getKey();
+                queue.add(entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * @return true if bytes[start, end) is exactly one of the stop words
+     */
+    public boolean contains(byte[] bytes, int start, int end) {
+        int node = 0;
+        for (int i = start; i < end; i++) {
+            int b = bytes[i] & 0xFF;
+            int low = firstChild[node];
+            int high = low + childCount[node] - 1;
+            node = -1;
+            while (low <= high) {
+                int middle = (low + high) >>> 1;
+                int middleLabel = label[middle] & 0xFF;
+                if (middleLabel < b) {
+                    low = middle + 1;
+                } else if (middleLabel > b) {
+                    high = middle - 1;
+                } else {
+                    node = middle;
+                    break;
+                }
+            }
+            if (node < 0) {
+                return false;
+            }
+        }
+        return terminal[node];
+    }
+
+    /**
+     * Sends the stop word file (any Hadoop path, e.g. on S3) to every task of the job.
+     */
+    public static void addToJob(Job job, String file) throws IOException {
+        CacheFiles.addToJob(job, file, LINK_NAME);
+    }
+
+    /**
+     * Loads the stop words added by addToJob, or an empty matcher if there are none.
+     */
+    public static StopWords fromCache(JobContext context) throws IOException {
+        Path path = CacheFiles.find(context, LINK_NAME);
+        if (path == null) {
+            return new StopWords(new ArrayList<String>());
+        }
+        return load(path, context.getConfiguration());
+    }
+
+    public static StopWords load(Path path, Configuration conf) throws IOException {
+        List<String> words = new ArrayList<>();
+        FileSystem fs = path.getFileSystem(conf);
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(fs.open(path), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (!line.isEmpty() && !line.startsWith("#")) {
+                    words.add(line);
+                }
+            }
+        }
+        return new StopWords(words);
+    }
+
+    private static class Node {
+        final TreeMap<Integer, Node> children = new TreeMap<>();
+        boolean terminal;
+    }
+}
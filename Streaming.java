@@ -0,0 +1,402 @@
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.compress.CompressionCodec;
+import org.apache.hadoop.io.compress.CompressionCodecFactory;
+import org.apache.hadoop.util.GenericOptionsParser;
+import org.apache.hadoop.util.LineReader;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+
+/**
+ * Streaming mode: a long running process that watches a directory for new 3-gram files and keeps the state of
+ * Step1 and Step2 in memory - the part counts of every trigram and the N_r/T_r table - instead of recomputing
+ * them in a batch run. Every streaming.publish.seconds the probabilities of all the trigrams are published as
+ * a snapshot in the format of the Step4 output, which ProbabilityStoreWriter can compile.
+ * <p>
+ * A file is read once: its lines are filtered as Vocabulary.Map does (not parsed, non-letter words, stop words), so the
+ * trigrams kept are those Step1.Map keeps, and the parts alternate line by line as in Step1.Map, from part 0 at the
+ * start of every file (a file is one split). The words get ids as they come. The trigrams are split over
+ * streaming.shards shards by hash, each one owned by one thread: its part counts and its own StatTable, kept up to date
+ * by taking a trigram out of its old r-buckets and adding it to the new ones (as Incremental.MergeReduce does). To
+ * publish, the reader waits for the shards to apply what it sent, adds their tables, and every shard sorts the
+ * probabilities of its trigrams like Step4 while the snapshot is merged from them.
+ * <p>
+ * Usage: Streaming [-D key=value ...] <watched dir> <output dir> [stop words file]
+ * Files whose name starts with _ or . are skipped: write a file under such a name (or elsewhere) and rename it when
+ * it is complete. Plain and compressed (by extension) files are read.
+ * The snapshots are OUTPUT/snapshot-NNNNNN/part-r-00000 and OUTPUT/CURRENT holds the name of the latest one.
+ * The state is only in memory: when the process starts it reads all the files of the directory again.
+ * Keys: streaming.shards (default: the number of cores), streaming.publish.seconds (default 60),
+ * streaming.poll.millis (default 1000), streaming.keep - snapshots kept (default 2).
+ */
+public class Streaming {
+    static final String SHARDS = "streaming.shards";
+    static final String PUBLISH_SECONDS = "streaming.publish.seconds";
+    static final String POLL_MILLIS = "streaming.poll.millis";
+    static final String KEEP = "streaming.keep";
+    static final String CURRENT = "CURRENT";
+    private static final int BATCH = 4096;
+
+    private final Configuration conf;
+    private final Path input;
+    private final Path output;
+    private final FileSystem fs;
+    private final StopWords stopWords;
+    private final Shard[] shards;
+    private final ExecutorService[] workers;
+    private final Batch[] batches;
+
+    private final HashMap<Text, Integer> ids = new HashMap<>();
+    private final List<byte[]> words = new ArrayList<>();
+    private final Text word = new Text();
+    private final NgramLine line = new NgramLine();
+    private final Set<String> read = new HashSet<>();
+    private int part = 0;
+    private boolean changed = false;
+    private int snapshot;
+
+    private long linesIn = 0;
+    private final long[] dropped = new long[RecordCounters.values().length];
+
+    Streaming(Configuration conf, Path input, Path output, StopWords stopWords) throws IOException {
+        this.conf = conf;
+        this.input = input;
+        this.output = output;
+        this.fs = output.getFileSystem(conf);
+        this.stopWords = stopWords;
+        int shardCount = conf.getInt(SHARDS, Runtime.getRuntime().availableProcessors());
+        shards = new Shard[shardCount];
+        workers = new ExecutorService[shardCount];
+        batches = new Batch[shardCount];
+        for (int i = 0; i < shardCount; i++) {
+            shards[i] = new Shard();
+            workers[i] = Executors.newSingleThreadExecutor();
+            batches[i] = new Batch();
+        }
+        fs.mkdirs(output);
+        for (FileStatus status : fs.listStatus(output)) {
+            if (status.getPath().getName().endsWith(".tmp")) {
+                fs.delete(status.getPath(), true); // left by a publish that didn't finish
+            }
+        }
+        snapshot = lastSnapshot();
+    }
+
+    public static void main(String[] args) throws Exception {
+        Configuration conf = new Configuration();
+        String[] paths = new GenericOptionsParser(conf, args).getRemainingArgs();
+        if (paths.length < 2) {
+            System.err.println("Usage: Streaming [-D key=value ...] <watched dir> <output dir> [stop words file]");
+            System.exit(2);
+        }
+        StopWords stopWords = paths.length > 2 ? StopWords.load(new Path(paths[2]), conf) : new StopWords(new ArrayList<String>());
+        Streaming streaming = new Streaming(conf, new Path(paths[0]), new Path(paths[1]), stopWords);
+
+        long publishMillis = conf.getLong(PUBLISH_SECONDS, 60) * 1000;
+        long pollMillis = conf.getLong(POLL_MILLIS, 1000);
+        long nextPublish = System.currentTimeMillis() + publishMillis;
+        while (true) {
+            for (Path file : streaming.newFiles()) {
+                streaming.read(file);
+            }
+            if (streaming.changed && System.currentTimeMillis() >= nextPublish) {
+                streaming.publish();
+                nextPublish = System.currentTimeMillis() + publishMillis;
+            }
+            Thread.sleep(pollMillis);
+        }
+    }
+
+    /**
+     * @return the files of the watched directory not read yet, oldest first
+     */
+    List<Path> newFiles() throws IOException {
+        FileSystem inputFs = input.getFileSystem(conf);
+        List<FileStatus> files = new ArrayList<>();
+        for (FileStatus status : inputFs.listStatus(input)) {
+            String name = status.getPath().getName();
+            if (status.isFile() && !name.startsWith("_") && !name.startsWith(".") && !read.contains(status.getPath().toString())) {
+                files.add(status);
+            }
+        }
+        files.sort(new Comparator<FileStatus>() {
+            @Override
+            public int compare(FileStatus a, FileStatus b) {
+                int compareResult = Long.compare(a.getModificationTime(), b.getModificationTime());
+                return compareResult != 0 ? compareResult : a.getPath().compareTo(b.getPath());
+            }
+        });
+        List<Path> paths = new ArrayList<>();
+        for (FileStatus file : files) {
+            paths.add(file.getPath());
+        }
+        return paths;
+    }
+
+    /**
+     * Reads the 3-gram lines of the file and sends its trigrams to the shards.
+     */
+    void read(Path file) throws IOException {
+        long start = System.currentTimeMillis();
+        long lines = linesIn;
+        part = 0; // every file is a split of its own, as in Step1.Map
+        CompressionCodec codec = new CompressionCodecFactory(conf).getCodec(file);
+        InputStream in = file.getFileSystem(conf).open(file);
+        try (LineReader reader = new LineReader(codec == null ? in : codec.createInputStream(in), conf)) {
+            Text value = new Text();
+            while (reader.readLine(value) > 0) {
+                add(value);
+            }
+        }
+        for (int i = 0; i < shards.length; i++) {
+            send(i);
+        }
+        read.add(file.toString());
+        changed = true;
+        System.out.println("Read " + file + ": " + (linesIn - lines) + " lines in " + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    private void add(Text value) {
+        linesIn++;
+        if (!line.parse(value)) {
+            dropped[RecordCounters.PARSE_FAILURES.ordinal()]++;
+            return;
+        }
+        if (line.hasNonLetterWord()) {
+            dropped[RecordCounters.FILTERED_NON_LETTER.ordinal()]++;
+            return;
+        }
+        if (line.hasStopWord(stopWords)) {
+            dropped[RecordCounters.FILTERED_STOP_WORD.ordinal()]++;
+            return;
+        }
+        int w1 = id(0), w2 = id(1), w3 = id(2);
+        long occurrences = line.getOccurrences();
+        int shard = ((((w1 * 31 + w2) * 31 + w3) * 0x9E3779B9) >>> 1) % shards.length;
+        Batch batch = batches[shard];
+        if (part == 0) {
+            part = 1;
+            batch.add(w1, w2, w3, occurrences, 0);
+        } else {
+            part = 0;
+            batch.add(w1, w2, w3, 0, occurrences);
+        }
+        if (batch.size == BATCH) {
+            send(shard);
+        }
+    }
+
+    /**
+     * @return the id of the word, a new one if it wasn't seen yet
+     */
+    private int id(int i) {
+        word.set(line.getBytes(), line.getStart(i), line.getEnd(i) - line.getStart(i));
+        Integer id = ids.get(word);
+        if (id == null) {
+            id = words.size();
+            words.add(word.copyBytes());
+            ids.put(new Text(word), id);
+        }
+        return id;
+    }
+
+    private void send(int shard) {
+        final Batch batch = batches[shard];
+        if (batch.size == 0) {
+            return;
+        }
+        batches[shard] = new Batch();
+        final Shard target = shards[shard];
+        workers[shard].execute(new Runnable() {
+            @Override
+            public void run() {
+                target.apply(batch);
+            }
+        });
+    }
+
+    /**
+     * Writes a snapshot of the probabilities of all the trigrams read so far.
+     */
+    void publish() throws IOException, InterruptedException {
+        long start = System.currentTimeMillis();
+        // the shards apply their batches in order, so once these ran every shard is up to date and idle
+        final StatTable stats = new StatTable();
+        List<Future<StatTable>> tables = new ArrayList<>();
+        for (int i = 0; i < shards.length; i++) {
+            final Shard shard = shards[i];
+            tables.add(workers[i].submit(new Callable<StatTable>() {
+                @Override
+                public StatTable call() {
+                    return shard.stats;
+                }
+            }));
+        }
+        for (Future<StatTable> table : tables) {
+            stats.add(get(table));
+        }
+        final double n = stats.getOccurrences(); // N grows with every file read
+        final Dictionary dictionary = new Dictionary(new ArrayList<>(words));
+        if (dictionary.size() > 0) {
+            dictionary.rank(0); // sorts the words once, before the shards use the ranks
+        }
+        List<Future<ProbabilityEntries>> sorted = new ArrayList<>();
+        long trigrams = 0;
+        for (int i = 0; i < shards.length; i++) {
+            final Shard shard = shards[i];
+            trigrams += shard.counts.size();
+            sorted.add(workers[i].submit(new Callable<ProbabilityEntries>() {
+                @Override
+                public ProbabilityEntries call() {
+                    return shard.entries(stats, n, dictionary);
+                }
+            }));
+        }
+        List<ProbabilityEntries> shardEntries = new ArrayList<>();
+        for (Future<ProbabilityEntries> entries : sorted) {
+            shardEntries.add(get(entries));
+        }
+
+        String name = String.format("snapshot-%06d", ++snapshot);
+        Path tmp = new Path(output, name + ".tmp");
+        long written;
+        try (OutputStream out = new BufferedOutputStream(fs.create(new Path(tmp, "part-r-00000"), true), 1 << 16)) {
+            written = ProbabilityEntries.write(shardEntries, dictionary, out);
+        }
+        Path published = new Path(output, name);
+        if (!fs.rename(tmp, published)) {
+            throw new IOException("Could not rename " + tmp + " to " + published);
+        }
+        try (FSDataOutputStream out = fs.create(new Path(output, CURRENT), true)) {
+            out.write((name + "\n").getBytes(StandardCharsets.UTF_8));
+        }
+        int keep = conf.getInt(KEEP, 2);
+        for (FileStatus status : fs.listStatus(output)) {
+            String old = status.getPath().getName();
+            if (old.startsWith("snapshot-") && Integer.parseInt(old.substring("snapshot-".length())) <= snapshot - keep) {
+                fs.delete(status.getPath(), true);
+            }
+        }
+        changed = false;
+
+        StringBuilder drops = new StringBuilder();
+        for (RecordCounters reason : RecordCounters.values()) {
+            if (dropped[reason.ordinal()] > 0) {
+                drops.append(", ").append(dropped[reason.ordinal()]).append(' ').append(reason);
+            }
+        }
+        System.out.println("Published " + published + ": " + written + " probabilities of " + trigrams + " trigrams, "
+                + words.size() + " words, " + stats.size() + " r values; " + linesIn + " lines read" + drops
+                + "; " + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    private int lastSnapshot() throws IOException {
+        Path current = new Path(output, CURRENT);
+        if (!fs.exists(current)) {
+            return 0;
+        }
+        Set<String> lines = Incremental.readLines(fs, current);
+        return lines.isEmpty() ? 0 : Integer.parseInt(lines.iterator().next().substring("snapshot-".length()));
+    }
+
+    private static <T> T get(Future<T> future) throws IOException, InterruptedException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        }
+    }
+
+    /**
+     * Trigrams read by the reader for one shard, applied by the thread of the shard.
+     */
+    private static class Batch {
+        private final int[] trigrams = new int[3 * BATCH];
+        private final long[] counts = new long[2 * BATCH];
+        private int size = 0;
+
+        void add(int w1, int w2, int w3, long part0, long part1) {
+            trigrams[3 * size] = w1;
+            trigrams[3 * size + 1] = w2;
+            trigrams[3 * size + 2] = w3;
+            counts[2 * size] = part0;
+            counts[2 * size + 1] = part1;
+            size++;
+        }
+    }
+
+    /**
+     * The part counts of the trigrams of one shard and the N_r/T_r they add up to.
+     * Only used by the thread of the shard.
+     */
+    private static class Shard {
+        private final HashMap<TrigramKey, PartCounts> counts = new HashMap<>();
+        private final StatTable stats = new StatTable();
+        private final TrigramKey key = new TrigramKey();
+        private final StatKey statKey = new StatKey();
+
+        void apply(Batch batch) {
+            for (int i = 0; i < batch.size; i++) {
+                key.set(batch.trigrams[3 * i], batch.trigrams[3 * i + 1], batch.trigrams[3 * i + 2]);
+                PartCounts value = counts.get(key);
+                if (value == null) {
+                    value = new PartCounts();
+                    counts.put(new TrigramKey(key.getW1(), key.getW2(), key.getW3()), value);
+                } else {
+                    addStats(value, -1); // out of its old r-buckets
+                }
+                value.set(value.getPart0() + batch.counts[2 * i], value.getPart1() + batch.counts[2 * i + 1]);
+                addStats(value, 1);
+            }
+        }
+
+        // the records Step1.FusedReduce writes for the trigram, times sign
+        private void addStats(PartCounts value, int sign) {
+            statKey.set(StatKey.N, value.getPart0(), 0);
+            stats.add(statKey, sign);
+            statKey.set(StatKey.N, value.getPart1(), 1);
+            stats.add(statKey, sign);
+            statKey.set(StatKey.T, value.getPart0(), 0);
+            stats.add(statKey, sign * value.getPart1());
+            statKey.set(StatKey.T, value.getPart1(), 1);
+            stats.add(statKey, sign * value.getPart0());
+        }
+
+        /**
+         * @return the non-zero probabilities of the trigrams of the shard, in the order of Step4
+         */
+        ProbabilityEntries entries(StatTable stats, double n, Dictionary dictionary) {
+            ProbabilityEntries entries = new ProbabilityEntries(counts.size());
+            for (java.util.Map.Entry<TrigramKey, PartCounts> entry : counts.entrySet()) {
+                long r = entry.getValue().getTotal();
+                double probability = Step3.probability(stats.getN(r), stats.getT(r), n);
+                if (probability != 0) {
+                    TrigramKey trigram = entry.getKey();
+                    entries.add(dictionary.rank(trigram.getW1()), dictionary.rank(trigram.getW2()), trigram.getW3(), probability);
+                }
+            }
+            entries.sort();
+            return entries;
+        }
+    }
+}
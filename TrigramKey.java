@@ -0,0 +1,134 @@
+import org.apache.hadoop.io.WritableComparable;
+import org.apache.hadoop.io.WritableComparator;
+import org.apache.hadoop.io.WritableUtils;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+
+/**
+ * Trigram key <w1, w2, w3>, every word as its Dictionary id.
+ * Serialized as three vints: 1 byte for the 128 most frequent words, 3 bytes up to id 65535 (see WritableUtils.writeVLong).
+ * Sorted by w1, then w2, then w3 (by id - only Step4 needs the words in byte order, see ProbabilityKey).
+ */
+public class TrigramKey implements WritableComparable<TrigramKey> {
+    private int w1;
+    private int w2;
+    private int w3;
+
+    public TrigramKey() {
+    }
+
+    public TrigramKey(int w1, int w2, int w3) {
+        set(w1, w2, w3);
+    }
+
+    public void set(int w1, int w2, int w3) {
+        this.w1 = w1;
+        this.w2 = w2;
+        this.w3 = w3;
+    }
+
+    public void set(TrigramKey other) {
+        set(other.w1, other.w2, other.w3);
+    }
+
+    public int getW1() {
+        return w1;
+    }
+
+    public int getW2() {
+        return w2;
+    }
+
+    public int getW3() {
+        return w3;
+    }
+
+    /**
+     * @return the number of bytes written by write()
+     */
+    public int getSerializedSize() {
+        return WritableUtils.getVIntSize(w1) + WritableUtils.getVIntSize(w2) + WritableUtils.getVIntSize(w3);
+    }
+
+    @Override
+    public void write(DataOutput out) throws IOException {
+        WritableUtils.writeVInt(out, w1);
+        WritableUtils.writeVInt(out, w2);
+        WritableUtils.writeVInt(out, w3);
+    }
+
+    @Override
+    public void readFields(DataInput in) throws IOException {
+        w1 = WritableUtils.readVInt(in);
+        w2 = WritableUtils.readVInt(in);
+        w3 = WritableUtils.readVInt(in);
+    }
+
+    @Override
+    public int compareTo(TrigramKey other) {
+        int compareResult = Integer.compare(w1, other.w1);
+        if (compareResult != 0) {
+            return compareResult;
+        }
+        compareResult = Integer.compare(w2, other.w2);
+        if (compareResult != 0) {
+            return compareResult;
+        }
+        return Integer.compare(w3, other.w3);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof TrigramKey)) {
+            return false;
+        }
+        TrigramKey other = (TrigramKey) o;
+        return w1 == other.w1 && w2 == other.w2 && w3 == other.w3;
+    }
+
+    @Override
+    public int hashCode() {
+        // ids are small and dense, mix them so that Step1.Partition spreads the trigrams of a frequent w1
+        int hash = (w1 * 31 + w2) * 31 + w3;
+        hash *= 0x9E3779B9;
+        return hash ^ (hash >>> 16);
+    }
+
+    @Override
+    public String toString() {
+        return w1 + " " + w2 + " " + w3;
+    }
+
+    /**
+     * Compares the serialized form field by field without deserializing.
+     */
+    public static class Comparator extends WritableComparator {
+        public Comparator() {
+            super(TrigramKey.class);
+        }
+
+        @Override
+        public int compare(byte[] b1, int s1, int l1, byte[] b2, int s2, int l2) {
+            try {
+                for (int i = 0; i < 3; i++) {
+                    int compareResult = Integer.compare(readVInt(b1, s1), readVInt(b2, s2));
+                    if (compareResult != 0) {
+                        return compareResult;
+                    }
+                    s1 += WritableUtils.decodeVIntSize(b1[s1]);
+                    s2 += WritableUtils.decodeVIntSize(b2[s2]);
+                }
+                return 0;
+            } catch (IOException e) {
+                throw new IllegalArgumentException(e);
+            }
+        }
+    }
+
+    static {
+        WritableComparator.define(TrigramKey.class, new Comparator());
+    }
+}
@@ -0,0 +1,279 @@
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.ArrayPrimitiveWritable;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.JobContext;
+import org.apache.hadoop.mapreduce.Mapper;
+import org.apache.hadoop.mapreduce.Reducer;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+import org.apache.hadoop.mapreduce.lib.input.TextInputFormat;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.apache.hadoop.mapreduce.lib.output.SequenceFileOutputFormat;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+
+/**
+ * The first pass of the pruning of rare trigrams (Step1.MIN_COUNT): runs between Vocabulary and Step1 over the same
+ * input and sums the occurrences of the trigrams Step1 keeps into a count-min sketch, and the occurrences of their
+ * words into an exact count per Dictionary id (the ids are dense, so that is an array).
+ * Step1.Map gets the sketch from the distributed cache and drops a trigram before the shuffle when its estimate is
+ * below the minimum. The estimate - the smallest of the sketch cells of the trigram and of the counts of its three
+ * words - is never below the true total of the trigram, so no trigram with enough occurrences is dropped; the few
+ * rare ones that collide with frequent ones get through and are dropped by the reducers of Step1, which see the
+ * exact totals.
+ * <p>
+ * The sketch is sketch.depth rows (default 4) of sketch.width cells (a power of 2, default 2^20) - 8 bytes per cell,
+ * in the memory of every Step1 map task and written once by every map task of this job. The cells of a map task are
+ * sent as blocks, summed by the combiner and the reducers, and write() puts the blocks together into one file.
+ */
+public class TrigramSketch {
+    static final String LINK_NAME = "sketch.bin";
+    static final String DEPTH = "sketch.depth";
+    static final String WIDTH = "sketch.width";
+    private static final int BLOCK = 1 << 16;
+
+    private final int depth;
+    private final int width;
+    private final long[] cells; // depth rows of width cells, then the count of every word
+
+    TrigramSketch(int depth, int width, int words) {
+        if (depth <= 0 || width <= 0 || Integer.bitCount(width) != 1) {
+            throw new IllegalArgumentException("The sketch needs a positive depth and a power of 2 width: " + depth + " x " + width);
+        }
+        this.depth = depth;
+        this.width = width;
+        cells = new long[depth * width + words];
+    }
+
+    void add(int w1, int w2, int w3, long occurrences) {
+        long hash = hash(w1, w2, w3);
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32) | 1;
+        for (int row = 0; row < depth; row++) {
+            cells[row * width + (h1 + row * h2 & width - 1)] += occurrences;
+        }
+        int base = depth * width;
+        cells[base + w1] += occurrences;
+        cells[base + w2] += occurrences;
+        cells[base + w3] += occurrences;
+    }
+
+    /**
+     * @return an upper bound of the occurrences of the trigram in the input of the job
+     */
+    long estimate(int w1, int w2, int w3) {
+        int base = depth * width;
+        long estimate = Math.min(cells[base + w1], Math.min(cells[base + w2], cells[base + w3]));
+        long hash = hash(w1, w2, w3);
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32) | 1;
+        for (int row = 0; row < depth; row++) {
+            estimate = Math.min(estimate, cells[row * width + (h1 + row * h2 & width - 1)]);
+        }
+        return estimate;
+    }
+
+    // the finalizer of MurmurHash3 over the three ids, the two halves are the two hashes of the rows
+    private static long hash(int w1, int w2, int w3) {
+        long key = ((long) w1 * 0x9E3779B1L + w2) * 0x85EBCA77L + w3;
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+        return key;
+    }
+
+    /**
+     * Input:
+     * key - lineId
+     * value - 3-gram /t year /t occurrences /t pages /t books
+     * <p>
+     * Output (once, at cleanup - the sketch of the whole split):
+     * key - <block number>
+     * value - the cells of the block (long[], BLOCK of them, fewer in the last one)
+     * The blocks with no occurrences are not written, except for the last one, which tells the size of the sketch.
+     */
+    private static class Map extends Mapper<LongWritable, Text, IntWritable, ArrayPrimitiveWritable> {
+        private final NgramLine line = new NgramLine();
+        private Dictionary dictionary;
+        private TrigramSketch sketch;
+        private final StageMetrics metrics = new StageMetrics(Map.class);
+
+        @Override
+        protected void setup(Context context) throws IOException {
+            dictionary = Dictionary.fromCache(context);
+            Configuration conf = context.getConfiguration();
+            sketch = new TrigramSketch(conf.getInt(DEPTH, 4), conf.getInt(WIDTH, 1 << 20), dictionary.size());
+        }
+
+        @Override
+        public void map(LongWritable key, Text value, Context context) {
+            metrics.inBytes(value.getLength());
+            if (!line.parse(value)) {
+                metrics.drop(RecordCounters.PARSE_FAILURES);
+                return;
+            }
+            byte[] bytes = line.getBytes();
+            int w1 = dictionary.id(bytes, line.getStart(0), line.getEnd(0));
+            int w2 = w1 < 0 ? -1 : dictionary.id(bytes, line.getStart(1), line.getEnd(1));
+            int w3 = w2 < 0 ? -1 : dictionary.id(bytes, line.getStart(2), line.getEnd(2));
+            if (w3 < 0) {
+                metrics.drop(RecordCounters.FILTERED_NOT_IN_VOCABULARY);
+                return;
+            }
+            sketch.add(w1, w2, w3, line.getOccurrences());
+        }
+
+        @Override
+        protected void cleanup(Context context) throws IOException, InterruptedException {
+            long[] cells = sketch.cells;
+            int blocks = (cells.length + BLOCK - 1) / BLOCK;
+            IntWritable block = new IntWritable();
+            for (int i = 0; i < blocks; i++) {
+                long[] values = Arrays.copyOfRange(cells, i * BLOCK, Math.min(cells.length, (i + 1) * BLOCK));
+                if (i < blocks - 1 && isZero(values)) {
+                    continue;
+                }
+                block.set(i);
+                context.write(block, new ArrayPrimitiveWritable(values));
+                metrics.out();
+            }
+            metrics.report(context);
+        }
+
+        private static boolean isZero(long[] values) {
+            for (long value : values) {
+                if (value != 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Input:
+     * key - <block number>
+     * value - the cells of the block, from every map task
+     * Output:
+     * key - <block number>
+     * value - their sums
+     * Also the combiner.
+     */
+    public static class Reduce extends Reducer<IntWritable, ArrayPrimitiveWritable, IntWritable, ArrayPrimitiveWritable> {
+        private final StageMetrics metrics = new StageMetrics(Reduce.class);
+
+        @Override
+        protected void reduce(IntWritable key, Iterable<ArrayPrimitiveWritable> values, Context context) throws IOException, InterruptedException {
+            long[] sum = null;
+            for (ArrayPrimitiveWritable value : values) {
+                long[] cells = (long[]) value.get();
+                if (sum == null) {
+                    sum = cells.clone(); // the value object is reused
+                } else {
+                    for (int i = 0; i < cells.length; i++) {
+                        sum[i] += cells[i];
+                    }
+                }
+                metrics.in();
+            }
+            context.write(key, new ArrayPrimitiveWritable(sum));
+            metrics.out();
+        }
+
+        @Override
+        protected void cleanup(Context context) {
+            metrics.report(context);
+        }
+    }
+
+    /**
+     * Sketch job from the 3-gram text lines in input to the blocks in output.
+     * The caller adds the vocabulary written by the Vocabulary job (Dictionary.addToJob).
+     */
+    static Job createJob(Configuration conf, Path input, Path output) throws IOException {
+        Job job = Job.getInstance(conf);
+        job.setJarByClass(TrigramSketch.class);
+        job.setMapperClass(Map.class);
+        job.setCombinerClass(Reduce.class);
+        job.setReducerClass(Reduce.class);
+        job.setOutputKeyClass(IntWritable.class);
+        job.setOutputValueClass(ArrayPrimitiveWritable.class);
+        job.setOutputFormatClass(SequenceFileOutputFormat.class);
+        job.setInputFormatClass(TextInputFormat.class);
+        FileInputFormat.addInputPath(job, input);
+        FileOutputFormat.setOutputPath(job, output);
+        Compression.configure(job, "sketch");
+        return job;
+    }
+
+    /**
+     * Writes the sketch file from the output of the job: depth, width and words (int), then all the cells (long).
+     */
+    static void write(Path blocks, Path file, Configuration conf) throws IOException {
+        long[] cells = new long[0];
+        IntWritable block = new IntWritable();
+        ArrayPrimitiveWritable values = new ArrayPrimitiveWritable();
+        for (FileStatus part : blocks.getFileSystem(conf).globStatus(new Path(blocks, "part-r-*"))) {
+            try (SequenceFile.Reader reader = new SequenceFile.Reader(conf, SequenceFile.Reader.file(part.getPath()))) {
+                while (reader.next(block, values)) {
+                    long[] blockCells = (long[]) values.get();
+                    int start = block.get() * BLOCK;
+                    if (cells.length < start + blockCells.length) {
+                        cells = Arrays.copyOf(cells, start + blockCells.length);
+                    }
+                    System.arraycopy(blockCells, 0, cells, start, blockCells.length);
+                }
+            }
+        }
+        int depth = conf.getInt(DEPTH, 4);
+        int width = conf.getInt(WIDTH, 1 << 20);
+        if (cells.length < depth * width) {
+            throw new IOException("No sketch of " + depth + " x " + width + " in " + blocks);
+        }
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(blocks.getFileSystem(conf).create(file, true), 1 << 16))) {
+            out.writeInt(depth);
+            out.writeInt(width);
+            out.writeInt(cells.length - depth * width);
+            for (long cell : cells) {
+                out.writeLong(cell);
+            }
+        }
+    }
+
+    static TrigramSketch load(Path path, Configuration conf) throws IOException {
+        try (FSDataInputStream file = path.getFileSystem(conf).open(path);
+             DataInputStream in = new DataInputStream(new BufferedInputStream(file, 1 << 16))) {
+            TrigramSketch sketch = new TrigramSketch(in.readInt(), in.readInt(), in.readInt());
+            for (int i = 0; i < sketch.cells.length; i++) {
+                sketch.cells[i] = in.readLong();
+            }
+            return sketch;
+        }
+    }
+
+    public static void addToJob(Job job, String file) throws IOException {
+        CacheFiles.addToJob(job, file, LINK_NAME);
+    }
+
+    public static TrigramSketch fromCache(JobContext context) throws IOException {
+        Path path = CacheFiles.find(context, LINK_NAME);
+        if (path == null) {
+            throw new IOException("No sketch in the distributed cache - run the TrigramSketch job and add its file with TrigramSketch.addToJob");
+        }
+        return load(path, context.getConfiguration());
+    }
+}
@@ -0,0 +1,142 @@
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.io.WritableComparable;
+import org.apache.hadoop.mapreduce.Counters;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.Mapper;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+import org.apache.hadoop.mapreduce.lib.input.SequenceFileInputFormat;
+import org.apache.hadoop.mapreduce.lib.output.NullOutputFormat;
+import org.apache.hadoop.util.GenericOptionsParser;
+
+import java.io.IOException;
+
+
+/**
+ * Checks the totals of the Step2 output (or of Step1 with step1.fused) against each other and against the N given
+ * to Step3 (step3.n, e.g. the Step1.Counter.OCCURRENCES of the Step1 job), before Step3 and Step4 run on them. A map-only job over all the files - the N/T records and the
+ * trigrams - that only sums counters, so it is as parallel as the input is split and writes nothing.
+ * <p>
+ * Over all the trigrams, with c0 and c1 the occurrences of a trigram in part 0 and in part 1:
+ * sum_r N_r^0 = sum_r N_r^1 = the number of trigrams (r = 0 included)
+ * sum_r r * N_r^0 + sum_r r * N_r^1 = the occurrences of all the trigrams
+ * sum_r T_r^0 = sum c1 = sum_r r * N_r^1, and sum_r T_r^1 = sum c0 = sum_r r * N_r^0
+ * step3.n, if it is set = the occurrences of all the trigrams (without it Step3 sums N from the N_r records),
+ * or >= them with step1.min.count - the difference is the Step1.Counter.PRUNED_OCCURRENCES of Step1.
+ * <p>
+ * Usage: Validate [-D key=value ...] <Step2 output dir>
+ * Prints every check and exits with 1 if one of them fails.
+ */
+public class Validate {
+    public enum Total {
+        TRIGRAMS,
+        OCCURRENCES,
+        N0,
+        N1,
+        R_N0,
+        R_N1,
+        T0,
+        T1
+    }
+
+    /**
+     * Input (the two kinds of files written by Step2):
+     * key - StatKey <N OR T, r, part>, value - <count>
+     * OR
+     * key - TrigramKey <w1, w2, w3>, value - <total occurrences>
+     * Output: nothing, only the Total counters.
+     */
+    private static class Map extends Mapper<WritableComparable<?>, LongWritable, NullWritable, NullWritable> {
+        private final long[] totals = new long[Total.values().length];
+
+        @Override
+        public void map(WritableComparable<?> key, LongWritable value, Context context) {
+            if (key instanceof TrigramKey) {
+                totals[Total.TRIGRAMS.ordinal()]++;
+                totals[Total.OCCURRENCES.ordinal()] += value.get();
+                return;
+            }
+            StatKey statKey = (StatKey) key;
+            if (statKey.getKind() == StatKey.N) {
+                totals[(statKey.getPart() == 0 ? Total.N0 : Total.N1).ordinal()] += value.get();
+                totals[(statKey.getPart() == 0 ? Total.R_N0 : Total.R_N1).ordinal()] += statKey.getR() * value.get();
+            } else {
+                totals[(statKey.getPart() == 0 ? Total.T0 : Total.T1).ordinal()] += value.get();
+            }
+        }
+
+        // once per task, not once per record
+        @Override
+        protected void cleanup(Context context) {
+            for (Total total : Total.values()) {
+                context.getCounter(total).increment(totals[total.ordinal()]);
+            }
+        }
+    }
+
+    static Job createJob(Configuration conf, Path input) throws IOException {
+        Job job = Job.getInstance(conf);
+        job.setJarByClass(Validate.class);
+        job.setJobName("validate");
+        job.setMapperClass(Map.class);
+        job.setNumReduceTasks(0);
+        job.setInputFormatClass(SequenceFileInputFormat.class);
+        job.setOutputFormatClass(NullOutputFormat.class);
+        job.setOutputKeyClass(NullWritable.class);
+        job.setOutputValueClass(NullWritable.class);
+        // not the whole directory, which may also hold the lower order counts of Step1
+        FileInputFormat.addInputPath(job, new Path(input, "part-r-*"));
+        FileInputFormat.addInputPath(job, new Path(input, Step2.TRIGRAMS + "-*"));
+        return job;
+    }
+
+    /**
+     * Prints the checks of the totals of a finished job.
+     * @return true if all of them passed
+     */
+    static boolean check(Counters counters, long n, boolean pruned) {
+        long trigrams = counters.findCounter(Total.TRIGRAMS).getValue();
+        long occurrences = counters.findCounter(Total.OCCURRENCES).getValue();
+        long rN0 = counters.findCounter(Total.R_N0).getValue();
+        long rN1 = counters.findCounter(Total.R_N1).getValue();
+        boolean valid = check("sum N_r^0 = trigrams", counters.findCounter(Total.N0).getValue(), trigrams);
+        valid &= check("sum N_r^1 = trigrams", counters.findCounter(Total.N1).getValue(), trigrams);
+        valid &= check("sum r * N_r = occurrences", rN0 + rN1, occurrences);
+        valid &= check("sum T_r^0 = sum r * N_r^1", counters.findCounter(Total.T0).getValue(), rN1);
+        valid &= check("sum T_r^1 = sum r * N_r^0", counters.findCounter(Total.T1).getValue(), rN0);
+        if (n > 0 && pruned) {
+            boolean atLeast = n >= occurrences;
+            System.out.println((atLeast ? "OK       " : "MISMATCH ") + Step3.N + " >= occurrences: " + n + ", "
+                    + (n - occurrences) + " occurrences pruned by " + Step1.MIN_COUNT);
+            valid &= atLeast;
+        } else if (n > 0) {
+            valid &= check(Step3.N + " = occurrences", n, occurrences);
+        } else {
+            System.out.println("         " + Step3.N + " is not set, Step3 will sum it from the N_r records: " + (rN0 + rN1));
+        }
+        return valid;
+    }
+
+    private static boolean check(String name, long actual, long expected) {
+        boolean valid = actual == expected;
+        System.out.println((valid ? "OK       " : "MISMATCH ") + name + ": " + actual
+                + (valid ? "" : " instead of " + expected + " (" + (actual - expected) + ")"));
+        return valid;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Configuration conf = new Configuration();
+        String[] paths = new GenericOptionsParser(conf, args).getRemainingArgs();
+        if (paths.length != 1) {
+            System.err.println("Usage: Validate [-D key=value ...] <Step2 output dir>");
+            System.exit(2);
+        }
+        Job job = createJob(conf, new Path(paths[0]));
+        if (!job.waitForCompletion(false)) {
+            System.exit(1);
+        }
+        System.exit(check(job.getCounters(), conf.getLong(Step3.N, 0), conf.getLong(Step1.MIN_COUNT, 0) > 1) ? 0 : 1);
+    }
+}
@@ -0,0 +1,238 @@
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.WritableComparator;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.Mapper;
+import org.apache.hadoop.mapreduce.Reducer;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+import org.apache.hadoop.mapreduce.lib.input.SequenceFileInputFormat;
+import org.apache.hadoop.mapreduce.lib.input.TextInputFormat;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.apache.hadoop.mapreduce.lib.output.SequenceFileOutputFormat;
+import org.apache.hadoop.util.IndexedSortable;
+import org.apache.hadoop.util.QuickSort;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+
+/**
+ * Runs before Step1: counts the words of the 3-grams the pipeline keeps, then writeDictionary gives them
+ * dense int ids by frequency (see Dictionary). The filtering (only letters, no stop words) is done here,
+ * so Step1 keeps exactly the 3-grams whose three words are in the vocabulary.
+ */
+public class Vocabulary {
+
+    /**
+     * Input:
+     * key - lineId
+     * value - 3-gram /t year /t occurrences /t pages /t books
+     * <p>
+     * Output (for each of the 3 words of a 3-gram that is kept):
+     * key - word
+     * value - <occurrences>
+     */
+    private static class Map extends Mapper<LongWritable, Text, Text, LongWritable> {
+        private final NgramLine line = new NgramLine();
+        private final Text outKey = new Text();
+        private final LongWritable outValue = new LongWritable();
+        private StopWords stopWords;
+        private final StageMetrics metrics = new StageMetrics(Map.class);
+
+        @Override
+        protected void setup(Context context) throws IOException {
+            stopWords = StopWords.fromCache(context);
+        }
+
+        @Override
+        public void map(LongWritable key, Text value, Context context) throws IOException, InterruptedException {
+            metrics.inBytes(value.getLength());
+            if (!line.parse(value)) {
+                metrics.drop(RecordCounters.PARSE_FAILURES);
+                return;
+            }
+            if (line.hasNonLetterWord()) {
+                metrics.drop(RecordCounters.FILTERED_NON_LETTER);
+                return;
+            }
+            if (line.hasStopWord(stopWords)) {
+                metrics.drop(RecordCounters.FILTERED_STOP_WORD);
+                return;
+            }
+
+            outValue.set(line.getOccurrences());
+            for (int i = 0; i < 3; i++) {
+                outKey.set(line.getBytes(), line.getStart(i), line.getEnd(i) - line.getStart(i));
+                context.write(outKey, outValue);
+            }
+            metrics.out(3);
+        }
+
+        @Override
+        protected void cleanup(Context context) {
+            metrics.report(context);
+        }
+    }
+
+    /**
+     * Input:
+     * key - word
+     * value - <occurrences>
+     * Output:
+     * key - word
+     * value - <total occurrences of the word in the 3-grams that are kept>
+     * Also the combiner.
+     */
+    public static class Reduce extends Reducer<Text, LongWritable, Text, LongWritable> {
+        private final LongWritable outValue = new LongWritable();
+        private final StageMetrics metrics = new StageMetrics(Reduce.class);
+
+        @Override
+        protected void reduce(Text key, Iterable<LongWritable> values, Context context) throws IOException, InterruptedException {
+            long sum = 0;
+            for (LongWritable value : values) {
+                sum += value.get();
+                metrics.in();
+            }
+            outValue.set(sum);
+            context.write(key, outValue);
+            metrics.out();
+        }
+
+        @Override
+        protected void cleanup(Context context) {
+            metrics.report(context);
+        }
+    }
+
+    /**
+     * Vocabulary job from the 3-gram text lines in input to the word counts in output.
+     * The caller adds the stop words (StopWords.addToJob).
+     */
+    static Job createJob(Configuration conf, Path input, Path output) throws IOException {
+        Job job = Job.getInstance(conf);
+        job.setJarByClass(Vocabulary.class);
+        job.setMapperClass(Map.class);
+        job.setCombinerClass(Reduce.class);
+        job.setReducerClass(Reduce.class);
+        job.setOutputKeyClass(Text.class);
+        job.setOutputValueClass(LongWritable.class);
+        job.setOutputFormatClass(SequenceFileOutputFormat.class);
+        job.setInputFormatClass(TextInputFormat.class);
+        FileInputFormat.addInputPath(job, input);
+        FileOutputFormat.setOutputPath(job, output);
+        Compression.configure(job, "vocabulary");
+        return job;
+    }
+
+    /**
+     * Writes the vocabulary file from the output of the job: the most frequent word first (id 0),
+     * words with the same count in byte order.
+     */
+    static void writeDictionary(Path counts, Path dictionary, Configuration conf) throws IOException {
+        writeDictionary(counts, null, dictionary, conf);
+    }
+
+    /**
+     * Same, but the words of the previous vocabulary file (if not null) keep their ids - only the words
+     * that are not in it are added after them, so the ids already stored by Incremental stay valid.
+     */
+    static void writeDictionary(Path counts, Path previous, Path dictionary, Configuration conf) throws IOException {
+        Dictionary known = previous == null ? new Dictionary(new ArrayList<byte[]>()) : Dictionary.load(previous, conf);
+        final List<byte[]> words = new ArrayList<>();
+        long[] wordCounts = new long[1024];
+        Text word = new Text();
+        LongWritable count = new LongWritable();
+        for (FileStatus part : counts.getFileSystem(conf).globStatus(new Path(counts, "part-r-*"))) {
+            try (SequenceFile.Reader reader = new SequenceFile.Reader(conf, SequenceFile.Reader.file(part.getPath()))) {
+                while (reader.next(word, count)) {
+                    if (known.id(word.getBytes(), 0, word.getLength()) >= 0) {
+                        continue;
+                    }
+                    if (words.size() == wordCounts.length) {
+                        wordCounts = Arrays.copyOf(wordCounts, words.size() * 2);
+                    }
+                    wordCounts[words.size()] = count.get();
+                    words.add(word.copyBytes());
+                }
+            }
+        }
+
+        final long[] sortCounts = wordCounts;
+        if (words.size() > 1) { // QuickSort doesn't take an empty range
+            new QuickSort().sort(new IndexedSortable() {
+                @Override
+                public int compare(int i, int j) {
+                    int compareResult = Long.compare(sortCounts[j], sortCounts[i]);
+                    if (compareResult != 0) {
+                        return compareResult;
+                    }
+                    byte[] a = words.get(i), b = words.get(j);
+                    return WritableComparator.compareBytes(a, 0, a.length, b, 0, b.length);
+                }
+
+                @Override
+                public void swap(int i, int j) {
+                    long tmp = sortCounts[i];
+                    sortCounts[i] = sortCounts[j];
+                    sortCounts[j] = tmp;
+                    words.set(i, words.set(j, words.get(i)));
+                }
+            }, 0, words.size());
+        }
+        List<byte[]> all = new ArrayList<>(known.size() + words.size());
+        for (int id = 0; id < known.size(); id++) {
+            word.clear();
+            known.appendWord(id, word);
+            all.add(word.copyBytes());
+        }
+        all.addAll(words);
+        Dictionary.write(all, dictionary, conf);
+    }
+
+    public static void main(String[] args) throws Exception {
+
+        Configuration conf = new Configuration();
+
+        boolean local = false;
+        boolean english = true;
+        String input = "", output = "", dictionary = "";
+        if (local) {
+            input = "/home/adler/Downloads/dist2-20221224T103516Z-001-20221228T114702Z-001/dist2-20221224T103516Z-001/dist2/MapReduceProject/3_grams.txt";
+            output = "/home/adler/Downloads/dist2-20221224T103516Z-001-20221228T114702Z-001/dist2-20221224T103516Z-001/dist2/MapReduceProject/src/main/java/outputs/Vocabulary";
+            dictionary = "/home/adler/Downloads/dist2-20221224T103516Z-001-20221228T114702Z-001/dist2-20221224T103516Z-001/dist2/MapReduceProject/src/main/java/outputs/vocabulary.txt";
+        } else {
+            if (english) {
+                input = "s3n://datasets.elasticmapreduce/ngrams/books/20090715/eng-all/3gram/data";
+            } else {
+                input = "s3n://datasets.elasticmapreduce/ngrams/books/20090715/heb-all/3gram/data";
+            }
+            output = "s3://bucketurevich2/VocabularyOutput.txt";
+            dictionary = "s3://bucketurevich2/vocabulary.txt"; // read by Step1 and Step4
+        }
+
+        if (!local) {
+            Compression.useClusterDefaults(conf);
+        }
+        Job job = createJob(conf, new Path(input), new Path(output));
+        if (!local) {
+            // stopwords/english.txt or stopwords/hebrew.txt from this repository, uploaded next to the jars
+            StopWords.addToJob(job, english ? "s3://bucketurevich2/stopwords/english.txt" : "s3://bucketurevich2/stopwords/hebrew.txt");
+            job.setInputFormatClass(SequenceFileInputFormat.class);
+        }
+        PipelineReport report = new PipelineReport();
+        boolean success = report.run(job, "vocabulary");
+        Compression.report(job, "vocabulary");
+        report.write(new Path(output + ".report.json"), conf);
+        if (!success) {
+            System.exit(1);
+        }
+        writeDictionary(new Path(output), new Path(dictionary), conf);
+    }
+}
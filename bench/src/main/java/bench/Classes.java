@@ -0,0 +1,79 @@
+package bench;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+
+
+/**
+ * The pipeline classes live in the default package, which can't be imported from a named package
+ * (and JMH does not allow benchmarks in the default package), so the benchmarks load them by name.
+ * Only used while setting up state, never inside a measured method.
+ */
+public class Classes {
+
+    @SuppressWarnings("unchecked")
+    public static <T> T newInstance(String className) {
+        try {
+            java.lang.reflect.Constructor<?> constructor = Class.forName(className).getDeclaredConstructor();
+            constructor.setAccessible(true);
+            return (T) constructor.newInstance();
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Can't create " + className, e);
+        }
+    }
+
+    public static Class<?> forName(String className) {
+        try {
+            return Class.forName(className);
+        } catch (ClassNotFoundException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Calls the public method with the given name and number of arguments.
+     */
+    public static Object invoke(Object target, String methodName, Object... args) {
+        for (Method method : target.getClass().getMethods()) {
+            if (method.getName().equals(methodName) && method.getParameterCount() == args.length) {
+                try {
+                    return method.invoke(target, args);
+                } catch (IllegalAccessException e) {
+                    throw new IllegalStateException(e);
+                } catch (InvocationTargetException e) {
+                    throw new IllegalStateException(e.getCause());
+                }
+            }
+        }
+        throw new IllegalArgumentException(target.getClass().getName() + " has no method " + methodName);
+    }
+
+    /**
+     * Calls the static method (of any visibility) with the given name and number of arguments.
+     */
+    public static Object invokeStatic(String className, String methodName, Object... args) {
+        for (Method method : forName(className).getDeclaredMethods()) {
+            if (method.getName().equals(methodName) && method.getParameterCount() == args.length) {
+                try {
+                    method.setAccessible(true);
+                    return method.invoke(null, args);
+                } catch (IllegalAccessException e) {
+                    throw new IllegalStateException(e);
+                } catch (InvocationTargetException e) {
+                    throw new IllegalStateException(e.getCause());
+                }
+            }
+        }
+        throw new IllegalArgumentException(className + " has no method " + methodName);
+    }
+
+    public static Object getStatic(String className, String fieldName) {
+        try {
+            java.lang.reflect.Field field = Class.forName(className).getDeclaredField(fieldName);
+            field.setAccessible(true);
+            return field.get(null);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,204 @@
+package bench;
+
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.RawComparator;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableComparable;
+import org.apache.hadoop.io.WritableComparator;
+import org.apache.hadoop.util.IndexedSortable;
+import org.apache.hadoop.util.QuickSort;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Sort phase of Step3 and Step4: sorts serialized map output keys with the job's sort comparator,
+ * the same way MapTask sorts its spill buffer (QuickSort over record offsets).
+ * Compares the old Text keys and their string-splitting comparators to the binary keys and the raw comparators
+ * (Step4 keys hold word ranks, see ProbabilityKey).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ComparisonBenchmark {
+    @Param({"100000"})
+    int records;
+
+    private Keys step3Text, step3Binary, step4Text, step4Binary;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        Random random = new Random(42);
+        String[] words = new String[5000];
+        for (int i = 0; i < words.length; i++) {
+            words[i] = Integer.toString(i * 7919, 36);
+        }
+        step3Text = new Keys(records, new OldStep3Comparison());
+        step3Binary = new Keys(records, Classes.<RawComparator>newInstance("Step3$Comparison"));
+        step4Text = new Keys(records, new OldStep4Comparison());
+        step4Binary = new Keys(records, Classes.<RawComparator>newInstance("Step4$Comparison"));
+        Text text = new Text();
+        Writable statKey = Classes.newInstance("StatKey");
+        Writable probabilityKey = Classes.newInstance("ProbabilityKey");
+        byte trigramKind = (Byte) Classes.getStatic("StatKey", "TRIGRAM");
+        byte nKind = (Byte) Classes.getStatic("StatKey", "N");
+        for (int i = 0; i < records; i++) {
+            // low r values are the most common, like in the corpus
+            long r = (long) Math.exp(random.nextDouble() * 10);
+            boolean trigram = random.nextInt(10) != 0;
+            text.set(r + (trigram ? ",b" : ",a"));
+            step3Text.add(text);
+            Classes.invoke(statKey, "set", trigram ? trigramKind : nKind, r, 0);
+            step3Binary.add(statKey);
+
+            int rank1 = zipf(random, words.length);
+            int rank2 = zipf(random, words.length);
+            double probability = r * 1e-10;
+            text.set(words[rank1] + " " + words[rank2] + " " + probability);
+            step4Text.add(text);
+            Classes.invoke(probabilityKey, "set", rank1, rank2, probability);
+            step4Binary.add(probabilityKey);
+        }
+    }
+
+    private static int zipf(Random random, int n) {
+        return (int) Math.min(n - 1, Math.exp(random.nextDouble() * Math.log(n)) - 1);
+    }
+
+    @Setup(Level.Invocation)
+    public void shuffle() {
+        step3Text.reset();
+        step3Binary.reset();
+        step4Text.reset();
+        step4Binary.reset();
+    }
+
+    @Benchmark
+    public int[] step3Text() {
+        return step3Text.sort();
+    }
+
+    @Benchmark
+    public int[] step3Binary() {
+        return step3Binary.sort();
+    }
+
+    @Benchmark
+    public int[] step4Text() {
+        return step4Text.sort();
+    }
+
+    @Benchmark
+    public int[] step4Binary() {
+        return step4Binary.sort();
+    }
+
+    /**
+     * Serialized keys in one buffer, sorted through an offset array.
+     */
+    private static class Keys implements IndexedSortable {
+        private final DataOutputBuffer buffer = new DataOutputBuffer();
+        private final RawComparator comparator;
+        private final int[] starts, lengths, order;
+        private int count = 0;
+
+        Keys(int records, RawComparator comparator) {
+            this.comparator = comparator;
+            starts = new int[records];
+            lengths = new int[records];
+            order = new int[records];
+        }
+
+        void add(Writable key) throws IOException {
+            starts[count] = buffer.getLength();
+            key.write(buffer);
+            lengths[count] = buffer.getLength() - starts[count];
+            count++;
+        }
+
+        void reset() {
+            for (int i = 0; i < count; i++) {
+                order[i] = i;
+            }
+        }
+
+        int[] sort() {
+            new QuickSort().sort(this, 0, count);
+            return order;
+        }
+
+        @Override
+        public int compare(int i, int j) {
+            byte[] data = buffer.getData();
+            return comparator.compare(data, starts[order[i]], lengths[order[i]], data, starts[order[j]], lengths[order[j]]);
+        }
+
+        @Override
+        public void swap(int i, int j) {
+            int tmp = order[i];
+            order[i] = order[j];
+            order[j] = tmp;
+        }
+    }
+
+    /**
+     * Step3.Comparison before the binary keys: "r,a" / "r,b" Text keys.
+     */
+    private static class OldStep3Comparison extends WritableComparator {
+        OldStep3Comparison() {
+            super(Text.class, true);
+        }
+
+        @Override
+        public int compare(WritableComparable key1, WritableComparable key2) {
+            String[] key11 = key1.toString().split(",");
+            String[] key22 = key2.toString().split(",");
+            int number1 = Integer.parseInt(key11[0]);
+            int number2 = Integer.parseInt(key22[0]);
+            if (number1 > number2) {
+                return 1;
+            } else if (number1 < number2) {
+                return -1;
+            } else {
+                if (key11[1].equals(key22[1])) {
+                    return 0;
+                } else if (key11[1].equals("a")) {
+                    return -1;
+                } else {
+                    return 1;
+                }
+            }
+        }
+    }
+
+    /**
+     * Step4.Comparison before the binary keys: "w1 w2 probability" Text keys.
+     */
+    private static class OldStep4Comparison extends WritableComparator {
+        OldStep4Comparison() {
+            super(Text.class, true);
+        }
+
+        @Override
+        public int compare(WritableComparable key1, WritableComparable key2) {
+            String[] words1 = key1.toString().split(" ");
+            String[] words2 = key2.toString().split(" ");
+
+            for (int i = 0; i < 2; i++) {
+                int compareResult = words1[i].compareTo(words2[i]);
+                if (compareResult != 0) {
+                    return compareResult;
+                }
+            }
+
+            return words2[2].compareTo(words1[2]);
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package bench;
+
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.Text;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.Random;
+import java.util.Set;
+
+
+/**
+ * Synthetic Google 3-gram lines: "w1 w2 w3 \t year \t occurrences \t pages \t books".
+ * The words are drawn from a Zipfian distribution (s = 1) over a vocabulary that starts with real stop words,
+ * so the most frequent words get filtered like in the real corpus, followed by made up words
+ * (Latin letters for english - 1 byte per letter, Hebrew letters for hebrew - 2 bytes per letter)
+ * and a few tokens that are not words at all.
+ */
+public class Corpus {
+    public static final String ENGLISH = "english";
+    public static final String HEBREW = "hebrew";
+    static final int VOCABULARY = 5000;
+
+    private static final String[] ENGLISH_STOP_WORDS = {"the", "of", "and", "to", "in", "a", "is", "that", "for", "it",
+            "as", "was", "with", "be", "by", "on", "not", "he", "this", "are"};
+    private static final String[] HEBREW_STOP_WORDS = {"של", "את", "על", "לא", "עם", "זה", "כל", "הוא", "אם", "או",
+            "גם", "יותר", "יש", "לי", "אני"};
+    private static final String[] NOT_WORDS = {"1984", "U.S.", "don't", "--", "e-mail", "3rd", "א.", "ה-"};
+
+    private final String language;
+    private final String[] vocabulary;
+    private final double[] cumulative;
+
+    public Corpus(String language, long seed) {
+        this.language = language;
+        Random random = new Random(seed);
+        Set<String> words = new LinkedHashSet<>(Arrays.asList(stopWords()));
+        int notWord = 0;
+        while (words.size() < VOCABULARY) {
+            if (words.size() % 250 == 0 && notWord < NOT_WORDS.length) {
+                words.add(NOT_WORDS[notWord++]);
+            } else {
+                words.add(randomWord(random));
+            }
+        }
+        vocabulary = words.toArray(new String[0]);
+        cumulative = new double[vocabulary.length];
+        double sum = 0;
+        for (int rank = 0; rank < vocabulary.length; rank++) {
+            sum += 1.0 / (rank + 1);
+            cumulative[rank] = sum;
+        }
+        for (int rank = 0; rank < vocabulary.length; rank++) {
+            cumulative[rank] /= sum;
+        }
+    }
+
+    public String[] stopWords() {
+        return ENGLISH.equals(language) ? ENGLISH_STOP_WORDS : HEBREW_STOP_WORDS;
+    }
+
+    /**
+     * Writes the stop words of the language to a temporary file, for StopWords.addToJob.
+     */
+    public File stopWordsFile() throws IOException {
+        File file = File.createTempFile("stopwords-" + language, ".txt");
+        file.deleteOnExit();
+        Files.write(file.toPath(), Arrays.asList(stopWords()), StandardCharsets.UTF_8);
+        return file;
+    }
+
+    public LongWritable[] offsets(int count) {
+        LongWritable[] offsets = new LongWritable[count];
+        for (int i = 0; i < count; i++) {
+            offsets[i] = new LongWritable(i);
+        }
+        return offsets;
+    }
+
+    public Text[] lines(int count, long seed) {
+        Random random = new Random(seed);
+        Text[] lines = new Text[count];
+        for (int i = 0; i < count; i++) {
+            lines[i] = new Text(word(random) + " " + word(random) + " " + word(random) + "\t" + (1800 + random.nextInt(209))
+                    + "\t" + (1 + random.nextInt(500)) + "\t" + (1 + random.nextInt(50)) + "\t" + (1 + random.nextInt(20)));
+        }
+        return lines;
+    }
+
+    private String word(Random random) {
+        int rank = Arrays.binarySearch(cumulative, random.nextDouble());
+        return vocabulary[Math.min(rank < 0 ? -rank - 1 : rank, vocabulary.length - 1)];
+    }
+
+    private String randomWord(Random random) {
+        char first = ENGLISH.equals(language) ? 'a' : 'א';
+        int letters = ENGLISH.equals(language) ? 26 : 27;
+        StringBuilder word = new StringBuilder();
+        int length = 2 + random.nextInt(8);
+        for (int i = 0; i < length; i++) {
+            word.append((char) (first + random.nextInt(letters)));
+        }
+        return word.toString();
+    }
+}
@@ -0,0 +1,152 @@
+package bench;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.RawComparator;
+import org.apache.hadoop.mapreduce.Counter;
+import org.apache.hadoop.mapreduce.Counters;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.Mapper;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.RecordWriter;
+import org.apache.hadoop.mapreduce.Reducer;
+import org.apache.hadoop.mapreduce.StatusReporter;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.TaskAttemptID;
+import org.apache.hadoop.mapreduce.TaskCounter;
+import org.apache.hadoop.mapreduce.lib.map.WrappedMapper;
+import org.apache.hadoop.mapreduce.lib.reduce.WrappedReducer;
+import org.apache.hadoop.mapreduce.task.MapContextImpl;
+import org.apache.hadoop.mapreduce.task.ReduceContextImpl;
+import org.apache.hadoop.mapred.RawKeyValueIterator;
+
+import java.io.IOException;
+
+
+/**
+ * Runs a Mapper or a Reducer over records held in memory, without a job, a file system or a task.
+ * Mapper.run(context) and Reducer.run(context) go through setup, every record and cleanup, like in a task.
+ */
+public class InMemoryContext {
+
+    public static <KI, VI, KO, VO> Mapper<KI, VI, KO, VO>.Context mapContext(Configuration conf, ArrayReader<KI, VI> reader, RecordWriter<KO, VO> writer) {
+        MapContextImpl<KI, VI, KO, VO> mapContext = new MapContextImpl<>(conf, new TaskAttemptID(), reader, writer, null, new Reporter(), null);
+        return new WrappedMapper<KI, VI, KO, VO>().getMapContext(mapContext);
+    }
+
+    /**
+     * @param input    serialized keys and values, sorted by the sort comparator of the job
+     * @param grouping the grouping comparator of the job (the sort comparator when the job has none)
+     */
+    public static <KI, VI, KO, VO> Reducer<KI, VI, KO, VO>.Context reduceContext(Configuration conf, RawKeyValueIterator input,
+                                                                               RawComparator<KI> grouping, Class<KI> keyClass, Class<VI> valueClass,
+                                                                               RecordWriter<KO, VO> writer) throws IOException, InterruptedException {
+        Reporter reporter = new Reporter();
+        ReduceContextImpl<KI, VI, KO, VO> reduceContext = new ReduceContextImpl<>(conf, new TaskAttemptID(), input,
+                reporter.getCounter(TaskCounter.REDUCE_INPUT_GROUPS), reporter.getCounter(TaskCounter.REDUCE_INPUT_RECORDS),
+                writer, null, reporter, grouping, keyClass, valueClass);
+        return new WrappedReducer<KI, VI, KO, VO>().getReducerContext(reduceContext);
+    }
+
+    /**
+     * Reads limit records, going over the given keys and values as many times as needed, again after every reset().
+     */
+    public static class ArrayReader<K, V> extends RecordReader<K, V> {
+        private final K[] keys;
+        private final V[] values;
+        private final int limit;
+        private int read = 0;
+        private int index = -1;
+
+        public ArrayReader(K[] keys, V[] values) {
+            this(keys, values, keys.length);
+        }
+
+        public ArrayReader(K[] keys, V[] values, int limit) {
+            this.keys = keys;
+            this.values = values;
+            this.limit = limit;
+        }
+
+        public void reset() {
+            read = 0;
+            index = -1;
+        }
+
+        @Override
+        public void initialize(InputSplit split, TaskAttemptContext context) {
+        }
+
+        @Override
+        public boolean nextKeyValue() {
+            if (read++ >= limit) {
+                return false;
+            }
+            index = (index + 1) % keys.length;
+            return true;
+        }
+
+        @Override
+        public K getCurrentKey() {
+            return keys[index];
+        }
+
+        @Override
+        public V getCurrentValue() {
+            return values[index];
+        }
+
+        @Override
+        public float getProgress() {
+            return (float) read / limit;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    /**
+     * Counts the records written. The writer gets reused key and value objects, so they are not kept.
+     */
+    public static class CountingWriter<K, V> extends RecordWriter<K, V> {
+        public long records = 0;
+        public long hash = 0;
+
+        @Override
+        public void write(K key, V value) {
+            records++;
+            hash += key.hashCode() ^ value.hashCode();
+        }
+
+        @Override
+        public void close(TaskAttemptContext context) {
+        }
+    }
+
+    private static class Reporter extends StatusReporter {
+        private final Counters counters = new Counters();
+
+        @Override
+        public Counter getCounter(Enum<?> name) {
+            return counters.findCounter(name);
+        }
+
+        @Override
+        public Counter getCounter(String group, String name) {
+            return counters.findCounter(group, name);
+        }
+
+        @Override
+        public void progress() {
+        }
+
+        @Override
+        public float getProgress() {
+            return 0;
+        }
+
+        @Override
+        public void setStatus(String status) {
+        }
+    }
+}
@@ -0,0 +1,209 @@
+package bench;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.DoubleWritable;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.RawComparator;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableComparator;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.Mapper;
+import org.apache.hadoop.mapreduce.RecordWriter;
+import org.apache.hadoop.mapreduce.Reducer;
+import org.apache.hadoop.mapreduce.lib.output.MultipleOutputs;
+import org.apache.hadoop.mapreduce.lib.output.NullOutputFormat;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.Files;
+
+
+/**
+ * The input of every stage for one language, made by running the stages before it over the synthetic corpus:
+ * lines -> Vocabulary.Map -> sort -> Vocabulary.Reduce -> vocabulary file, then lines -> Step1.Map -> sort -> Step1.Reduce -> Step2.Map -> sort -> Step2.Reduce -> Step3.Map -> sort -> Step3.Reduce
+ * -> Step4.Map -> sort. Every benchmark then runs one stage over RECORDS records of its own input
+ * (going over the input again when it has fewer records), so one operation is one input record in every stage.
+ */
+public class Pipeline {
+    public static final int RECORDS = 100000;
+
+    public final Configuration conf;
+    public final LongWritable[] offsets;
+    public final Text[] lines;
+    /** Vocabulary.Map output, sorted - the input of Vocabulary.Reduce */
+    public final Records vocabularyMap;
+    /** Step1.Map output, sorted - the input of Step1.Combine, Step1.Reduce and Step1.FusedReduce */
+    public final Records step1Map;
+    /** Step2.Map input */
+    public final Writable[] step2Keys, step2Values;
+    /** Step2.Map output, sorted - the input of Step2.Combine and Step2.Reduce */
+    public final Records step2Map;
+    /** Step3.Map input: the N/T records of Step2.Reduce and the trigram totals, like the files of Step2 */
+    public final Writable[] step3Keys, step3Values;
+    /** Step3.BroadcastMap input: the trigram totals only */
+    public final Writable[] trigramKeys, trigramValues;
+    /** Step3.Map output, sorted - the input of Step3.Reduce */
+    public final Records step3Map;
+    /** Step4.Map input */
+    public final Writable[] step4Keys, step4Values;
+    /** Step4.Map output, sorted - the input of Step4.Reduce */
+    public final Records step4Map;
+    /** the job of Step3.BroadcastMap: the N/T records of Step2.Reduce are in its distributed cache */
+    public final Configuration broadcastConf;
+
+    public Pipeline(String language) throws IOException, InterruptedException {
+        Corpus corpus = new Corpus(language, 42);
+        Job job = Job.getInstance(new Configuration());
+        Classes.invokeStatic("StopWords", "addToJob", job, corpus.stopWordsFile().getPath());
+        // the trigram totals of Step2.Map and Step1.FusedReduce go to a named output, drop them
+        MultipleOutputs.addNamedOutput(job, (String) Classes.getStatic("Step2", "TRIGRAMS"), NullOutputFormat.class,
+                type("TrigramKey"), LongWritable.class);
+        // split r = 1 and r = 2 like Step3.main does in skew mode
+        job.getConfiguration().setLong((String) Classes.getStatic("Step3", "SKEW_HOT_R"), 2);
+        job.getConfiguration().setInt((String) Classes.getStatic("Step3", "SKEW_SPLITS"), 8);
+        conf = job.getConfiguration();
+
+        offsets = corpus.offsets(RECORDS);
+        lines = corpus.lines(RECORDS, 7);
+
+        vocabularyMap = run(Classes.newInstance("Vocabulary$Map"), offsets, lines).sort(WritableComparator.get(Text.class));
+        Records vocabularyReduce = run(Classes.newInstance("Vocabulary$Reduce"), vocabularyMap,
+                WritableComparator.get(Text.class), Text.class, LongWritable.class);
+        Classes.invokeStatic("Dictionary", "addToJob", job, writeVocabulary(vocabularyReduce).toString());
+
+        step1Map = run(Classes.newInstance("Step1$Map"), offsets, lines).sort(comparator("TrigramKey"));
+        Records step1Reduce = run(Classes.newInstance("Step1$Reduce"), step1Map, comparator("TrigramKey"),
+                type("TrigramKey"), type("PartCounts"));
+        step2Keys = step1Reduce.keys(type("TrigramKey"));
+        step2Values = step1Reduce.values(type("PartCounts"));
+
+        step2Map = run(Classes.newInstance("Step2$Map"), step2Keys, step2Values).sort(comparator("StatKey"));
+        Records step2Reduce = run(Classes.newInstance("Step2$Reduce"), step2Map, comparator("StatKey"),
+                type("StatKey"), LongWritable.class);
+        Writable[] statKeys = step2Reduce.keys(type("StatKey"));
+        Writable[] statValues = step2Reduce.values(LongWritable.class);
+
+        trigramKeys = step2Keys;
+        trigramValues = new Writable[step2Values.length];
+        for (int i = 0; i < step2Values.length; i++) {
+            trigramValues[i] = new LongWritable((Long) Classes.invoke(step2Values[i], "getTotal"));
+        }
+        step3Keys = concat(statKeys, trigramKeys);
+        step3Values = concat(statValues, trigramValues);
+
+        RawComparator<?> step3Comparison = Classes.newInstance("Step3$Comparison");
+        step3Map = run(Classes.newInstance("Step3$Map"), step3Keys, step3Values).sort(step3Comparison);
+        Records step3Reduce = run(Classes.newInstance("Step3$Reduce"), step3Map,
+                Classes.<RawComparator<?>>newInstance("Step3$Grouping"), type("StatKey"), type("Step3$Value"));
+        step4Keys = step3Reduce.keys(type("TrigramKey"));
+        step4Values = step3Reduce.values(DoubleWritable.class);
+
+        RawComparator<?> step4Comparison = Classes.newInstance("Step4$Comparison");
+        step4Map = run(Classes.newInstance("Step4$Map"), step4Keys, step4Values).sort(step4Comparison);
+
+        Job broadcastJob = Job.getInstance(new Configuration());
+        broadcastJob.addCacheFile(writeStats(statKeys, statValues));
+        broadcastConf = broadcastJob.getConfiguration();
+    }
+
+    @SuppressWarnings("unchecked")
+    static Class<Writable> type(String className) {
+        return (Class<Writable>) Classes.forName(className);
+    }
+
+    static RawComparator<?> comparator(String className) {
+        return WritableComparator.get(type(className).asSubclass(org.apache.hadoop.io.WritableComparable.class));
+    }
+
+    /**
+     * A context that feeds RECORDS of the given records to a Mapper.
+     */
+    public <KI, VI, KO, VO> Mapper<KI, VI, KO, VO>.Context mapContext(KI[] keys, VI[] values, RecordWriter<KO, VO> writer) {
+        return mapContext(conf, keys, values, writer);
+    }
+
+    public <KI, VI, KO, VO> Mapper<KI, VI, KO, VO>.Context mapContext(Configuration conf, KI[] keys, VI[] values, RecordWriter<KO, VO> writer) {
+        return InMemoryContext.mapContext(conf, new InMemoryContext.ArrayReader<>(keys, values, RECORDS), writer);
+    }
+
+    /**
+     * A context that feeds RECORDS of the given sorted records to a Reducer.
+     */
+    public <KI, VI, KO, VO> Reducer<KI, VI, KO, VO>.Context reduceContext(Records input, RawComparator<?> grouping, Class<?> keyClass,
+                                                                        Class<?> valueClass, RecordWriter<KO, VO> writer)
+            throws IOException, InterruptedException {
+        return reduceContext(conf, input, grouping, keyClass, valueClass, writer);
+    }
+
+    @SuppressWarnings("unchecked")
+    public <KI, VI, KO, VO> Reducer<KI, VI, KO, VO>.Context reduceContext(Configuration conf, Records input, RawComparator<?> grouping,
+                                                                        Class<?> keyClass, Class<?> valueClass, RecordWriter<KO, VO> writer)
+            throws IOException, InterruptedException {
+        return InMemoryContext.reduceContext(conf, input.iterator(RECORDS), (RawComparator<KI>) grouping,
+                (Class<KI>) keyClass, (Class<VI>) valueClass, writer);
+    }
+
+    @SuppressWarnings("unchecked")
+    private Records run(Mapper mapper, Writable[] keys, Writable[] values) throws IOException, InterruptedException {
+        Records output = new Records();
+        mapper.run(InMemoryContext.mapContext(conf, new InMemoryContext.ArrayReader<>(keys, values), (RecordWriter) output));
+        return output;
+    }
+
+    @SuppressWarnings("unchecked")
+    private Records run(Reducer reducer, Records input, RawComparator<?> grouping, Class<?> keyClass, Class<?> valueClass)
+            throws IOException, InterruptedException {
+        Records output = new Records();
+        reducer.run(InMemoryContext.reduceContext(conf, input.iterator(input.size()), (RawComparator) grouping,
+                keyClass, valueClass, (RecordWriter) output));
+        return output;
+    }
+
+    private static Writable[] concat(Writable[] first, Writable[] second) {
+        Writable[] result = new Writable[first.length + second.length];
+        System.arraycopy(first, 0, result, 0, first.length);
+        System.arraycopy(second, 0, result, first.length, second.length);
+        return result;
+    }
+
+    /**
+     * Writes the word counts where Vocabulary.writeDictionary reads them and returns the vocabulary file it writes.
+     */
+    private Path writeVocabulary(Records counts) throws IOException {
+        File dir = Files.createTempDirectory("vocabulary").toFile();
+        dir.deleteOnExit();
+        Path countsPath = new Path(dir.toURI());
+        Path part = new Path(countsPath, "part-r-00000");
+        Writable[] words = counts.keys(Text.class);
+        Writable[] wordCounts = counts.values(LongWritable.class);
+        try (SequenceFile.Writer writer = SequenceFile.createWriter(conf, SequenceFile.Writer.file(part),
+                SequenceFile.Writer.keyClass(Text.class), SequenceFile.Writer.valueClass(LongWritable.class))) {
+            for (int i = 0; i < words.length; i++) {
+                writer.append(words[i], wordCounts[i]);
+            }
+        }
+        Path dictionary = new Path(countsPath, "vocabulary.txt");
+        Classes.invokeStatic("Vocabulary", "writeDictionary", countsPath, dictionary, conf);
+        FileSystem.getLocal(conf).deleteOnExit(countsPath);
+        return dictionary;
+    }
+
+    private URI writeStats(Writable[] keys, Writable[] values) throws IOException {
+        File file = File.createTempFile("stats", ".seq");
+        file.deleteOnExit();
+        Path path = new Path(file.toURI());
+        FileSystem.getLocal(conf).delete(path, false);
+        try (SequenceFile.Writer writer = SequenceFile.createWriter(conf, SequenceFile.Writer.file(path),
+                SequenceFile.Writer.keyClass(type("StatKey")), SequenceFile.Writer.valueClass(LongWritable.class))) {
+            for (int i = 0; i < keys.length; i++) {
+                writer.append(keys[i], values[i]);
+            }
+        }
+        return URI.create(path.toUri() + "#stats-0");
+    }
+}
@@ -0,0 +1,155 @@
+package bench;
+
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.RawComparator;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.mapred.RawKeyValueIterator;
+import org.apache.hadoop.mapreduce.RecordWriter;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.util.Progress;
+import org.apache.hadoop.util.QuickSort;
+import org.apache.hadoop.util.IndexedSortable;
+import org.apache.hadoop.util.ReflectionUtils;
+
+import java.io.IOException;
+import java.lang.reflect.Array;
+import java.util.Arrays;
+
+
+/**
+ * Collects the serialized output of a stage, so it can be fed to the next one:
+ * as key and value objects for a Mapper, or sorted and serialized for a Reducer.
+ */
+public class Records extends RecordWriter<Writable, Writable> implements IndexedSortable {
+    private final DataOutputBuffer buffer = new DataOutputBuffer();
+    private int[] keyStarts = new int[1024];
+    private int[] valueStarts = new int[1024];
+    private int[] ends = new int[1024];
+    private int[] order = new int[1024];
+    private int count = 0;
+    private RawComparator<?> comparator;
+
+    @Override
+    public void write(Writable key, Writable value) throws IOException {
+        if (count == keyStarts.length) {
+            keyStarts = Arrays.copyOf(keyStarts, count * 2);
+            valueStarts = Arrays.copyOf(valueStarts, count * 2);
+            ends = Arrays.copyOf(ends, count * 2);
+            order = Arrays.copyOf(order, count * 2);
+        }
+        keyStarts[count] = buffer.getLength();
+        key.write(buffer);
+        valueStarts[count] = buffer.getLength();
+        value.write(buffer);
+        ends[count] = buffer.getLength();
+        order[count] = count;
+        count++;
+    }
+
+    @Override
+    public void close(TaskAttemptContext context) {
+    }
+
+    public int size() {
+        return count;
+    }
+
+    /**
+     * Puts the records back in the order they were written.
+     */
+    public Records reset() {
+        for (int i = 0; i < count; i++) {
+            order[i] = i;
+        }
+        return this;
+    }
+
+    /**
+     * Sorts the records by their serialized keys, like the map side sort.
+     */
+    public Records sort(RawComparator<?> comparator) {
+        this.comparator = comparator;
+        new QuickSort().sort(this, 0, count);
+        return this;
+    }
+
+    @Override
+    public int compare(int i, int j) {
+        byte[] data = buffer.getData();
+        int a = order[i], b = order[j];
+        return comparator.compare(data, keyStarts[a], valueStarts[a] - keyStarts[a], data, keyStarts[b], valueStarts[b] - keyStarts[b]);
+    }
+
+    @Override
+    public void swap(int i, int j) {
+        int tmp = order[i];
+        order[i] = order[j];
+        order[j] = tmp;
+    }
+
+    public <T extends Writable> T[] keys(Class<T> keyClass) throws IOException {
+        return read(keyClass, true);
+    }
+
+    public <T extends Writable> T[] values(Class<T> valueClass) throws IOException {
+        return read(valueClass, false);
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T extends Writable> T[] read(Class<T> type, boolean keys) throws IOException {
+        T[] result = (T[]) Array.newInstance(type, count);
+        DataInputBuffer in = new DataInputBuffer();
+        for (int i = 0; i < count; i++) {
+            int record = order[i];
+            int start = keys ? keyStarts[record] : valueStarts[record];
+            int end = keys ? valueStarts[record] : ends[record];
+            in.reset(buffer.getData(), start, end - start);
+            result[i] = ReflectionUtils.newInstance(type, null);
+            result[i].readFields(in);
+        }
+        return result;
+    }
+
+    /**
+     * Reducer input: limit records in the current order, going over the records as many times as needed.
+     */
+    public RawKeyValueIterator iterator(final int limit) {
+        final int[] order = Arrays.copyOf(this.order, count);
+        return new RawKeyValueIterator() {
+            private final DataInputBuffer key = new DataInputBuffer();
+            private final DataInputBuffer value = new DataInputBuffer();
+            private int read = 0;
+
+            @Override
+            public DataInputBuffer getKey() {
+                return key;
+            }
+
+            @Override
+            public DataInputBuffer getValue() {
+                return value;
+            }
+
+            @Override
+            public boolean next() {
+                if (read >= limit) {
+                    return false;
+                }
+                int record = order[read++ % count];
+                key.reset(buffer.getData(), keyStarts[record], valueStarts[record] - keyStarts[record]);
+                value.reset(buffer.getData(), valueStarts[record], ends[record] - valueStarts[record]);
+                return true;
+            }
+
+            @Override
+            public void close() {
+            }
+
+            @Override
+            public Progress getProgress() {
+                return new Progress();
+            }
+        };
+    }
+}
@@ -0,0 +1,62 @@
+package bench;
+
+import org.apache.hadoop.io.RawComparator;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Map side sort of every stage: the map output of the stage, in the order it was written,
+ * sorted by the sort comparator of its job (TrigramKey, StatKey, Step3.Comparison, Step4.Comparison).
+ * One operation is one sort of the whole map output.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SortBenchmark {
+    @Param({Corpus.ENGLISH, Corpus.HEBREW})
+    public String language;
+
+    @Param({"step1", "step2", "step3", "step4"})
+    public String stage;
+
+    private Records records;
+    private RawComparator<?> comparator;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException, InterruptedException {
+        Pipeline pipeline = new Pipeline(language);
+        switch (stage) {
+            case "step1":
+                records = pipeline.step1Map;
+                comparator = Pipeline.comparator("TrigramKey");
+                break;
+            case "step2":
+                records = pipeline.step2Map;
+                comparator = Pipeline.comparator("StatKey");
+                break;
+            case "step3":
+                records = pipeline.step3Map;
+                comparator = Classes.newInstance("Step3$Comparison");
+                break;
+            default:
+                records = pipeline.step4Map;
+                comparator = Classes.newInstance("Step4$Comparison");
+        }
+    }
+
+    @Setup(Level.Invocation)
+    public void unsort() {
+        records.reset();
+    }
+
+    @Benchmark
+    public Records sort() {
+        return records.sort(comparator);
+    }
+}
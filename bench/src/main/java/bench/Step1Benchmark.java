@@ -0,0 +1,76 @@
+package bench;
+
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.mapreduce.Mapper;
+import org.apache.hadoop.mapreduce.Reducer;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Step1 stages over RECORDS input records each: Map over corpus lines, then Combine, Reduce and FusedReduce
+ * over the sorted map output.
+ * Run with -prof gc to see the bytes allocated per record (gc.alloc.rate.norm, one operation = one record).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@OperationsPerInvocation(Pipeline.RECORDS)
+public class Step1Benchmark {
+    @Param({Corpus.ENGLISH, Corpus.HEBREW})
+    public String language;
+
+    private Pipeline pipeline;
+    private Mapper<Writable, Writable, Writable, Writable> map;
+    private Reducer<Writable, Writable, Writable, Writable> combine, reduce, fusedReduce;
+    private Mapper<Writable, Writable, Writable, Writable>.Context mapContext;
+    private Reducer<Writable, Writable, Writable, Writable>.Context combineContext, reduceContext, fusedReduceContext;
+    private final InMemoryContext.CountingWriter<Writable, Writable> writer = new InMemoryContext.CountingWriter<>();
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException, InterruptedException {
+        pipeline = new Pipeline(language);
+        map = Classes.newInstance("Step1$Map");
+        combine = Classes.newInstance("Step1$Combine");
+        reduce = Classes.newInstance("Step1$Reduce");
+        fusedReduce = Classes.newInstance("Step1$FusedReduce");
+    }
+
+    @Setup(Level.Invocation)
+    public void contexts() throws IOException, InterruptedException {
+        mapContext = pipeline.mapContext(pipeline.offsets, pipeline.lines, writer);
+        combineContext = reduceContext();
+        reduceContext = reduceContext();
+        fusedReduceContext = reduceContext();
+    }
+
+    private Reducer<Writable, Writable, Writable, Writable>.Context reduceContext() throws IOException, InterruptedException {
+        return pipeline.reduceContext(pipeline.step1Map, Pipeline.comparator("TrigramKey"),
+                Pipeline.type("TrigramKey"), Pipeline.type("PartCounts"), writer);
+    }
+
+    @Benchmark
+    public void map() throws IOException, InterruptedException {
+        map.run(mapContext);
+    }
+
+    @Benchmark
+    public void combine() throws IOException, InterruptedException {
+        combine.run(combineContext);
+    }
+
+    @Benchmark
+    public void reduce() throws IOException, InterruptedException {
+        reduce.run(reduceContext);
+    }
+
+    @Benchmark
+    public void fusedReduce() throws IOException, InterruptedException {
+        fusedReduce.run(fusedReduceContext);
+    }
+}
@@ -0,0 +1,169 @@
+package bench;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.Mapper;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Step1.Map over synthetic Google n-gram lines: the byte scanning mapper, which looks the words up in the vocabulary,
+ * against the String splitting one it replaced, which checked every word for letters and stop words.
+ * Run with -prof gc to see the bytes allocated per record (gc.alloc.rate.norm, one operation = one record).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@OperationsPerInvocation(Step1MapBenchmark.RECORDS)
+public class Step1MapBenchmark {
+    static final int RECORDS = 100000;
+    static final String[] STOP_WORDS = {"a", "about", "of", "the", "to", "in", "is", "and", "for", "by"};
+
+    private Mapper<LongWritable, Text, Writable, Writable> bytesMap;
+    private Mapper<LongWritable, Text, Writable, Writable> stringMap;
+    private Mapper<LongWritable, Text, Writable, Writable>.Context bytesContext, stringContext;
+    private InMemoryContext.ArrayReader<LongWritable, Text> reader;
+
+    @Setup
+    public void setup() throws IOException {
+        Configuration conf = new Configuration();
+        Job job = Job.getInstance(conf);
+        Random random = new Random(42);
+        String[] words = {"the", "of", "Black", "Bear", "Conflicts", "Capital", "Danny", "had", "used", "Universities",
+                "are", "supposed", "naïve", "café", "1984", "U.S.", "don't", "economic", "to", "in"};
+        Classes.invokeStatic("Dictionary", "addToJob", job, vocabularyFile(words).getPath());
+        conf = job.getConfiguration();
+
+        LongWritable[] keys = new LongWritable[RECORDS];
+        Text[] lines = new Text[RECORDS];
+        for (int i = 0; i < RECORDS; i++) {
+            keys[i] = new LongWritable(i);
+            lines[i] = new Text(words[random.nextInt(words.length)] + " " + words[random.nextInt(words.length)] + " "
+                    + words[random.nextInt(words.length)] + "\t" + (1800 + random.nextInt(209)) + "\t"
+                    + (1 + random.nextInt(500)) + "\t" + (1 + random.nextInt(50)) + "\t" + (1 + random.nextInt(20)));
+        }
+        reader = new InMemoryContext.ArrayReader<>(keys, lines);
+        bytesMap = Classes.newInstance("Step1$Map");
+        stringMap = new StringMap();
+        bytesContext = InMemoryContext.mapContext(conf, reader, new InMemoryContext.CountingWriter<>());
+        stringContext = InMemoryContext.mapContext(conf, reader, new InMemoryContext.CountingWriter<>());
+    }
+
+    /**
+     * The vocabulary the Vocabulary job would write for these words: the ones that are letters only and not stop words.
+     */
+    private static File vocabularyFile(String[] words) throws IOException {
+        List<String> vocabulary = new ArrayList<>();
+        for (String word : words) {
+            if (word.chars().allMatch(Character::isLetter) && !Arrays.asList(STOP_WORDS).contains(word)) {
+                vocabulary.add(word);
+            }
+        }
+        File file = File.createTempFile("vocabulary", ".txt");
+        file.deleteOnExit();
+        Files.write(file.toPath(), vocabulary, StandardCharsets.UTF_8);
+        return file;
+    }
+
+    @Benchmark
+    public void bytes() throws IOException, InterruptedException {
+        reader.reset();
+        bytesMap.run(bytesContext);
+    }
+
+    @Benchmark
+    public void string() throws IOException, InterruptedException {
+        reader.reset();
+        stringMap.run(stringContext);
+    }
+
+    /**
+     * Step1.Map before the byte scanning: value.toString(), String.split, a String for every word and a Text key.
+     */
+    private static class StringMap extends Mapper<LongWritable, Text, Writable, Writable> {
+        private static final MethodHandle SET_COUNTS;
+
+        static {
+            try {
+                MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+                SET_COUNTS = lookup.findVirtual(Classes.forName("PartCounts"), "set",
+                        MethodType.methodType(void.class, long.class, long.class));
+            } catch (ReflectiveOperationException e) {
+                throw new ExceptionInInitializerError(e);
+            }
+        }
+
+        private final Set<String> stopWords = new HashSet<>(Arrays.asList(STOP_WORDS));
+        private final Text outKey = new Text();
+        private final Writable outValue = Classes.newInstance("PartCounts");
+        int part = 0;
+
+        @Override
+        public void map(LongWritable key, Text value, Context context) throws IOException, InterruptedException {
+            String[] fields = value.toString().split("\t");
+            String[] trigram = fields[0].split(" ");
+            if (fields.length < 5)
+                return;
+            if (trigram.length > 2) {
+                String w1 = trigram[0];
+                String w2 = trigram[1];
+                String w3 = trigram[2];
+
+                if (isntLetter(w1) || isntLetter(w2) || isntLetter(w3))
+                    return;
+
+                if (stopWords.contains(w1) || stopWords.contains(w2) || stopWords.contains(w3))
+                    return;
+
+                long occurrences = Long.parseLong(fields[2]);
+
+                outKey.set(w1 + " " + w2 + " " + w3);
+                try {
+                    if (part == 0) {
+                        part = 1;
+                        SET_COUNTS.invoke(outValue, occurrences, 0L);
+                    } else {
+                        part = 0;
+                        SET_COUNTS.invoke(outValue, 0L, occurrences);
+                    }
+                } catch (Throwable e) {
+                    throw new IllegalStateException(e);
+                }
+                context.write(outKey, outValue);
+            }
+        }
+
+        private boolean isntLetter(String w1) {
+            if (w1.isEmpty()) {
+                return true;
+            }
+            for (int i = 0; i < w1.length(); i++) {
+                if (!Character.isLetter(w1.charAt(i))) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+}
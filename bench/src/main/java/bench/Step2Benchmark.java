@@ -0,0 +1,70 @@
+package bench;
+
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.mapreduce.Mapper;
+import org.apache.hadoop.mapreduce.Reducer;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Step2 stages over RECORDS input records each: Map over the Step1 output, then Combine and Reduce
+ * over the sorted map output. The trigram totals written by Map to the named output are dropped.
+ * Run with -prof gc to see the bytes allocated per record (gc.alloc.rate.norm, one operation = one record).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@OperationsPerInvocation(Pipeline.RECORDS)
+public class Step2Benchmark {
+    @Param({Corpus.ENGLISH, Corpus.HEBREW})
+    public String language;
+
+    private Pipeline pipeline;
+    private Mapper<Writable, Writable, Writable, Writable> map;
+    private Reducer<Writable, Writable, Writable, Writable> combine, reduce;
+    private Mapper<Writable, Writable, Writable, Writable>.Context mapContext;
+    private Reducer<Writable, Writable, Writable, Writable>.Context combineContext, reduceContext;
+    private final InMemoryContext.CountingWriter<Writable, Writable> writer = new InMemoryContext.CountingWriter<>();
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException, InterruptedException {
+        pipeline = new Pipeline(language);
+        map = Classes.newInstance("Step2$Map");
+        combine = Classes.newInstance("Step2$Combine");
+        reduce = Classes.newInstance("Step2$Reduce");
+    }
+
+    @Setup(Level.Invocation)
+    public void contexts() throws IOException, InterruptedException {
+        mapContext = pipeline.mapContext(pipeline.step2Keys, pipeline.step2Values, writer);
+        combineContext = reduceContext();
+        reduceContext = reduceContext();
+    }
+
+    private Reducer<Writable, Writable, Writable, Writable>.Context reduceContext() throws IOException, InterruptedException {
+        return pipeline.reduceContext(pipeline.step2Map, Pipeline.comparator("StatKey"),
+                Pipeline.type("StatKey"), LongWritable.class, writer);
+    }
+
+    @Benchmark
+    public void map() throws IOException, InterruptedException {
+        map.run(mapContext);
+    }
+
+    @Benchmark
+    public void combine() throws IOException, InterruptedException {
+        combine.run(combineContext);
+    }
+
+    @Benchmark
+    public void reduce() throws IOException, InterruptedException {
+        reduce.run(reduceContext);
+    }
+}
@@ -0,0 +1,71 @@
+package bench;
+
+import org.apache.hadoop.io.RawComparator;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.mapreduce.Mapper;
+import org.apache.hadoop.mapreduce.Reducer;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Step3 stages over RECORDS input records each: Map over the N/T records and the trigram totals (in skew mode),
+ * Reduce over the sorted map output, and BroadcastMap over the trigram totals with the N/T records in the cache.
+ * Run with -prof gc to see the bytes allocated per record (gc.alloc.rate.norm, one operation = one record).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@OperationsPerInvocation(Pipeline.RECORDS)
+public class Step3Benchmark {
+    @Param({Corpus.ENGLISH, Corpus.HEBREW})
+    public String language;
+
+    private Pipeline pipeline;
+    private Mapper<Writable, Writable, Writable, Writable> map, broadcastMap;
+    private Reducer<Writable, Writable, Writable, Writable> reduce;
+    private RawComparator<?> grouping;
+    private Mapper<Writable, Writable, Writable, Writable>.Context mapContext, broadcastMapContext;
+    private Reducer<Writable, Writable, Writable, Writable>.Context reduceContext;
+    private final InMemoryContext.CountingWriter<Writable, Writable> writer = new InMemoryContext.CountingWriter<>();
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException, InterruptedException {
+        pipeline = new Pipeline(language);
+        map = Classes.newInstance("Step3$Map");
+        broadcastMap = Classes.newInstance("Step3$BroadcastMap");
+        reduce = Classes.newInstance("Step3$Reduce");
+        grouping = Classes.newInstance("Step3$Grouping");
+    }
+
+    @Setup(Level.Invocation)
+    public void contexts() throws IOException, InterruptedException {
+        mapContext = pipeline.mapContext(pipeline.step3Keys, pipeline.step3Values, writer);
+        broadcastMapContext = pipeline.mapContext(pipeline.broadcastConf, pipeline.trigramKeys, pipeline.trigramValues, writer);
+        reduceContext = pipeline.reduceContext(pipeline.step3Map, grouping,
+                Pipeline.type("StatKey"), Pipeline.type("Step3$Value"), writer);
+    }
+
+    @Benchmark
+    public void map() throws IOException, InterruptedException {
+        map.run(mapContext);
+    }
+
+    @Benchmark
+    public void reduce() throws IOException, InterruptedException {
+        reduce.run(reduceContext);
+    }
+
+    /**
+     * Includes loading the N/T records in setup, like every map task does.
+     */
+    @Benchmark
+    public void broadcastMap() throws IOException, InterruptedException {
+        broadcastMap.run(broadcastMapContext);
+    }
+}
@@ -0,0 +1,91 @@
+package bench;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.RawComparator;
+import org.apache.hadoop.io.VIntWritable;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.mapreduce.Mapper;
+import org.apache.hadoop.mapreduce.Reducer;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Step4 stages over RECORDS input records each: Map over the Step3 probabilities, then Reduce over the map output
+ * sorted by Step4.Comparison (which is also the grouping comparator of the job).
+ * The topK benchmarks run the same stages in top-K mode (Step4.TOP_K = 5), where the map output goes through TopKCombine.
+ * Run with -prof gc to see the bytes allocated per record (gc.alloc.rate.norm, one operation = one record).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@OperationsPerInvocation(Pipeline.RECORDS)
+public class Step4Benchmark {
+    @Param({Corpus.ENGLISH, Corpus.HEBREW})
+    public String language;
+
+    private Pipeline pipeline;
+    private Mapper<Writable, Writable, Writable, Writable> map;
+    private Mapper<Writable, Writable, Writable, Writable> topKMap;
+    private Reducer<Writable, Writable, Writable, Writable> reduce, topKCombine, topKReduce;
+    private Configuration topKConf;
+    private RawComparator<?> comparison;
+    private Mapper<Writable, Writable, Writable, Writable>.Context mapContext, topKMapContext;
+    private Reducer<Writable, Writable, Writable, Writable>.Context reduceContext, topKCombineContext, topKReduceContext;
+    private final InMemoryContext.CountingWriter<Writable, Writable> writer = new InMemoryContext.CountingWriter<>();
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException, InterruptedException {
+        pipeline = new Pipeline(language);
+        map = Classes.newInstance("Step4$Map");
+        reduce = Classes.newInstance("Step4$Reduce");
+        comparison = Classes.newInstance("Step4$Comparison");
+        topKMap = Classes.newInstance("Step4$Map");
+        topKCombine = Classes.newInstance("Step4$TopKCombine");
+        topKReduce = Classes.newInstance("Step4$Reduce");
+        topKConf = new Configuration(pipeline.conf);
+        topKConf.setInt((String) Classes.getStatic("Step4", "TOP_K"), 5);
+    }
+
+    @Setup(Level.Invocation)
+    public void contexts() throws IOException, InterruptedException {
+        mapContext = pipeline.mapContext(pipeline.step4Keys, pipeline.step4Values, writer);
+        reduceContext = pipeline.reduceContext(pipeline.step4Map, comparison,
+                Pipeline.type("ProbabilityKey"), VIntWritable.class, writer);
+        topKMapContext = pipeline.mapContext(topKConf, pipeline.step4Keys, pipeline.step4Values, writer);
+        topKCombineContext = pipeline.reduceContext(topKConf, pipeline.step4Map, comparison,
+                Pipeline.type("ProbabilityKey"), VIntWritable.class, writer);
+        topKReduceContext = pipeline.reduceContext(topKConf, pipeline.step4Map, comparison,
+                Pipeline.type("ProbabilityKey"), VIntWritable.class, writer);
+    }
+
+    @Benchmark
+    public void map() throws IOException, InterruptedException {
+        map.run(mapContext);
+    }
+
+    @Benchmark
+    public void reduce() throws IOException, InterruptedException {
+        reduce.run(reduceContext);
+    }
+
+    @Benchmark
+    public void topKMap() throws IOException, InterruptedException {
+        topKMap.run(topKMapContext);
+    }
+
+    @Benchmark
+    public void topKCombine() throws IOException, InterruptedException {
+        topKCombine.run(topKCombineContext);
+    }
+
+    @Benchmark
+    public void topKReduce() throws IOException, InterruptedException {
+        topKReduce.run(topKReduceContext);
+    }
+}
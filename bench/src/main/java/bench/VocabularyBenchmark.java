@@ -0,0 +1,61 @@
+package bench;
+
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableComparator;
+import org.apache.hadoop.mapreduce.Mapper;
+import org.apache.hadoop.mapreduce.Reducer;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Vocabulary stages over RECORDS input records each: Map over the corpus lines, then Reduce (also the combiner)
+ * over the sorted map output.
+ * Run with -prof gc to see the bytes allocated per record (gc.alloc.rate.norm, one operation = one record).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@OperationsPerInvocation(Pipeline.RECORDS)
+public class VocabularyBenchmark {
+    @Param({Corpus.ENGLISH, Corpus.HEBREW})
+    public String language;
+
+    private Pipeline pipeline;
+    private Mapper<Writable, Writable, Writable, Writable> map;
+    private Reducer<Writable, Writable, Writable, Writable> reduce;
+    private Mapper<Writable, Writable, Writable, Writable>.Context mapContext;
+    private Reducer<Writable, Writable, Writable, Writable>.Context reduceContext;
+    private final InMemoryContext.CountingWriter<Writable, Writable> writer = new InMemoryContext.CountingWriter<>();
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException, InterruptedException {
+        pipeline = new Pipeline(language);
+        map = Classes.newInstance("Vocabulary$Map");
+        reduce = Classes.newInstance("Vocabulary$Reduce");
+    }
+
+    @Setup(Level.Invocation)
+    public void contexts() throws IOException, InterruptedException {
+        mapContext = pipeline.mapContext(pipeline.offsets, pipeline.lines, writer);
+        reduceContext = pipeline.reduceContext(pipeline.vocabularyMap, WritableComparator.get(Text.class),
+                Text.class, LongWritable.class, writer);
+    }
+
+    @Benchmark
+    public void map() throws IOException, InterruptedException {
+        map.run(mapContext);
+    }
+
+    @Benchmark
+    public void reduce() throws IOException, InterruptedException {
+        reduce.run(reduceContext);
+    }
+}